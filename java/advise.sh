@@ -0,0 +1,9 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: source ./advise.sh flightDB 5432 user --apply ../sql/create_indexes.sql
+# Prints the plan of every DBproject statement and the indexes that go unused.
+java -cp lib/*:bin/ IndexAdvisor $DBNAME $PORT $USER "$@"
@@ -0,0 +1,10 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: source ./bench.sh flightDB 5432 user --threads 8 --seconds 30
+# Reloads the sample data first, since the benchmark adds rows and takes seats.
+java -cp lib/*:bin/ DBproject $DBNAME $PORT $USER --load ../data --truncate
+java -cp lib/*:bin/ Bench $DBNAME $PORT $USER "$@"
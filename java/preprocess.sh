@@ -0,0 +1,4 @@
+#! /bin/bash
+# Example: source ./preprocess.sh ../data /tmp/clean --threads 8
+# Validates and normalizes the CSV files; load the output with run.sh's --load <output dir>.
+java -cp lib/*:bin/ CsvPreprocessor "$@"
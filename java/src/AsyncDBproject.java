@@ -0,0 +1,187 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Runs DBproject operations on a dedicated executor and returns
+ * CompletableFutures, so a caller can start independent operations together
+ * and wait for all of them in one round trip of latency instead of one per
+ * operation.  A failed operation completes its future exceptionally with
+ * the SQLException itself.
+ *
+ * The executor has as many threads as the connection pool has connections,
+ * since more would only wait for a connection, and a bounded queue.  When
+ * the queue is full the submitting thread runs the operation itself, which
+ * slows submission down to the rate the database keeps up with.
+ *
+ */
+
+public class AsyncDBproject implements AutoCloseable {
+	//queued operations per executor thread before callers run them
+	public static final int QUEUE_PER_THREAD = 16;
+
+	private final DBproject _db;
+	private final ThreadPoolExecutor _executor;
+	private final LongAdder _callerRuns = new LongAdder();
+
+	/**
+	 * @param db the instance running the operations
+	 */
+	public AsyncDBproject(DBproject db) {
+		this(db, db.getPool().getMaxSize(), db.getPool().getMaxSize() * QUEUE_PER_THREAD);
+	}
+
+	/**
+	 * @param db the instance running the operations
+	 * @param threads the executor threads
+	 * @param queueSize the operations queued before callers run them
+	 */
+	public AsyncDBproject(DBproject db, int threads, int queueSize) {
+		if (threads < 1 || queueSize < 1) {
+			throw new IllegalArgumentException("threads and queue size have to be positive");
+		}
+		this._db = db;
+		final AtomicInteger n = new AtomicInteger();
+		ThreadFactory factory = r -> {
+			Thread t = new Thread(r, "db-async-" + n.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+		this._executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(queueSize), factory, (r, executor) -> {
+				//also reached while closing, and every submitted future has to complete
+				this._callerRuns.increment();
+				r.run();
+			});
+	}
+
+	/**
+	 * Runs any call on the executor.
+	 *
+	 * @return a future completed with the result, or exceptionally with what the call threw
+	 */
+	public <T> CompletableFuture<T> submit(final Metrics.Call<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		if (this._executor.isShutdown()) {
+			future.completeExceptionally(new SQLException("the executor is closed"));
+			return future;
+		}
+		this._executor.execute(() -> {
+			try {
+				future.complete(call.call());
+			}catch (SQLException | RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	public CompletableFuture<BookingEngine.Booking> bookCruise(int ccid, int cid) {
+		return submit(() -> this._db.bookCruise(ccid, cid));
+	}
+
+	public CompletableFuture<Integer> getAvailableSeats(int cnum) {
+		return submit(() -> this._db.getAvailableSeats(cnum));
+	}
+
+	public CompletableFuture<String> getReservationStatus(int ccid, int cid) {
+		return submit(() -> this._db.getReservationStatus(ccid, cid));
+	}
+
+	/**
+	 * The reservation and the seats left, fetched in one round trip.
+	 */
+	public CompletableFuture<DBproject.ReservationCheck> checkReservation(int ccid, int cid) {
+		return submit(() -> this._db.checkReservation(ccid, cid));
+	}
+
+	public CompletableFuture<Integer> setReservationStatus(int ccid, int cid, String status) {
+		return submit(() -> this._db.setReservationStatus(ccid, cid, status));
+	}
+
+	public CompletableFuture<WaitlistEngine.Outcome> cancelReservation(int ccid, int cid) {
+		return submit(() -> this._db.cancelReservation(ccid, cid));
+	}
+
+	/**
+	 * Books a cruise unless the customer already has a reservation on it.
+	 * The check is one round trip and the booking, when needed, a second.
+	 *
+	 * @return the new booking, or null when there already was a reservation
+	 */
+	public CompletableFuture<BookingEngine.Booking> bookIfAbsent(int ccid, int cid) {
+		return checkReservation(ccid, cid).thenCompose(check -> check.status != null
+			? CompletableFuture.completedFuture((BookingEngine.Booking) null) : bookCruise(ccid, cid));
+	}
+
+	public CompletableFuture<Integer> addShip(int id, String make, String model, int age, int seats) {
+		return submit(() -> this._db.addShip(id, make, model, age, seats));
+	}
+
+	public CompletableFuture<Integer> addCaptain(int id, String fullname, String nationality) {
+		return submit(() -> this._db.addCaptain(id, fullname, nationality));
+	}
+
+	public CompletableFuture<Integer> addCruise(int cnum, int cost, int numSold, int numStops, String departureDate,
+			String arrivalDate, String arrivalPort, String departurePort) {
+		return submit(() -> this._db.addCruise(cnum, cost, numSold, numStops, departureDate, arrivalDate,
+			arrivalPort, departurePort));
+	}
+
+	public CompletableFuture<Integer> addRepair(int rid, String repairDate, String repairCode, int captainId,
+			int shipId, int technicianId) {
+		return submit(() -> this._db.addRepair(rid, repairDate, repairCode, captainId, shipId, technicianId));
+	}
+
+	public CompletableFuture<List<int[]>> getMostRepairedShips(int k) {
+		return submit(() -> this._db.getMostRepairedShips(k));
+	}
+
+	public CompletableFuture<Long> countPassengersWithStatus(String status) {
+		return submit(() -> this._db.countPassengersWithStatus(status));
+	}
+
+	public CompletableFuture<List<DepartureIndex.Departure>> findDepartures(String port, String from, String until,
+			int minSeats) {
+		return submit(() -> this._db.findDepartures(port, from, until, minSeats));
+	}
+
+	public CompletableFuture<RoutePlanner.Itinerary> planRoute(String from, String to, String earliest,
+			int minConnectDays, boolean cheapest) {
+		return submit(() -> this._db.planRoute(from, to, earliest, minConnectDays, cheapest));
+	}
+
+	/**
+	 * @return the operations waiting for an executor thread
+	 */
+	public int getQueueDepth() {
+		return this._executor.getQueue().size();
+	}
+
+	/**
+	 * @return the operations run by their caller because the queue was full
+	 */
+	public long getCallerRunCount() {
+		return this._callerRuns.sum();
+	}
+
+	/**
+	 * Stops accepting operations and waits for the queued ones to finish.
+	 */
+	@Override
+	public void close() {
+		this._executor.shutdown();
+		try {
+			this._executor.awaitTermination(30, TimeUnit.SECONDS);
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}//end AsyncDBproject
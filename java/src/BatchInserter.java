@@ -0,0 +1,250 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Inserts ships, captains or cruises in bulk.  Records are read one per line
+ * in the column order of the matching data/*.csv file and sent with JDBC
+ * batches; with reWriteBatchedInserts on, the driver folds a batch into
+ * multi-row INSERTs, so a batch costs one round trip instead of one per row.
+ *
+ * Every batch is its own transaction.  When a batch fails it is rolled back
+ * and replayed row by row behind savepoints, so the good rows are kept and
+ * each bad row is reported with its line number.
+ *
+ * With several shards, cruises go to the shard of their number and ships
+ * and captains to every shard, each shard with its own batches, so the
+ * input is still read once and never held in memory.  A ship or captain is
+ * counted once, on the first shard, and skipped on shards that have it
+ * already, so the input can be loaded again after a partial failure.
+ *
+ */
+
+public class BatchInserter {
+	/**
+	 * The kinds of records that can be inserted.  The signature has one
+	 * character per column: 'i' for an integer, 's' for text.
+	 */
+	public enum Kind {
+		SHIP(DBproject.SQL_ADD_SHIP, DBproject.SQL_ADD_SHIP_EVERYWHERE, "issii"),
+		CAPTAIN(DBproject.SQL_ADD_CAPTAIN, DBproject.SQL_ADD_CAPTAIN_EVERYWHERE, "iss"),
+		CRUISE(DBproject.SQL_ADD_CRUISE, null, "iiiissss");
+
+		final String sql;
+		//the insert for kinds copied to every shard, skipping rows a shard has already; null for the others
+		final String everywhereSql;
+		final String signature;
+
+		Kind(String sql, String everywhereSql, String signature) {
+			this.sql = sql;
+			this.everywhereSql = everywhereSql;
+			this.signature = signature;
+		}
+
+		/**
+		 * @param name ship, captain or cruise, in any case
+		 * @return the matching kind
+		 */
+		public static Kind parse(String name) {
+			return valueOf(name.toUpperCase());
+		}
+	}//end Kind
+
+	//a parsed record and the input line it came from
+	private static class Row {
+		final int line;
+		final Object[] values;
+
+		Row(int line, Object[] values) {
+			this.line = line;
+			this.values = values;
+		}
+	}
+
+	private final ConnectionPool[] _pools;
+	private final Kind _kind;
+	private final String _sql;
+	private final int _batchSize;
+
+	private long _inserted = 0;
+	private long _rejected = 0;
+
+	/**
+	 * @param pool the pool to borrow connections from
+	 * @param kind the kind of records to insert
+	 * @param batchSize the number of rows per batch and transaction
+	 */
+	public BatchInserter(ConnectionPool pool, Kind kind, int batchSize) {
+		this(new ConnectionPool[] { pool }, kind, batchSize);
+	}
+
+	/**
+	 * @param pools the pool of every shard, in shard order
+	 * @param kind the kind of records to insert
+	 * @param batchSize the number of rows per batch and transaction
+	 */
+	public BatchInserter(ConnectionPool[] pools, Kind kind, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batch size has to be positive");
+		}
+		this._pools = pools;
+		this._kind = kind;
+		this._sql = pools.length > 1 && kind.everywhereSql != null ? kind.everywhereSql : kind.sql;
+		this._batchSize = batchSize;
+	}
+
+	public long getInsertedCount() { return this._inserted; }
+	public long getRejectedCount() { return this._rejected; }
+
+	/**
+	 * Reads records until the end of the input and inserts them.  Rows that
+	 * cannot be parsed or inserted are reported on standard error.
+	 *
+	 * @param in the records, one per line
+	 * @return the number of rows inserted
+	 * @throws java.io.IOException when the input could not be read
+	 * @throws java.sql.SQLException when the database could not be reached
+	 */
+	public long insertAll(BufferedReader in) throws IOException, SQLException {
+		long start = System.nanoTime();
+		//the batch being filled for every shard
+		List<List<Row>> batches = new ArrayList<List<Row>>(this._pools.length);
+		for (int i = 0; i < this._pools.length; ++i) {
+			batches.add(new ArrayList<Row>(this._batchSize));
+		}
+		String line;
+		int lineNo = 0;
+		while ((line = in.readLine()) != null) {
+			++lineNo;
+			if (line.trim().isEmpty()) {
+				continue;
+			}
+			Row row;
+			try {
+				row = new Row(lineNo, parse(line));
+			}catch (IllegalArgumentException e) {
+				reject(-1, lineNo, e.getMessage());
+				continue;
+			}
+			int first = 0;
+			int last = this._pools.length - 1;
+			if (this._kind == Kind.CRUISE) {
+				first = last = ShardSet.indexOf((Integer) row.values[0], this._pools.length);
+			}
+			for (int i = first; i <= last; ++i) {
+				List<Row> batch = batches.get(i);
+				batch.add(row);
+				if (batch.size() == this._batchSize) {
+					flush(i, batch);
+					batch.clear();
+				}
+			}
+		}//end while
+		for (int i = 0; i < batches.size(); ++i) {
+			if (!batches.get(i).isEmpty()) {
+				flush(i, batches.get(i));
+			}
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Inserted %d rows, rejected %d, in %.2fs (%.0f rows/s)%n",
+			this._inserted, this._rejected, seconds, this._inserted / seconds);
+		return this._inserted;
+	}//end insertAll
+
+	//splits a line into typed values following the kind's signature
+	private Object[] parse(String line) {
+		String[] fields = line.split(",", -1);
+		String signature = this._kind.signature;
+		if (fields.length != signature.length()) {
+			throw new IllegalArgumentException("expected " + signature.length() + " fields but found " + fields.length);
+		}
+		Object[] values = new Object[fields.length];
+		for (int i = 0; i < fields.length; ++i) {
+			if (signature.charAt(i) == 'i') {
+				try {
+					values[i] = Integer.parseInt(fields[i].trim());
+				}catch (NumberFormatException e) {
+					throw new IllegalArgumentException("field " + (i + 1) + " is not an integer: " + fields[i]);
+				}
+			}
+			else {
+				values[i] = fields[i];
+			}
+		}
+		return values;
+	}
+
+	//inserts one batch in its own transaction on a shard
+	private void flush(int shard, List<Row> batch) throws SQLException {
+		try (PooledConnection pc = this._pools[shard].borrow()) {
+			Connection conn = pc.connection();
+			conn.setAutoCommit(false);
+			PreparedStatement ps = pc.prepare(this._sql);
+			try {
+				for (Row row : batch) {
+					bind(ps, row);
+					ps.addBatch();
+				}
+				int[] rows = ps.executeBatch();
+				conn.commit();
+				if (counts(shard)) {
+					for (int r : rows) {
+						//rewritten batches only say that the statement succeeded
+						this._inserted += r == Statement.SUCCESS_NO_INFO ? 1 : r;
+					}
+				}
+			}catch (SQLException e) {
+				conn.rollback();
+				replay(shard, conn, ps, batch);
+			}finally {
+				ps.clearBatch();
+			}
+		}
+	}//end flush
+
+	//inserts the rows of a failed batch one at a time to find the bad ones
+	private void replay(int shard, Connection conn, PreparedStatement ps, List<Row> batch) throws SQLException {
+		ps.clearBatch();
+		for (Row row : batch) {
+			Savepoint sp = conn.setSavepoint();
+			try {
+				bind(ps, row);
+				int rows = ps.executeUpdate();
+				conn.releaseSavepoint(sp);
+				if (counts(shard)) {
+					this._inserted += rows;
+				}
+			}catch (SQLException e) {
+				conn.rollback(sp);
+				reject(shard, row.line, e.getMessage());
+			}
+		}
+		conn.commit();
+	}
+
+	private static void bind(PreparedStatement ps, Row row) throws SQLException {
+		for (int i = 0; i < row.values.length; ++i) {
+			ps.setObject(i + 1, row.values[i]);
+		}
+	}
+
+	//whether rows of a shard are counted, -1 for rows not sent anywhere; ships and captains only count on the first
+	private boolean counts(int shard) {
+		return shard <= 0 || this._kind == Kind.CRUISE;
+	}
+
+	private void reject(int shard, int line, String message) {
+		if (counts(shard)) {
+			++this._rejected;
+		}
+		System.err.println((this._pools.length > 1 && shard >= 0 ? "shard " + shard + ", " : "") + "line " + line + ": " + message);
+	}
+}//end BatchInserter
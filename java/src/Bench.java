@@ -0,0 +1,203 @@
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Benchmarks every DBproject operation through the same methods the menu
+ * uses.  Each operation runs for a warmup period and then a measured period
+ * on a number of threads sharing one DBproject; throughput and latency
+ * percentiles are printed per operation.  bookIfAbsent and lookupsAsync
+ * go through AsyncDBproject instead, to measure the pipelined flow.
+ *
+ * The write operations add rows and take seats, so run it against a scratch
+ * database seeded from data/*.csv (bench.sh reloads it first).
+ *
+ */
+
+public class Bench {
+	//ids used by the insert benchmarks start here to stay clear of the sample data
+	private static final int ID_BASE = 1000000;
+
+	//sizes of the sample data in data/*.csv
+	private static final int CUSTOMERS = 250;
+	private static final int CRUISES = 2000;
+	private static final int SHIPS = 67;
+	private static final int CAPTAINS = 250;
+	private static final int TECHNICIANS = 250;
+	private static final String[] REPAIR_CODES = { "MJ", "MN", "SV" };
+	private static final String[] STATUSES = { "W", "C", "R" };
+	private static final LocalDate DEPARTURES_FROM = LocalDate.of(2014, 4, 1);
+	private static final int DEPARTURE_DAYS = 61;
+
+	//runs the asynchronous operations, on the DBproject of main
+	private static volatile AsyncDBproject _async = null;
+
+	/**
+	 * One benchmarked operation.  seq is unique per call, for generating keys.
+	 */
+	interface Op {
+		void run(DBproject db, Random rnd, int seq) throws Exception;
+	}
+
+	static final Map<String, Op> OPS = new LinkedHashMap<String, Op>();
+	static {
+		OPS.put("addShip", (db, rnd, seq) -> db.addShip(ID_BASE + seq, "Bench", "B" + seq, 10, 1 + rnd.nextInt(499)));
+		OPS.put("addCaptain", (db, rnd, seq) -> db.addCaptain(ID_BASE + seq, "Bench Captain " + seq, "Nowhere"));
+		OPS.put("addCruise", (db, rnd, seq) -> db.addCruise(ID_BASE + seq, 100 + rnd.nextInt(900), 0, rnd.nextInt(4),
+			"2014-05-01 10:00", "2014-05-02 10:00", "BENCH", "BENCH"));
+		OPS.put("bookCruise", (db, rnd, seq) -> db.bookCruise(rnd.nextInt(CUSTOMERS), rnd.nextInt(CRUISES)));
+		OPS.put("checkReservation", (db, rnd, seq) -> db.checkReservation(rnd.nextInt(CUSTOMERS), rnd.nextInt(CRUISES)));
+		OPS.put("availableSeats", (db, rnd, seq) -> db.getAvailableSeats(rnd.nextInt(CRUISES)));
+		OPS.put("departures", (db, rnd, seq) -> {
+			String[] w = departureWindow(db, rnd);
+			db.findDepartures(w[0], w[1], w[2], 1);
+		});
+		//the same search answered by the database, for comparison; streaming bypasses the query cache
+		OPS.put("departuresSql", (db, rnd, seq) -> {
+			String[] w = departureWindow(db, rnd);
+			db.executeQueryStreaming(DepartureIndex.SQL_SEARCH, DBproject.DEFAULT_FETCH_SIZE, row -> { },
+				DepartureIndex.searchParams(w[0], LocalDate.parse(w[1]), LocalDate.parse(w[2]), 1));
+		});
+		OPS.put("earliestRoute", (db, rnd, seq) -> {
+			String[] w = departureWindow(db, rnd);
+			db.planRoute(w[0], routePort(db, rnd), w[1], DBproject.DEFAULT_CONNECT_DAYS, false);
+		});
+		OPS.put("cheapestRoute", (db, rnd, seq) -> {
+			String[] w = departureWindow(db, rnd);
+			db.planRoute(w[0], routePort(db, rnd), w[1], DBproject.DEFAULT_CONNECT_DAYS, true);
+		});
+		OPS.put("addRepair", (db, rnd, seq) -> db.addRepair(ID_BASE + seq, "2016-06-01", REPAIR_CODES[rnd.nextInt(REPAIR_CODES.length)],
+			rnd.nextInt(CAPTAINS), rnd.nextInt(SHIPS), rnd.nextInt(TECHNICIANS)));
+		OPS.put("repairsPerShip", (db, rnd, seq) -> db.getRepairsPerShip());
+		OPS.put("topRepairs", (db, rnd, seq) -> db.getMostRepairedShips(10));
+		OPS.put("repairsInYear", (db, rnd, seq) -> {
+			int year = 2013 + rnd.nextInt(4);
+			db.getMostRepairedShips(year + "-01-01", (year + 1) + "-01-01", 10);
+		});
+		OPS.put("statusCount", (db, rnd, seq) -> db.countPassengersWithStatus(STATUSES[rnd.nextInt(STATUSES.length)]));
+		OPS.put("cruiseStatusCount", (db, rnd, seq) -> db.countPassengersByStatus(rnd.nextInt(CRUISES)));
+		//the booking flow through AsyncDBproject: the check and the booking chained without blocking a thread
+		OPS.put("bookIfAbsent", (db, rnd, seq) -> _async.bookIfAbsent(rnd.nextInt(CUSTOMERS), rnd.nextInt(CRUISES)).join());
+		//independent lookups started together and waited for once
+		OPS.put("lookupsAsync", (db, rnd, seq) -> {
+			String[] w = departureWindow(db, rnd);
+			CompletableFuture.allOf(_async.checkReservation(rnd.nextInt(CUSTOMERS), rnd.nextInt(CRUISES)),
+				_async.findDepartures(w[0], w[1], w[2], 1), _async.getMostRepairedShips(10)).join();
+		});
+	}
+
+	private static volatile String[] _ports = null;
+
+	//a random port of the sample data and a week in the months its cruises depart
+	private static String[] departureWindow(DBproject db, Random rnd) {
+		String[] ports = _ports;
+		if (ports == null) {
+			ports = db.getDepartureIndex().ports();
+			_ports = ports;
+		}
+		LocalDate from = DEPARTURES_FROM.plusDays(rnd.nextInt(DEPARTURE_DAYS));
+		return new String[] { ports[rnd.nextInt(ports.length)], from.toString(), from.plusDays(7).toString() };
+	}
+
+	private static volatile String[] _routePorts = null;
+
+	//a random departure or arrival port of the sample data
+	private static String routePort(DBproject db, Random rnd) {
+		String[] ports = _routePorts;
+		if (ports == null) {
+			ports = db.getRoutePlanner().ports();
+			_routePorts = ports;
+		}
+		return ports[rnd.nextInt(ports.length)];
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java " + Bench.class.getName()
+				+ " <dbname> <port> <user> [--threads <n>] [--warmup <s>] [--seconds <s>] [--ops <op,op,...>]");
+			System.err.println("Operations: " + String.join(",", OPS.keySet()));
+			return;
+		}
+		int threads = 4;
+		int warmup = 5;
+		int seconds = 10;
+		List<String> ops = new ArrayList<String>(OPS.keySet());
+		for (int i = 3; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+				case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+				case "--warmup": warmup = Integer.parseInt(args[i + 1]); break;
+				case "--seconds": seconds = Integer.parseInt(args[i + 1]); break;
+				case "--ops": ops = java.util.Arrays.asList(args[i + 1].split(",")); break;
+				default: throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+
+		Class.forName("org.postgresql.Driver");
+		DBproject db = new DBproject(args[0], args[1], args[2], "", Math.max(threads, DBproject.DEFAULT_POOL_SIZE));
+		_async = new AsyncDBproject(db);
+		try {
+			System.out.printf("%-16s %10s %12s %10s %10s %10s %10s %10s %8s%n",
+				"operation", "ops", "ops/s", "mean(us)", "p50(us)", "p90(us)", "p99(us)", "p99.9(us)", "errors");
+			AtomicInteger seq = new AtomicInteger();
+			for (String name : ops) {
+				Op op = OPS.get(name);
+				if (op == null) {
+					throw new IllegalArgumentException("unknown operation " + name);
+				}
+				run(db, op, threads, warmup, seq);
+				Result r = run(db, op, threads, seconds, seq);
+				LatencyHistogram h = r.latencies;
+				System.out.printf("%-16s %10d %12.1f %10.1f %10.1f %10.1f %10.1f %10.1f %8d%n",
+					name, h.getCount(), h.getCount() / (double) seconds, h.getMean() / 1e3,
+					h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(90) / 1e3,
+					h.getValueAtPercentile(99) / 1e3, h.getValueAtPercentile(99.9) / 1e3, r.errors);
+			}
+			System.out.println(db.getPool().getStats());
+		}finally {
+			_async.close();
+			db.cleanup();
+		}
+	}//end main
+
+	private static class Result {
+		final LatencyHistogram latencies = new LatencyHistogram();
+		long errors = 0;
+	}
+
+	//runs op on every thread for the given time and merges their histograms
+	private static Result run(final DBproject db, final Op op, int threads, int seconds, final AtomicInteger seq)
+			throws InterruptedException {
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final Result[] partial = new Result[threads];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; ++t) {
+			final Result r = partial[t] = new Result();
+			final Random rnd = new Random(t);
+			workers[t] = new Thread(() -> {
+				while (System.nanoTime() < deadline) {
+					long start = System.nanoTime();
+					try {
+						op.run(db, rnd, seq.getAndIncrement());
+						r.latencies.record(System.nanoTime() - start);
+					}catch (Exception e) {
+						++r.errors;
+					}
+				}
+			}, "bench-" + t);
+			workers[t].start();
+		}
+		Result total = new Result();
+		for (int t = 0; t < threads; ++t) {
+			workers[t].join();
+			total.latencies.add(partial[t].latencies);
+			total.errors += partial[t].errors;
+		}
+		return total;
+	}//end run
+}//end Bench
@@ -0,0 +1,156 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Books cruises without overselling.  The capacity check, the num_sold
+ * increment and the reservation insert are one SQL statement: the
+ * conditional UPDATE of the Cruise row takes the row lock and re-checks
+ * num_sold &lt; seats against the latest committed value, so two bookers can
+ * never both take the last seat.  The reservation is confirmed when the
+ * UPDATE claimed a seat and waitlisted otherwise.
+ *
+ * The statement runs in its own transaction and is retried with jittered
+ * backoff on serialization failures and deadlocks.
+ *
+ */
+
+public class BookingEngine {
+	static final String SQL_BOOK =
+		"WITH seat AS ("
+		+ " UPDATE Cruise C SET num_sold = C.num_sold + 1"
+		+ " FROM CruiseInfo CI, Ship S"
+		+ " WHERE C.cnum = ? AND CI.cruise_id = C.cnum AND CI.ship_id = S.id AND C.num_sold < S.seats"
+		+ " RETURNING S.seats - C.num_sold AS seats_left),"
+		+ " booked AS ("
+		+ " INSERT INTO Reservation (rnum, ccid, cid, status)"
+		+ " SELECT ?, ?, ?, CASE WHEN EXISTS (SELECT 1 FROM seat) THEN 'C' ELSE 'W' END"
+		+ " RETURNING status)"
+		+ " SELECT booked.status, (SELECT seats_left FROM seat) FROM booked";
+
+	//SQLSTATEs worth retrying: serialization_failure and deadlock_detected
+	private static final String SERIALIZATION_FAILURE = "40001";
+	private static final String DEADLOCK_DETECTED = "40P01";
+
+	private final ConnectionPool _pool;
+	private int _isolation = Connection.TRANSACTION_READ_COMMITTED;
+	private int _maxAttempts = 10;
+	private long _baseBackoffMillis = 2;
+	private Metrics _metrics = null;
+
+	/**
+	 * The outcome of a booking.
+	 */
+	public static class Booking {
+		//the reservation number
+		public final int rnum;
+		//'C' when a seat was claimed, 'W' when waitlisted
+		public final String status;
+		//seats left on the cruise after this booking, -1 when waitlisted
+		public final int seatsLeft;
+		//number of attempts the booking took
+		public final int attempts;
+
+		Booking(int rnum, String status, int seatsLeft, int attempts) {
+			this.rnum = rnum;
+			this.status = status;
+			this.seatsLeft = seatsLeft;
+			this.attempts = attempts;
+		}
+
+		public boolean isConfirmed() {
+			return "C".equals(this.status);
+		}
+	}//end Booking
+
+	public BookingEngine(ConnectionPool pool) {
+		this._pool = pool;
+	}
+
+	/**
+	 * @param isolation a java.sql.Connection TRANSACTION_* level
+	 */
+	public void setIsolation(int isolation) { this._isolation = isolation; }
+	public void setMaxAttempts(int maxAttempts) { this._maxAttempts = maxAttempts; }
+	public void setBaseBackoffMillis(long baseBackoffMillis) { this._baseBackoffMillis = baseBackoffMillis; }
+	/**
+	 * @param metrics where every attempt of the booking statement is recorded, or null
+	 */
+	public void setMetrics(Metrics metrics) { this._metrics = metrics; }
+
+	/**
+	 * Books a cruise for a customer as one atomic step.
+	 *
+	 * @param rnum the reservation number to use
+	 * @param ccid the customer id
+	 * @param cid the cruise number
+	 * @return the booking, confirmed or waitlisted
+	 * @throws java.sql.SQLException when the booking failed or kept conflicting
+	 */
+	public Booking book(int rnum, int ccid, int cid) throws SQLException {
+		for (int attempt = 1; ; ++attempt) {
+			try (PooledConnection pc = this._pool.borrow()) {
+				Connection conn = pc.connection();
+				conn.setAutoCommit(false);
+				conn.setTransactionIsolation(this._isolation);
+				Metrics.Timer timer = this._metrics == null ? null : this._metrics.statement(SQL_BOOK);
+				long start = System.nanoTime();
+				try {
+					Booking booking = execute(pc, rnum, ccid, cid, attempt);
+					conn.commit();
+					if (timer != null) {
+						timer.record(System.nanoTime() - start, 1);
+					}
+					return booking;
+				}catch (SQLException e) {
+					if (timer != null) {
+						timer.failed(System.nanoTime() - start);
+					}
+					conn.rollback();
+					if (!isRetryable(e) || attempt >= this._maxAttempts) {
+						throw e;
+					}
+				}finally {
+					conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+				}
+			}
+			backoff(attempt);
+		}
+	}//end book
+
+	private static Booking execute(PooledConnection pc, int rnum, int ccid, int cid, int attempt) throws SQLException {
+		PreparedStatement ps = pc.prepare(SQL_BOOK);
+		ps.setInt(1, cid);
+		ps.setInt(2, rnum);
+		ps.setInt(3, ccid);
+		ps.setInt(4, cid);
+		try (ResultSet rs = ps.executeQuery()) {
+			rs.next();
+			String status = rs.getString(1);
+			int seatsLeft = rs.getInt(2);
+			if (rs.wasNull()) {
+				seatsLeft = -1;
+			}
+			return new Booking(rnum, status, seatsLeft, attempt);
+		}
+	}
+
+	static boolean isRetryable(SQLException e) {
+		String state = e.getSQLState();
+		return SERIALIZATION_FAILURE.equals(state) || DEADLOCK_DETECTED.equals(state);
+	}
+
+	//exponential backoff with full jitter, capped at 64 times the base
+	private void backoff(int attempt) throws SQLException {
+		long cap = this._baseBackoffMillis << Math.min(attempt, 6);
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while retrying a booking");
+		}
+	}
+}//end BookingEngine
@@ -0,0 +1,315 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+
+/**
+ * Loads the data/*.csv files through the COPY protocol of the JDBC driver.
+ * Unlike the server-side COPY statements in sql/create.sql the files are
+ * streamed from the client, so the database does not have to run on the
+ * same machine.
+ *
+ * Tables are loaded in foreign key order: every table of a level is loaded
+ * in parallel on its own pooled connection, and a level starts only once
+ * the tables it references are complete.
+ *
+ */
+
+public class BulkLoader {
+	private static final int COPY_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * A table together with the CSV file and columns it is loaded from.
+	 */
+	static class Table {
+		final String name;
+		final String file;
+		final String columns;
+		//the column the table is split across shards by, -1 when every shard has every row
+		final int shardKey;
+
+		Table(String name, String file, String columns) {
+			this(name, file, columns, -1);
+		}
+
+		Table(String name, String file, String columns, int shardKey) {
+			this.name = name;
+			this.file = file;
+			this.columns = columns;
+			this.shardKey = shardKey;
+		}
+	}//end Table
+
+	//level n only references tables of earlier levels
+	static final Table[][] LEVELS = {
+		{
+			new Table("Customer", "customer.csv", "id, fname, lname, gtype, dob, address, phone, zipcode"),
+			new Table("Captain", "Captains.csv", "id, fullname, nationality"),
+			new Table("Ship", "Ships.csv", "id, make, model, age, seats"),
+			new Table("Technician", "technician.csv", "id, full_name"),
+			new Table("Cruise", "Cruises.csv", "cnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_port, departure_port", 0),
+		},
+		{
+			new Table("Reservation", "reservation.csv", "rnum, ccid, cid, status", 2),
+			new Table("CruiseInfo", "Cruiseinfo.csv", "ciid, cruise_id, captain_id, ship_id", 1),
+			new Table("Repairs", "repairs.csv", "rid, repair_date, repair_code, captain_id, ship_id, technician_id", 4),
+			new Table("Schedule", "schedule.csv", "id, cruiseNum, departure_time, arrival_time", 1),
+		},
+	};
+
+	private final ConnectionPool _pool;
+	private final File _dataDir;
+	//the shard loaded and the number of shards, see ShardSet
+	private int _shard = 0;
+	private int _shards = 1;
+
+	public BulkLoader(ConnectionPool pool, File dataDir) {
+		this._pool = pool;
+		this._dataDir = dataDir;
+	}
+
+	/**
+	 * Loads only the rows of one shard into the split tables, and every row
+	 * into the others.
+	 *
+	 * @param shard the shard loaded by this loader
+	 * @param shards the number of shards
+	 */
+	public void setShard(int shard, int shards) {
+		this._shard = shard;
+		this._shards = shards;
+	}
+
+	//the table name as printed, with the shard when there are several
+	private String label(Table table) {
+		return this._shards == 1 ? table.name : table.name + "@" + this._shard;
+	}
+
+	/**
+	 * Loads every table and prints progress and throughput to standard out.
+	 *
+	 * @param truncate empty the tables before loading them
+	 * @return the total number of rows loaded
+	 * @throws java.sql.SQLException when a COPY failed
+	 * @throws java.io.IOException when a file could not be read
+	 */
+	public long load(boolean truncate) throws SQLException, IOException {
+		if (truncate) {
+			truncateAll();
+		}
+		long start = System.nanoTime();
+		long rows = 0;
+		int width = 0;
+		for (Table[] level : LEVELS) {
+			width = Math.max(width, level.length);
+		}
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(width, this._pool.getMaxSize()));
+		try {
+			for (Table[] level : LEVELS) {
+				List<Future<Long>> pending = new ArrayList<Future<Long>>();
+				for (final Table table : level) {
+					pending.add(workers.submit(() -> copy(table)));
+				}
+				for (Future<Long> f : pending) {
+					rows += await(f);
+				}
+			}
+		}finally {
+			workers.shutdownNow();
+		}
+		resyncReservationSequence();
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Loaded %d rows in %.2fs (%.0f rows/s)%n", rows, seconds, rows / seconds);
+		return rows;
+	}//end load
+
+	//streams one CSV file into its table
+	private long copy(Table table) throws SQLException, IOException {
+		File file = new File(this._dataDir, table.file);
+		String sql = "COPY " + table.name + " (" + table.columns + ") FROM STDIN WITH DELIMITER ','";
+		long start = System.nanoTime();
+		try (PooledConnection pc = this._pool.borrow();
+		     InputStream in = this._shards == 1 || table.shardKey < 0 ? new ProgressStream(label(table), file)
+				: new ShardFilter(new ProgressStream(label(table), file), table.shardKey, this._shard, this._shards)) {
+			CopyManager copy = pc.connection().unwrap(PGConnection.class).getCopyAPI();
+			long rows = copy.copyIn(sql, in, COPY_BUFFER_SIZE);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("\t%-12s %8d rows %8.2fs %10.0f rows/s%n", label(table), rows, seconds, rows / seconds);
+			return rows;
+		}
+	}
+
+	private void truncateAll() throws SQLException {
+		StringBuilder sql = new StringBuilder("TRUNCATE ");
+		for (Table[] level : LEVELS) {
+			for (Table table : level) {
+				sql.append(table.name).append(", ");
+			}
+		}
+		sql.setLength(sql.length() - 2);
+		try (PooledConnection pc = this._pool.borrow();
+		     Statement stmt = pc.connection().createStatement()) {
+			stmt.executeUpdate(sql.toString());
+		}
+	}
+
+	//moves the reservation sequence past the rows that were just loaded
+	private void resyncReservationSequence() throws SQLException {
+		try (PooledConnection pc = this._pool.borrow();
+		     Statement stmt = pc.connection().createStatement()) {
+			stmt.executeQuery("SELECT setval('" + DBproject.RESERVATION_SEQUENCE
+				+ "', (SELECT COALESCE(MAX(rnum), 0) + 1 FROM Reservation), false)").close();
+		}
+	}
+
+	private static long await(Future<Long> f) throws SQLException, IOException {
+		try {
+			return f.get();
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while loading");
+		}catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Passes on the lines of a delimited file whose key column belongs to
+	 * one shard.
+	 */
+	private static class ShardFilter extends InputStream {
+		private final BufferedReader _lines;
+		private final int _column;
+		private final int _shard;
+		private final int _shards;
+		private byte[] _line = new byte[0];
+		private int _at = 0;
+
+		ShardFilter(InputStream in, int column, int shard, int shards) {
+			this._lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), COPY_BUFFER_SIZE);
+			this._column = column;
+			this._shard = shard;
+			this._shards = shards;
+		}
+
+		//moves to the next line of the shard, false at the end of the file
+		private boolean advance() throws IOException {
+			String line;
+			while ((line = this._lines.readLine()) != null) {
+				if (line.isEmpty() || ShardSet.indexOf(key(line), this._shards) == this._shard) {
+					this._line = (line + "\n").getBytes(StandardCharsets.UTF_8);
+					this._at = 0;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private int key(String line) throws IOException {
+			int start = 0;
+			for (int i = 0; i < this._column; ++i) {
+				start = line.indexOf(',', start) + 1;
+				if (start == 0) {
+					throw new IOException("no column " + (this._column + 1) + " in line: " + line);
+				}
+			}
+			int end = line.indexOf(',', start);
+			try {
+				return Integer.parseInt(line.substring(start, end < 0 ? line.length() : end).trim());
+			}catch (NumberFormatException e) {
+				throw new IOException("column " + (this._column + 1) + " is not a number in line: " + line);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (this._at == this._line.length && !advance()) {
+				return -1;
+			}
+			return this._line[this._at++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (this._at == this._line.length && !advance()) {
+				return -1;
+			}
+			int n = Math.min(len, this._line.length - this._at);
+			System.arraycopy(this._line, this._at, buf, off, n);
+			this._at += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this._lines.close();
+		}
+	}//end ShardFilter
+
+	/**
+	 * File stream that prints how far it has been read, at most once a second.
+	 */
+	private static class ProgressStream extends FilterInputStream {
+		private final String _name;
+		private final long _length;
+		private long _read = 0;
+		private long _lastReport = System.nanoTime();
+
+		ProgressStream(String name, File file) throws IOException {
+			super(new BufferedInputStream(new FileInputStream(file), COPY_BUFFER_SIZE));
+			this._name = name;
+			this._length = Math.max(1, file.length());
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				advance(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			int n = super.read(buf, off, len);
+			if (n > 0) {
+				advance(n);
+			}
+			return n;
+		}
+
+		private void advance(int n) {
+			long read = (this._read += n);
+			long now = System.nanoTime();
+			if (now - this._lastReport >= 1000000000L) {
+				this._lastReport = now;
+				System.out.printf("\t%-12s %5.1f%%%n", this._name, 100.0 * read / this._length);
+			}
+		}
+	}//end ProgressStream
+}//end BulkLoader
@@ -0,0 +1,329 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+
+/**
+ * Listens for the notifications the triggers of sql/create_notify.sql send
+ * on every write, and hands the rows other processes changed to a handler
+ * that drops or reloads what it keeps in memory about them.  Writes made
+ * through the pool of this process are skipped, since the paths making them
+ * update the caches themselves.
+ *
+ * The listener holds one connection of its own outside the pool.  A burst
+ * of notifications is collected until the channel stays quiet for a moment,
+ * and handed over as one change per table with the distinct keys, so a
+ * thousand bookings on one cruise cost one invalidation.  Postgres keeps no
+ * notifications for a session that is not listening, so whenever the
+ * connection has to be opened again the handler is told that every table
+ * changed.
+ *
+ */
+
+public class ChangeListener implements AutoCloseable {
+	//the channel of sql/create_notify.sql
+	public static final String CHANNEL = "dbproject_changes";
+	//a burst ends once no notification came for this long
+	public static final int QUIET_MILLIS = 50;
+	//the longest a burst is held before it is handed over
+	public static final int MAX_HOLD_MILLIS = 500;
+	//keys kept per table and burst before the whole table counts as changed
+	public static final int MAX_KEYS = 1024;
+	//idle time after which the connection is checked
+	public static final int IDLE_CHECK_MILLIS = 5000;
+	private static final long MAX_BACKOFF_MILLIS = 30000;
+
+	//operations in Change.ops
+	public static final int INSERT = 1;
+	public static final int UPDATE = 2;
+	public static final int DELETE = 4;
+	//an UPDATE of Cruise.num_sold and nothing else
+	public static final int SEATS = 8;
+	private static final int ANY = INSERT | UPDATE | DELETE | SEATS;
+
+	/**
+	 * The rows of one table changed by other processes.
+	 */
+	public static class Change {
+		//lower case, or null when any table may have changed
+		public final String table;
+		//the distinct keys named by the triggers, or null when any row may have changed
+		public final int[] keys;
+		//the operations seen, a mask of INSERT, UPDATE, DELETE and SEATS
+		public final int ops;
+
+		Change(String table, int[] keys, int ops) {
+			this.table = table;
+			this.keys = keys;
+			this.ops = ops;
+		}
+
+		/**
+		 * @return true when notifications may have been missed, so that every table is suspect
+		 */
+		public boolean everything() {
+			return this.table == null;
+		}
+
+		/**
+		 * @param mask operations
+		 * @return true when no other operation was seen
+		 */
+		public boolean only(int mask) {
+			return (this.ops & ~mask) == 0;
+		}
+	}
+
+	/**
+	 * Receives the changes of one burst, on the listener thread.
+	 */
+	interface Handler {
+		void changed(List<Change> changes);
+	}
+
+	//the changes of one table collected during a burst
+	private static class Pending {
+		IntIntMap keys = new IntIntMap(16);
+		int ops = 0;
+	}
+
+	private final ConnectionPool _pool;
+	private final Handler _handler;
+
+	private volatile Connection _connection = null;
+	private Thread _thread = null;
+	private volatile boolean _closed = false;
+
+	private final LongAdder _notifications = new LongAdder();
+	private final LongAdder _own = new LongAdder();
+	private final LongAdder _bursts = new LongAdder();
+	private final LongAdder _flushes = new LongAdder();
+	private final LongAdder _reconnects = new LongAdder();
+
+	/**
+	 * @param pool the pool whose url the connection uses and whose writes are skipped
+	 * @param handler what applies the changes
+	 */
+	public ChangeListener(ConnectionPool pool, Handler handler) {
+		this._pool = pool;
+		this._handler = handler;
+	}
+
+	/**
+	 * Starts listening.  The first connection is opened before returning, so
+	 * state loaded afterwards misses no change; when that fails the listener
+	 * keeps trying in the background and reports every table as changed once
+	 * it succeeds.
+	 */
+	public synchronized void start() {
+		if (this._thread != null) {
+			return;
+		}
+		boolean listening;
+		try {
+			listen();
+			listening = true;
+		}catch (SQLException e) {
+			System.err.println("Unable to listen for changes of other clients: " + e.getMessage());
+			listening = false;
+		}
+		final boolean missed = !listening;
+		this._thread = new Thread(() -> run(missed), "change-listener");
+		this._thread.setDaemon(true);
+		this._thread.start();
+	}
+
+	private void listen() throws SQLException {
+		Connection conn = this._pool.connect();
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute("LISTEN " + CHANNEL);
+		}catch (SQLException e) {
+			conn.close();
+			throw e;
+		}
+		this._connection = conn;
+	}
+
+	private void run(boolean missed) {
+		long backoff = 100;
+		while (!this._closed) {
+			try {
+				if (this._connection == null) {
+					listen();
+					this._reconnects.increment();
+					backoff = 100;
+				}
+				if (missed) {
+					missed = false;
+					this._flushes.increment();
+					deliver(Collections.singletonList(new Change(null, null, ANY)));
+				}
+				PGConnection pg = this._connection.unwrap(PGConnection.class);
+				PGNotification[] received = pg.getNotifications(IDLE_CHECK_MILLIS);
+				if (received == null || received.length == 0) {
+					if (!this._connection.isValid(IDLE_CHECK_MILLIS / 1000)) {
+						throw new SQLException("the connection stopped answering");
+					}
+					continue;
+				}
+				Map<String, Pending> burst = new LinkedHashMap<String, Pending>();
+				collect(burst, received);
+				long deadline = System.currentTimeMillis() + MAX_HOLD_MILLIS;
+				while (System.currentTimeMillis() < deadline) {
+					received = pg.getNotifications(QUIET_MILLIS);
+					if (received == null || received.length == 0) {
+						break;
+					}
+					collect(burst, received);
+				}
+				if (!burst.isEmpty()) {
+					this._bursts.increment();
+					deliver(changes(burst));
+				}
+			}catch (SQLException e) {
+				if (this._closed) {
+					return;
+				}
+				if (this._connection != null) {
+					System.err.println("Lost the change notification connection: " + e.getMessage());
+				}
+				disconnect();
+				missed = true;
+				try {
+					Thread.sleep(backoff);
+				}catch (InterruptedException ie) {
+					return;
+				}
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+			}
+		}
+	}//end run
+
+	//adds notifications to a burst, skipping those sent by this process
+	private void collect(Map<String, Pending> burst, PGNotification[] received) {
+		for (PGNotification n : received) {
+			this._notifications.increment();
+			if (!CHANNEL.equals(n.getName())) {
+				continue;
+			}
+			if (this._pool.isOwnBackend(n.getPID())) {
+				this._own.increment();
+				continue;
+			}
+			//"<table> <op> <key>", or "<table> *"
+			String[] parts = n.getParameter().trim().split(" ");
+			String table = parts[0].toLowerCase(Locale.ROOT);
+			Pending p = burst.get(table);
+			if (p == null) {
+				p = new Pending();
+				burst.put(table, p);
+			}
+			int op = parts.length == 3 ? op(parts[1]) : ANY;
+			int key = 0;
+			boolean keyed = op != ANY;
+			if (keyed) {
+				try {
+					key = Integer.parseInt(parts[2]);
+				}catch (NumberFormatException e) {
+					keyed = false;
+					op = ANY;
+				}
+			}
+			p.ops |= op;
+			if (!keyed) {
+				p.keys = null;
+			}
+			else if (p.keys != null) {
+				p.keys.put(key, 0);
+				if (p.keys.size() > MAX_KEYS) {
+					p.keys = null;
+				}
+			}
+		}
+	}//end collect
+
+	private static int op(String op) {
+		switch (op) {
+			case "I": return INSERT;
+			case "U": return UPDATE;
+			case "D": return DELETE;
+			case "S": return SEATS;
+			default: return ANY;
+		}
+	}
+
+	private static List<Change> changes(Map<String, Pending> burst) {
+		List<Change> changes = new ArrayList<Change>(burst.size());
+		for (Map.Entry<String, Pending> e : burst.entrySet()) {
+			Pending p = e.getValue();
+			int[] keys = null;
+			if (p.keys != null) {
+				final int[] found = new int[p.keys.size()];
+				final int[] n = { 0 };
+				p.keys.forEach((key, unused) -> found[n[0]++] = key);
+				keys = found;
+			}
+			changes.add(new Change(e.getKey(), keys, p.ops));
+		}
+		return changes;
+	}
+
+	private void deliver(List<Change> changes) {
+		try {
+			this._handler.changed(changes);
+		}catch (RuntimeException e) {
+			//the next burst is still applied
+			System.err.println("Unable to apply the changes of other clients: " + e);
+		}
+	}
+
+	private void disconnect() {
+		Connection conn = this._connection;
+		this._connection = null;
+		if (conn != null) {
+			try {
+				conn.close();
+			}catch (SQLException e) {
+				// ignored.
+			}
+		}
+	}
+
+	/**
+	 * Stops listening and closes the connection.
+	 */
+	@Override
+	public synchronized void close() {
+		this._closed = true;
+		if (this._thread != null) {
+			this._thread.interrupt();
+		}
+		//also wakes the thread up from a blocking read
+		disconnect();
+	}
+
+	public boolean isListening() { return this._connection != null; }
+	public long getNotificationCount() { return this._notifications.sum(); }
+	public long getOwnCount() { return this._own.sum(); }
+	public long getBurstCount() { return this._bursts.sum(); }
+	public long getFlushCount() { return this._flushes.sum(); }
+	public long getReconnectCount() { return this._reconnects.sum(); }
+
+	/**
+	 * @return a one line summary of the listener counters
+	 */
+	public String getStats() {
+		return String.format("changes: listening=%b notifications=%d own=%d bursts=%d flushes=%d reconnects=%d",
+			isListening(), getNotificationCount(), getOwnCount(), getBurstCount(), getFlushCount(),
+			getReconnectCount());
+	}
+}//end ChangeListener
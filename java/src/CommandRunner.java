@@ -0,0 +1,414 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Runs DBproject operations from text commands without any prompts, one
+ * command per line:
+ *
+ *   ship &lt;id&gt; &lt;make&gt; &lt;model&gt; &lt;age&gt; &lt;seats&gt;
+ *   captain &lt;id&gt; &lt;fullname&gt; &lt;nationality&gt;
+ *   cruise &lt;cnum&gt; &lt;cost&gt; &lt;num_sold&gt; &lt;num_stops&gt; &lt;departure&gt; &lt;arrival&gt; &lt;arrival_port&gt; &lt;departure_port&gt;
+ *   book &lt;ccid&gt; &lt;cid&gt;
+ *   reservation &lt;ccid&gt; &lt;cid&gt;
+ *   setstatus &lt;ccid&gt; &lt;cid&gt; &lt;W|C|R&gt;
+ *   cancel &lt;ccid&gt; &lt;cid&gt;
+ *   promote &lt;cid&gt;...
+ *   seats &lt;cnum&gt;
+ *   departures &lt;port|*&gt; &lt;from&gt; &lt;until&gt; [&lt;seats&gt;]
+ *   route &lt;earliest|cheapest&gt; &lt;from_port&gt; &lt;to_port&gt; &lt;day&gt; [&lt;connect_days&gt;]
+ *   repair &lt;rid&gt; &lt;date&gt; &lt;code&gt; &lt;captain_id&gt; &lt;ship_id&gt; &lt;technician_id&gt;
+ *   repairs [&lt;k&gt;]
+ *   repairs &lt;from&gt; &lt;until&gt; [&lt;k&gt;]
+ *   count &lt;W|C|R&gt; [&lt;cid&gt;]
+ *
+ * Arguments containing spaces are put in double quotes.  Blank lines and
+ * lines starting with '#' are skipped.
+ *
+ * Every command produces one tab separated line: the line number of the
+ * command, "ok" or "error", the command name and then its results or the
+ * error message.  repairs prints one line per ship, the k most repaired ships
+ * when k is given, counting only the repairs from one day up to (not
+ * including) another when two dates are given.  cancel prints the number of
+ * reservations cancelled and promoted, then like promote one line per
+ * promoted reservation: its rnum, ccid and cid.  departures prints one line
+ * per cruise leaving the port (any port for *) from one day up to (not
+ * including) another with at least the given seats left (default 1): its
+ * cnum, departure day and seats left.  route prints one line per leg of the
+ * trip departing on or after the day that arrives first or costs least:
+ * its cnum, ports, days and cost; no lines when the ports are not
+ * connected.  With several threads commands run concurrently and their
+ * lines may come out of order; the line number ties each result to its
+ * command.  Output is flushed whenever no command is waiting, and once it
+ * cannot be written no further commands are read.
+ *
+ */
+
+public class CommandRunner {
+	//marks the end of the input for the worker threads
+	private static final Command END = new Command(0, null);
+
+	private static class Command {
+		final long line;
+		final String text;
+
+		Command(long line, String text) {
+			this.line = line;
+			this.text = text;
+		}
+	}
+
+	private final DBproject _db;
+	private final Writer _out;
+	private final AtomicLong _ok = new AtomicLong();
+	private final AtomicLong _errors = new AtomicLong();
+	//the first failure writing the output; reading stops once it is set
+	private volatile IOException _outputFailure = null;
+
+	/**
+	 * @param db the instance the commands run against
+	 * @param out where results are written
+	 */
+	public CommandRunner(DBproject db, OutputStream out) {
+		this._db = db;
+		this._out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	/**
+	 * Runs every command of the input and prints a summary on standard error.
+	 *
+	 * @param in the commands, one per line
+	 * @param threads the number of commands run concurrently
+	 * @return the number of commands that failed
+	 * @throws java.io.IOException when the input could not be read or the output written
+	 * @throws java.lang.InterruptedException when interrupted while waiting for workers
+	 */
+	public long run(BufferedReader in, int threads) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		if (threads <= 1) {
+			String text;
+			long line = 0;
+			while (this._outputFailure == null && (text = in.readLine()) != null) {
+				execute(new Command(++line, text));
+				//flush whenever the producer is not ahead of us, so pipes stay interactive
+				if (!in.ready()) {
+					flush();
+				}
+			}
+		}
+		else {
+			runConcurrently(in, threads);
+		}
+		flush();
+		if (this._outputFailure != null) {
+			throw this._outputFailure;
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long total = this._ok.get() + this._errors.get();
+		System.err.printf("%d commands, %d errors in %.2fs (%.0f commands/s)%n",
+			total, this._errors.get(), seconds, total / seconds);
+		return this._errors.get();
+	}//end run
+
+	//one reader feeding a bounded queue, so a fast producer cannot exhaust memory
+	private void runConcurrently(BufferedReader in, int threads) throws IOException, InterruptedException {
+		final BlockingQueue<Command> queue = new ArrayBlockingQueue<Command>(threads * 64);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; ++t) {
+			workers[t] = new Thread(() -> {
+				try {
+					Command c;
+					while ((c = queue.take()) != END) {
+						try {
+							execute(c);
+						}catch (RuntimeException e) {
+							//counted, and the worker keeps draining the queue
+							this._errors.incrementAndGet();
+							System.err.println("line " + c.line + ": " + e);
+						}
+						//flush whenever no command is waiting, as run() does
+						if (queue.isEmpty()) {
+							flush();
+						}
+					}
+				}catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}, "command-" + t);
+			workers[t].start();
+		}
+		try {
+			String text;
+			long line = 0;
+			while (this._outputFailure == null && (text = in.readLine()) != null) {
+				queue.put(new Command(++line, text));
+			}
+		}finally {
+			for (int t = 0; t < threads; ++t) {
+				queue.put(END);
+			}
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		}
+	}
+
+	private void execute(Command c) {
+		String trimmed = c.text.trim();
+		if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+			return;
+		}
+		List<String> args = tokenize(trimmed);
+		String name = args.get(0);
+		StringBuilder result = new StringBuilder(64);
+		try {
+			dispatch(name, args, c.line, result);
+			this._ok.incrementAndGet();
+		}catch (Exception e) {
+			this._errors.incrementAndGet();
+			result.setLength(0);
+			line(result, c.line, "error", name).append('\t').append(clean(e.getMessage())).append('\n');
+		}
+		write(result);
+	}
+
+	//runs one command and appends its result lines
+	private void dispatch(String name, List<String> a, long line, StringBuilder out) throws Exception {
+		switch (name) {
+			case "ship":
+				arity(a, 5);
+				this._db.addShip(num(a, 1), a.get(2), a.get(3), num(a, 4), num(a, 5));
+				line(out, line, "ok", name).append('\n');
+				break;
+			case "captain":
+				arity(a, 3);
+				this._db.addCaptain(num(a, 1), a.get(2), a.get(3));
+				line(out, line, "ok", name).append('\n');
+				break;
+			case "cruise":
+				arity(a, 8);
+				this._db.addCruise(num(a, 1), num(a, 2), num(a, 3), num(a, 4), a.get(5), a.get(6), a.get(7), a.get(8));
+				line(out, line, "ok", name).append('\n');
+				break;
+			case "book": {
+				arity(a, 2);
+				BookingEngine.Booking b = this._db.bookCruise(num(a, 1), num(a, 2));
+				line(out, line, "ok", name).append('\t').append(b.rnum).append('\t').append(b.status)
+					.append('\t').append(b.seatsLeft).append('\n');
+				break;
+			}
+			case "reservation": {
+				arity(a, 2);
+				String status = this._db.getReservationStatus(num(a, 1), num(a, 2));
+				line(out, line, "ok", name).append('\t').append(status == null ? "" : status).append('\n');
+				break;
+			}
+			case "setstatus":
+				arity(a, 3);
+				line(out, line, "ok", name).append('\t')
+					.append(this._db.setReservationStatus(num(a, 1), num(a, 2), status(a, 3))).append('\n');
+				break;
+			case "cancel": {
+				arity(a, 2);
+				WaitlistEngine.Outcome outcome = this._db.cancelReservation(num(a, 1), num(a, 2));
+				line(out, line, "ok", name).append('\t').append(outcome.previous.size())
+					.append('\t').append(outcome.promoted.size()).append('\n');
+				promotions(out, line, name, outcome);
+				break;
+			}
+			case "promote": {
+				if (a.size() < 2) {
+					throw new IllegalArgumentException("expected at least 1 argument but found 0");
+				}
+				int[] cids = new int[a.size() - 1];
+				for (int i = 0; i < cids.length; ++i) {
+					cids[i] = num(a, i + 1);
+				}
+				promotions(out, line, name, this._db.promoteWaitlist(cids));
+				break;
+			}
+			case "seats": {
+				arity(a, 1);
+				int seats = this._db.getAvailableSeats(num(a, 1));
+				if (seats == SeatCache.MISSING) {
+					throw new IllegalArgumentException("no ship is assigned to cruise " + a.get(1));
+				}
+				line(out, line, "ok", name).append('\t').append(seats).append('\n');
+				break;
+			}
+			case "departures": {
+				if (a.size() != 4 && a.size() != 5) {
+					throw new IllegalArgumentException("expected 3 or 4 arguments but found " + (a.size() - 1));
+				}
+				String port = a.get(1).equals("*") ? null : a.get(1);
+				for (DepartureIndex.Departure d : this._db.findDepartures(port, a.get(2), a.get(3), a.size() == 5 ? num(a, 4) : 1)) {
+					line(out, line, "ok", name).append('\t').append(d.cnum).append('\t').append(d.date)
+						.append('\t').append(d.seats).append('\n');
+				}
+				break;
+			}
+			case "route": {
+				if (a.size() != 5 && a.size() != 6) {
+					throw new IllegalArgumentException("expected 4 or 5 arguments but found " + (a.size() - 1));
+				}
+				if (!a.get(1).equals("earliest") && !a.get(1).equals("cheapest")) {
+					throw new IllegalArgumentException("route is earliest or cheapest");
+				}
+				RoutePlanner.Itinerary trip = this._db.planRoute(a.get(2), a.get(3), a.get(4),
+					a.size() == 6 ? num(a, 5) : DBproject.DEFAULT_CONNECT_DAYS, a.get(1).equals("cheapest"));
+				if (trip != null) {
+					for (RoutePlanner.Leg leg : trip.legs) {
+						line(out, line, "ok", name).append('\t').append(leg.cnum).append('\t').append(leg.from)
+							.append('\t').append(leg.to).append('\t').append(leg.departs).append('\t').append(leg.arrives)
+							.append('\t').append(leg.cost).append('\n');
+					}
+				}
+				break;
+			}
+			case "repair":
+				arity(a, 6);
+				this._db.addRepair(num(a, 1), a.get(2), a.get(3), num(a, 4), num(a, 5), num(a, 6));
+				line(out, line, "ok", name).append('\n');
+				break;
+			case "repairs": {
+				List<int[]> ships;
+				if (a.size() <= 2) {
+					ships = this._db.getMostRepairedShips(a.size() == 2 ? num(a, 1) : Integer.MAX_VALUE);
+				}
+				else if (a.size() <= 4) {
+					ships = this._db.getMostRepairedShips(a.get(1), a.get(2), a.size() == 4 ? num(a, 3) : Integer.MAX_VALUE);
+				}
+				else {
+					throw new IllegalArgumentException("expected at most 3 arguments but found " + (a.size() - 1));
+				}
+				for (int[] ship : ships) {
+					line(out, line, "ok", name).append('\t').append(ship[0]).append('\t').append(ship[1]).append('\n');
+				}
+				break;
+			}
+			case "count":
+				if (a.size() == 3) {
+					int[] counts = this._db.countPassengersByStatus(num(a, 2));
+					line(out, line, "ok", name).append('\t').append(counts[StatusCounters.index(status(a, 1))]).append('\n');
+					break;
+				}
+				arity(a, 1);
+				line(out, line, "ok", name).append('\t').append(this._db.countPassengersWithStatus(status(a, 1))).append('\n');
+				break;
+			default:
+				throw new IllegalArgumentException("unknown command");
+		}
+	}//end dispatch
+
+	private static StringBuilder line(StringBuilder out, long line, String outcome, String name) {
+		return out.append(line).append('\t').append(outcome).append('\t').append(name);
+	}
+
+	private static void promotions(StringBuilder out, long line, String name, WaitlistEngine.Outcome outcome) {
+		for (WaitlistEngine.Promotion p : outcome.promoted) {
+			line(out, line, "ok", name).append('\t').append(p.rnum).append('\t').append(p.ccid)
+				.append('\t').append(p.cid).append('\n');
+		}
+	}
+
+	private static void arity(List<String> args, int n) {
+		if (args.size() - 1 != n) {
+			throw new IllegalArgumentException("expected " + n + " arguments but found " + (args.size() - 1));
+		}
+	}
+
+	private static int num(List<String> args, int i) {
+		try {
+			return Integer.parseInt(args.get(i));
+		}catch (NumberFormatException e) {
+			throw new IllegalArgumentException("argument " + i + " is not an integer: " + args.get(i));
+		}
+	}
+
+	private static String status(List<String> args, int i) {
+		String s = args.get(i);
+		if (!s.equals("W") && !s.equals("C") && !s.equals("R")) {
+			throw new IllegalArgumentException("status can only be W, C, or R");
+		}
+		return s;
+	}
+
+	//keeps error messages on one line and free of the field separator
+	private static String clean(String message) {
+		return message == null ? "" : message.replace('\t', ' ').replace('\n', ' ');
+	}
+
+	//splits on spaces, keeping double quoted arguments together
+	static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder current = new StringBuilder();
+		boolean quoted = false;
+		boolean inToken = false;
+		for (int i = 0; i < text.length(); ++i) {
+			char ch = text.charAt(i);
+			if (ch == '"') {
+				quoted = !quoted;
+				inToken = true;
+			}
+			else if (Character.isWhitespace(ch) && !quoted) {
+				if (inToken) {
+					tokens.add(current.toString());
+					current.setLength(0);
+					inToken = false;
+				}
+			}
+			else {
+				current.append(ch);
+				inToken = true;
+			}
+		}
+		if (inToken) {
+			tokens.add(current.toString());
+		}
+		return tokens;
+	}
+
+	private void write(CharSequence lines) {
+		if (lines.length() == 0 || this._outputFailure != null) {
+			return;
+		}
+		synchronized (this._out) {
+			try {
+				this._out.append(lines);
+			}catch (IOException e) {
+				failed(e);
+			}
+		}
+	}
+
+	private void flush() {
+		if (this._outputFailure != null) {
+			return;
+		}
+		synchronized (this._out) {
+			try {
+				this._out.flush();
+			}catch (IOException e) {
+				failed(e);
+			}
+		}
+	}
+
+	//keeps the first output failure for run() to throw
+	private synchronized void failed(IOException e) {
+		if (this._outputFailure == null) {
+			this._outputFailure = e;
+		}
+	}
+}//end CommandRunner
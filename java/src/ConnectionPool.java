@@ -0,0 +1,323 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A small bounded pool of physical PostgreSQL connections.  Callers borrow a
+ * connection with {@link #borrow()} and give it back by closing the returned
+ * {@link PooledConnection}, normally through try-with-resources.
+ *
+ * The pool validates connections that sat idle for a while before handing
+ * them out, evicts connections idle longer than the idle timeout, and reports
+ * connections held longer than the leak threshold together with the stack of
+ * the borrower.
+ *
+ */
+
+public class ConnectionPool implements AutoCloseable {
+	//connections idle for less than this are handed out without a round trip
+	private static final long VALIDATION_GRACE_MILLIS = 500;
+
+	private final String _url;
+	private final Properties _props;
+	private final int _maxSize;
+
+	private int _minIdle = 1;
+	private long _maxWaitMillis = 30000;
+	private int _validationTimeoutSeconds = 5;
+	private long _idleTimeoutMillis = 600000;
+	//set after the maintenance thread started, which reads it
+	private volatile long _leakThresholdMillis = 0;
+	private int _statementCacheSize = 64;
+
+	//a permit is held by every connection that is currently borrowed
+	private final Semaphore _permits;
+	private final Deque<PooledConnection> _idle = new LinkedBlockingDeque<PooledConnection>();
+	private final Set<PooledConnection> _active = ConcurrentHashMap.newKeySet();
+	//server process ids of the open connections, to tell this pool's writes from others'
+	private final Set<Integer> _backends = ConcurrentHashMap.newKeySet();
+	private final Thread _housekeeper;
+	private volatile boolean _closed = false;
+
+	//pool metrics
+	private final LongAdder _borrows = new LongAdder();
+	private final LongAdder _waitNanos = new LongAdder();
+	private final AtomicLong _maxWaitNanos = new AtomicLong();
+	private final LatencyHistogram _waits = new LatencyHistogram();
+	private final LongAdder _timeouts = new LongAdder();
+	private final LongAdder _created = new LongAdder();
+	private final LongAdder _destroyed = new LongAdder();
+	private final LongAdder _leaks = new LongAdder();
+	private final LongAdder _statementHits = new LongAdder();
+	private final LongAdder _statementMisses = new LongAdder();
+	private final AtomicInteger _total = new AtomicInteger();
+
+	/**
+	 * Creates a pool for the given JDBC url.  No connection is opened until
+	 * the first call to {@link #borrow()}.
+	 *
+	 * @param url the JDBC connection url
+	 * @param props connection properties (user, password, driver options)
+	 * @param maxSize maximum number of physical connections
+	 */
+	public ConnectionPool(String url, Properties props, int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("pool size has to be positive");
+		}
+		this._url = url;
+		this._props = props;
+		this._maxSize = maxSize;
+		this._permits = new Semaphore(maxSize, true);
+
+		this._housekeeper = new Thread(this::housekeep, "pool-housekeeper");
+		this._housekeeper.setDaemon(true);
+		this._housekeeper.start();
+	}
+
+	public void setMinIdle(int minIdle) { this._minIdle = minIdle; }
+	public void setMaxWaitMillis(long maxWaitMillis) { this._maxWaitMillis = maxWaitMillis; }
+	public void setValidationTimeoutSeconds(int seconds) { this._validationTimeoutSeconds = seconds; }
+	public void setIdleTimeoutMillis(long idleTimeoutMillis) { this._idleTimeoutMillis = idleTimeoutMillis; }
+
+	/**
+	 * Enables leak detection.  A connection held longer than the threshold is
+	 * reported once on standard error with the stack trace of its borrower.
+	 *
+	 * @param leakThresholdMillis the threshold, or 0 to disable detection
+	 */
+	public void setLeakThresholdMillis(long leakThresholdMillis) { this._leakThresholdMillis = leakThresholdMillis; }
+
+	/**
+	 * @return the leak threshold, 0 when detection is off
+	 */
+	public long getLeakThresholdMillis() { return this._leakThresholdMillis; }
+
+	/**
+	 * Sets how many prepared statements each connection keeps cached.  Only
+	 * connections opened afterwards use the new size.
+	 *
+	 * @param size the number of statements per connection
+	 */
+	public void setStatementCacheSize(int size) { this._statementCacheSize = size; }
+
+	public int getMaxSize() { return this._maxSize; }
+
+	/**
+	 * Borrows a connection, waiting up to the configured maximum wait time
+	 * when every connection is in use.
+	 *
+	 * @return a validated connection that must be closed by the caller
+	 * @throws java.sql.SQLException when no connection could be obtained
+	 */
+	public PooledConnection borrow() throws SQLException {
+		if (this._closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+		long start = System.nanoTime();
+		try {
+			if (!this._permits.tryAcquire(this._maxWaitMillis, TimeUnit.MILLISECONDS)) {
+				this._timeouts.increment();
+				throw new SQLException("Timed out after " + this._maxWaitMillis + "ms waiting for a connection ("
+					+ this._active.size() + " of " + this._maxSize + " in use)");
+			}
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection");
+		}
+		recordWait(System.nanoTime() - start);
+
+		try {
+			PooledConnection pc;
+			while ((pc = this._idle.pollFirst()) != null) {
+				if (isUsable(pc)) {
+					break;
+				}
+				destroy(pc);
+			}
+			if (pc == null) {
+				pc = create();
+			}
+			pc.onBorrow(this._leakThresholdMillis > 0);
+			this._active.add(pc);
+			this._borrows.increment();
+			return pc;
+		}catch (SQLException | RuntimeException e) {
+			this._permits.release();
+			throw e;
+		}
+	}//end borrow
+
+	/**
+	 * Returns a borrowed connection.  Called by {@link PooledConnection#close()}.
+	 */
+	void release(PooledConnection pc) {
+		if (!this._active.remove(pc)) {
+			return;
+		}
+		try {
+			boolean healthy = pc.reset();
+			if (healthy && !this._closed) {
+				this._idle.offerFirst(pc);
+			}
+			else {
+				destroy(pc);
+			}
+		}finally {
+			this._permits.release();
+		}
+	}//end release
+
+	/**
+	 * Closes every idle connection and stops the housekeeping thread.  Borrowed
+	 * connections are closed as they are returned.
+	 */
+	@Override
+	public void close() {
+		this._closed = true;
+		this._housekeeper.interrupt();
+		PooledConnection pc;
+		while ((pc = this._idle.pollFirst()) != null) {
+			destroy(pc);
+		}
+	}//end close
+
+	public int getActiveCount() { return this._active.size(); }
+	public int getIdleCount() { return this._idle.size(); }
+	public long getBorrowCount() { return this._borrows.sum(); }
+	public long getTimeoutCount() { return this._timeouts.sum(); }
+	public long getLeakCount() { return this._leaks.sum(); }
+	public long getStatementHitCount() { return this._statementHits.sum(); }
+	public long getStatementMissCount() { return this._statementMisses.sum(); }
+
+	void recordStatementHit() { this._statementHits.increment(); }
+	void recordStatementMiss() { this._statementMisses.increment(); }
+
+	/**
+	 * @return mean time spent waiting for a connection, in microseconds
+	 */
+	public double getMeanWaitMicros() {
+		long n = this._borrows.sum();
+		return n == 0 ? 0.0 : this._waitNanos.sum() / 1000.0 / n;
+	}
+
+	/**
+	 * @return the distribution of the time borrowers waited for a connection
+	 */
+	public LatencyHistogram getWaitHistogram() {
+		return this._waits;
+	}
+
+	/**
+	 * @return a one line summary of the pool metrics
+	 */
+	public String getStats() {
+		return String.format("pool: active=%d idle=%d total=%d max=%d borrows=%d timeouts=%d "
+			+ "created=%d destroyed=%d leaks=%d wait(mean=%.1fus max=%.1fus) statements(hits=%d misses=%d)",
+			getActiveCount(), getIdleCount(), this._total.get(), this._maxSize, getBorrowCount(),
+			getTimeoutCount(), this._created.sum(), this._destroyed.sum(), getLeakCount(),
+			getMeanWaitMicros(), this._maxWaitNanos.get() / 1000.0,
+			getStatementHitCount(), getStatementMissCount());
+	}
+
+	private void recordWait(long nanos) {
+		this._waitNanos.add(nanos);
+		this._waits.record(nanos);
+		long max;
+		while (nanos > (max = this._maxWaitNanos.get())) {
+			if (this._maxWaitNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Opens a physical connection outside the pool, for work that keeps a
+	 * session to itself such as LISTEN.  The caller closes it.
+	 *
+	 * @return a new connection with the pool's url and properties
+	 * @throws java.sql.SQLException when the connection could not be opened
+	 */
+	Connection connect() throws SQLException {
+		return DriverManager.getConnection(this._url, this._props);
+	}
+
+	/**
+	 * @param pid a server process id, e.g. the sender of a notification
+	 * @return true when the process serves one of this pool's connections
+	 */
+	public boolean isOwnBackend(int pid) {
+		return this._backends.contains(pid);
+	}
+
+	private PooledConnection create() throws SQLException {
+		Connection conn = connect();
+		this._created.increment();
+		this._total.incrementAndGet();
+		PooledConnection pc = new PooledConnection(this, conn, this._statementCacheSize);
+		if (pc.getBackendPid() != 0) {
+			this._backends.add(pc.getBackendPid());
+		}
+		return pc;
+	}
+
+	private void destroy(PooledConnection pc) {
+		this._destroyed.increment();
+		this._total.decrementAndGet();
+		this._backends.remove(pc.getBackendPid());
+		pc.closePhysical();
+	}
+
+	//checks a connection on its way out of the idle list
+	private boolean isUsable(PooledConnection pc) {
+		if (System.currentTimeMillis() - pc.getLastUsed() < VALIDATION_GRACE_MILLIS) {
+			return true;
+		}
+		try {
+			return pc.connection().isValid(this._validationTimeoutSeconds);
+		}catch (SQLException e) {
+			return false;
+		}
+	}
+
+	//evicts idle connections and reports leaks once a second
+	private void housekeep() {
+		while (!this._closed) {
+			try {
+				Thread.sleep(1000);
+			}catch (InterruptedException e) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+
+			//oldest idle connections sit at the tail of the deque
+			while (this._idle.size() > this._minIdle) {
+				PooledConnection pc = this._idle.peekLast();
+				if (pc == null || now - pc.getLastUsed() < this._idleTimeoutMillis) {
+					break;
+				}
+				if (this._idle.removeLastOccurrence(pc)) {
+					destroy(pc);
+				}
+			}
+
+			if (this._leakThresholdMillis > 0) {
+				for (PooledConnection pc : this._active) {
+					if (pc.reportLeak(now, this._leakThresholdMillis)) {
+						this._leaks.increment();
+					}
+				}
+			}
+		}
+	}//end housekeep
+}//end ConnectionPool
@@ -0,0 +1,564 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+
+/**
+ * Validates and normalizes the data/*.csv files before BulkLoader copies
+ * them, so that one bad row is set aside instead of aborting a whole COPY.
+ * Every row is checked against the columns of sql/create.sql: the domains
+ * (_STATUS, _GENDER, _CODE, _SEATS and the integer ones), NOT NULL, CHAR
+ * lengths, dates, duplicate primary keys and the foreign keys.  Rows that
+ * pass are written in COPY text format under the same file name in the
+ * output directory, dates as yyyy-MM-dd and text trimmed; the others go to
+ * a .rejects file next to it with their line number and the reason.
+ *
+ * Each file is memory-mapped and cut into chunks on line boundaries, which
+ * are parsed in parallel.  A single writer takes the chunks back in file
+ * order, drops primary keys it has seen before and writes the rows, so the
+ * output keeps the order of the input.  Files are processed in the foreign
+ * key order of BulkLoader.LEVELS, and the foreign keys of a row are checked
+ * against the keys accepted from the tables it references.
+ *
+ */
+
+public class CsvPreprocessor {
+	//bytes of a file parsed by one task
+	public static final int CHUNK_BYTES = 8 << 20;
+	//chunks parsed ahead of the writer, per thread
+	private static final int CHUNKS_AHEAD = 2;
+	//bytes read at a time while looking for the end of a line
+	private static final int SCAN_BYTES = 1 << 16;
+
+	private static final Pattern ZIPCODE = Pattern.compile("^([A-Z]{2} )?\\d{5}(-\\d{4})?$");
+	private static final String NULL = "\\N";
+
+	//what a column accepts; the integer types follow the domains of sql/create.sql
+	enum Type { INTEGER, PINTEGER, PZEROINTEGER, YEAR_1970, SEATS, STATUS, GENDER, CODE, DATE, TEXT, ZIPCODE }
+
+	/**
+	 * One column of a table.
+	 */
+	static class Column {
+		final String name;
+		final Type type;
+		final boolean notNull;
+		//CHAR length for TEXT and ZIPCODE
+		final int length;
+		//the table whose primary key the column references, or null
+		final String references;
+
+		Column(String name, Type type, boolean notNull, int length, String references) {
+			this.name = name;
+			this.type = type;
+			this.notNull = notNull;
+			this.length = length;
+			this.references = references;
+		}
+	}
+
+	private static Column col(String name, Type type, boolean notNull) {
+		return new Column(name, type, notNull, 0, null);
+	}
+
+	private static Column text(String name, int length, boolean notNull) {
+		return new Column(name, Type.TEXT, notNull, length, null);
+	}
+
+	private static Column ref(String name, String table) {
+		return new Column(name, Type.INTEGER, true, 0, table);
+	}
+
+	//the columns of every table of BulkLoader.LEVELS, in file order; the first one is the primary key
+	static final Map<String, Column[]> SCHEMA = new HashMap<String, Column[]>();
+	static {
+		SCHEMA.put("Customer", new Column[] { col("id", Type.INTEGER, true), text("fname", 24, true),
+			text("lname", 24, true), col("gtype", Type.GENDER, true), col("dob", Type.DATE, true),
+			text("address", 256, false), text("phone", 10, false), new Column("zipcode", Type.ZIPCODE, false, 10, null) });
+		SCHEMA.put("Captain", new Column[] { col("id", Type.INTEGER, true), text("fullname", 128, false),
+			text("nationality", 24, false) });
+		SCHEMA.put("Ship", new Column[] { col("id", Type.INTEGER, true), text("make", 32, true), text("model", 64, true),
+			col("age", Type.YEAR_1970, true), col("seats", Type.SEATS, true) });
+		SCHEMA.put("Technician", new Column[] { col("id", Type.INTEGER, true), text("full_name", 128, true) });
+		SCHEMA.put("Cruise", new Column[] { col("cnum", Type.INTEGER, true), col("cost", Type.PINTEGER, true),
+			col("num_sold", Type.PZEROINTEGER, true), col("num_stops", Type.PZEROINTEGER, true),
+			col("actual_departure_date", Type.DATE, true), col("actual_arrival_date", Type.DATE, true),
+			text("arrival_port", 5, true), text("departure_port", 5, true) });
+		SCHEMA.put("Reservation", new Column[] { col("rnum", Type.INTEGER, true), ref("ccid", "Customer"),
+			ref("cid", "Cruise"), col("status", Type.STATUS, false) });
+		SCHEMA.put("CruiseInfo", new Column[] { col("ciid", Type.INTEGER, true), ref("cruise_id", "Cruise"),
+			ref("captain_id", "Captain"), ref("ship_id", "Ship") });
+		SCHEMA.put("Repairs", new Column[] { col("rid", Type.INTEGER, true), col("repair_date", Type.DATE, true),
+			col("repair_code", Type.CODE, false), ref("captain_id", "Captain"), ref("ship_id", "Ship"),
+			ref("technician_id", "Technician") });
+		SCHEMA.put("Schedule", new Column[] { col("id", Type.INTEGER, true), ref("cruiseNum", "Cruise"),
+			col("departure_time", Type.DATE, true), col("arrival_time", Type.DATE, true) });
+	}
+
+	/**
+	 * A row that did not pass.
+	 */
+	static class Reject {
+		//the line number within the chunk, and within the file once written
+		long line;
+		final String reason;
+		final String text;
+
+		Reject(long line, String reason, String text) {
+			this.line = line;
+			this.reason = reason;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * What one task made of a chunk: the accepted rows back to back, and the
+	 * rejected ones.
+	 */
+	static class Chunk {
+		byte[] out;
+		int size = 0;
+		//per accepted row: where it ends in out, its primary key and its line within the chunk
+		int[] ends = new int[1024];
+		int[] keys = new int[1024];
+		int[] lines = new int[1024];
+		int rows = 0;
+		final List<Reject> rejects = new ArrayList<Reject>();
+		int lineCount = 0;
+
+		Chunk(int expectedBytes) {
+			this.out = new byte[Math.max(expectedBytes, 64)];
+		}
+
+		//appends a row, encoding ASCII without going through a String
+		void accept(CharSequence row, int key, int line) {
+			int n = row.length();
+			if (this.size + n * 3 > this.out.length) {
+				this.out = Arrays.copyOf(this.out, Math.max(this.out.length * 2, this.size + n * 3));
+			}
+			int at = this.size;
+			for (int i = 0; i < n; ++i) {
+				char ch = row.charAt(i);
+				if (ch >= 0x80) {
+					byte[] bytes = row.toString().getBytes(StandardCharsets.UTF_8);
+					System.arraycopy(bytes, 0, this.out, this.size, bytes.length);
+					at = this.size + bytes.length;
+					break;
+				}
+				this.out[at++] = (byte) ch;
+			}
+			this.size = at;
+			if (this.rows == this.ends.length) {
+				this.ends = Arrays.copyOf(this.ends, this.rows * 2);
+				this.keys = Arrays.copyOf(this.keys, this.rows * 2);
+				this.lines = Arrays.copyOf(this.lines, this.rows * 2);
+			}
+			this.ends[this.rows] = at;
+			this.keys[this.rows] = key;
+			this.lines[this.rows] = line;
+			++this.rows;
+		}
+	}//end Chunk
+
+	private final File _inDir;
+	private final File _outDir;
+	private final int _threads;
+	//table name to the primary keys written so far; the value is unused
+	private final Map<String, IntIntMap> _keys = new HashMap<String, IntIntMap>();
+	private long _written = 0;
+	private long _rejected = 0;
+
+	/**
+	 * @param inDir the directory holding the CSV files
+	 * @param outDir the directory the normalized files and rejects are written to
+	 * @param threads the chunks parsed in parallel
+	 */
+	public CsvPreprocessor(File inDir, File outDir, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads have to be positive");
+		}
+		if (inDir.getAbsoluteFile().equals(outDir.getAbsoluteFile())) {
+			throw new IllegalArgumentException("the output would overwrite the input");
+		}
+		this._inDir = inDir;
+		this._outDir = outDir;
+		this._threads = threads;
+	}
+
+	public long getWrittenCount() { return this._written; }
+	public long getRejectedCount() { return this._rejected; }
+
+	/**
+	 * Processes every file and prints the rows kept and rejected per file.
+	 *
+	 * @return the number of rows rejected
+	 * @throws java.io.IOException when a file could not be read or written
+	 */
+	public long run() throws IOException {
+		if (!this._outDir.isDirectory() && !this._outDir.mkdirs()) {
+			throw new IOException("unable to create " + this._outDir);
+		}
+		long start = System.nanoTime();
+		ExecutorService workers = Executors.newFixedThreadPool(this._threads);
+		try {
+			for (BulkLoader.Table[] level : BulkLoader.LEVELS) {
+				for (BulkLoader.Table table : level) {
+					process(workers, table);
+				}
+			}
+		}finally {
+			workers.shutdownNow();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Wrote %d rows and rejected %d in %.2fs (%.0f rows/s)%n", this._written, this._rejected,
+			seconds, (this._written + this._rejected) / seconds);
+		return this._rejected;
+	}//end run
+
+	//parses one file in chunks and writes them back in order
+	private void process(ExecutorService workers, BulkLoader.Table table) throws IOException {
+		final Column[] columns = SCHEMA.get(table.name);
+		File in = new File(this._inDir, table.file);
+		File out = new File(this._outDir, table.file);
+		File rejectFile = new File(this._outDir, table.file + ".rejects");
+		IntIntMap written = new IntIntMap(1024);
+		long start = System.nanoTime();
+		long rows = 0;
+		long rejected = 0;
+		long lineBase = 0;
+		try (FileChannel channel = FileChannel.open(in.toPath(), StandardOpenOption.READ);
+		     OutputStream rowsOut = new BufferedOutputStream(new FileOutputStream(out), 1 << 16);
+		     Writer rejectsOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rejectFile), StandardCharsets.UTF_8))) {
+			long[] bounds = chunks(channel);
+			ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+			int next = 0;
+			while (next < bounds.length - 1 || !pending.isEmpty()) {
+				while (next < bounds.length - 1 && pending.size() < this._threads * CHUNKS_AHEAD) {
+					final long from = bounds[next];
+					final long to = bounds[++next];
+					final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+					pending.add(workers.submit(() -> parse(buf, columns)));
+				}
+				Chunk chunk = await(pending.poll());
+
+				//rejects in line order, so the reject file reads top to bottom; rows between duplicates in one write
+				byte[] bytes = chunk.out;
+				int r = 0;
+				int at = 0;
+				int run = 0;
+				for (int i = 0; i < chunk.rows; ++i) {
+					while (r < chunk.rejects.size() && chunk.rejects.get(r).line < chunk.lines[i]) {
+						reject(rejectsOut, chunk.rejects.get(r++), lineBase);
+						++rejected;
+					}
+					int end = chunk.ends[i];
+					if (written.containsKey(chunk.keys[i])) {
+						rowsOut.write(bytes, run, at - run);
+						run = end;
+						reject(rejectsOut, new Reject(chunk.lines[i], "duplicate " + columns[0].name + " " + chunk.keys[i],
+							new String(bytes, at, end - at - 1, StandardCharsets.UTF_8)), lineBase);
+						++rejected;
+					}
+					else {
+						written.put(chunk.keys[i], 0);
+						++rows;
+					}
+					at = end;
+				}
+				rowsOut.write(bytes, run, at - run);
+				while (r < chunk.rejects.size()) {
+					reject(rejectsOut, chunk.rejects.get(r++), lineBase);
+					++rejected;
+				}
+				lineBase += chunk.lineCount;
+			}//end while
+		}//end try
+
+		if (rejected == 0) {
+			rejectFile.delete();
+		}
+		//the tables referencing this one are checked against the rows kept
+		this._keys.put(table.name, written);
+		this._written += rows;
+		this._rejected += rejected;
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("\t%-12s %8d rows %8d rejected %8.2fs %10.0f rows/s%n", table.name, rows, rejected, seconds,
+			(rows + rejected) / seconds);
+	}//end process
+
+	private static void reject(Writer out, Reject reject, long lineBase) throws IOException {
+		out.write(Long.toString(lineBase + reject.line));
+		out.write('\t');
+		out.write(reject.reason);
+		out.write('\t');
+		out.write(reject.text);
+		out.write('\n');
+	}
+
+	private static Chunk await(Future<Chunk> f) throws IOException {
+		try {
+			return f.get();
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while parsing", e);
+		}catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	//chunk boundaries: every chunk but the last ends right after a line feed
+	private static long[] chunks(FileChannel channel) throws IOException {
+		long size = channel.size();
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(0L);
+		ByteBuffer scan = ByteBuffer.allocate(SCAN_BYTES);
+		long at = 0;
+		while (size - at > CHUNK_BYTES) {
+			long pos = at + CHUNK_BYTES;
+			long end = -1;
+			while (end < 0 && pos < size) {
+				scan.clear();
+				int n = channel.read(scan, pos);
+				for (int i = 0; i < n; ++i) {
+					if (scan.get(i) == '\n') {
+						end = pos + i + 1;
+						break;
+					}
+				}
+				pos += Math.max(n, 0);
+			}
+			if (end < 0 || end >= size) {
+				break;
+			}
+			bounds.add(end);
+			at = end;
+		}//end while
+		bounds.add(size);
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}//end chunks
+
+	//parses the lines of one chunk
+	private Chunk parse(MappedByteBuffer buf, Column[] columns) {
+		//one bulk copy out of the mapping, then plain array scans
+		byte[] data = new byte[buf.limit()];
+		buf.get(data);
+		Chunk chunk = new Chunk(data.length);
+		StringBuilder row = new StringBuilder(256);
+		String[] fields = new String[columns.length];
+		int start = 0;
+		while (start < data.length) {
+			int end = start;
+			while (end < data.length && data[end] != '\n') {
+				++end;
+			}
+			int lineNo = ++chunk.lineCount;
+			int len = end > start && data[end - 1] == '\r' ? end - 1 - start : end - start;
+			int from = start;
+			start = end + 1;
+			if (len == 0) {
+				continue;
+			}
+			String text = new String(data, from, len, StandardCharsets.UTF_8);
+			row.setLength(0);
+			String problem = normalize(text, columns, fields, row);
+			if (problem != null) {
+				chunk.rejects.add(new Reject(lineNo, problem, text));
+				continue;
+			}
+			row.append('\n');
+			chunk.accept(row, Integer.parseInt(fields[0]), lineNo);
+		}//end while
+		return chunk;
+	}//end parse
+
+	/**
+	 * Checks one line against the columns and appends its normalized form.
+	 *
+	 * @return null when the row passed, the reason otherwise
+	 */
+	private String normalize(String text, Column[] columns, String[] fields, StringBuilder row) {
+		int start = 0;
+		for (int c = 0; c < columns.length; ++c) {
+			int comma = text.indexOf(',', start);
+			if ((comma < 0) != (c == columns.length - 1)) {
+				return "expected " + columns.length + " fields, found " + (text.split(",", -1).length);
+			}
+			fields[c] = text.substring(start, comma < 0 ? text.length() : comma).trim();
+			start = comma + 1;
+		}
+		for (int c = 0; c < columns.length; ++c) {
+			Column col = columns[c];
+			String value = fields[c];
+			if (value.isEmpty()) {
+				if (col.notNull && col.type != Type.TEXT) {
+					return "missing " + col.name;
+				}
+				if (c > 0) {
+					row.append(',');
+				}
+				//an empty CHAR is a value, anything else is NULL
+				row.append(col.type == Type.TEXT ? "" : NULL);
+				continue;
+			}
+			String normalized;
+			switch (col.type) {
+				case INTEGER:
+				case PINTEGER:
+				case PZEROINTEGER:
+				case YEAR_1970:
+				case SEATS:
+					int v;
+					try {
+						v = Integer.parseInt(value);
+					}catch (NumberFormatException e) {
+						return col.name + " is not an integer: " + value;
+					}
+					if (!inDomain(col.type, v)) {
+						return col.name + " is out of the " + col.type + " domain: " + v;
+					}
+					if (col.references != null && !references(col.references, v)) {
+						return "no " + col.references + " " + v + " for " + col.name;
+					}
+					normalized = Integer.toString(v);
+					break;
+				case STATUS:
+					if (!value.equals("W") && !value.equals("C") && !value.equals("R")) {
+						return col.name + " has to be W, C or R: " + value;
+					}
+					normalized = value;
+					break;
+				case GENDER:
+					if (!value.equals("F") && !value.equals("M")) {
+						return col.name + " has to be F or M: " + value;
+					}
+					normalized = value;
+					break;
+				case CODE:
+					if (!value.equals("MJ") && !value.equals("MN") && !value.equals("SV")) {
+						return col.name + " has to be MJ, MN or SV: " + value;
+					}
+					normalized = value;
+					break;
+				case DATE:
+					normalized = date(value);
+					if (normalized == null) {
+						return col.name + " is not a date: " + value;
+					}
+					break;
+				case ZIPCODE:
+					if (!ZIPCODE.matcher(value).matches()) {
+						return col.name + " is not a zipcode: " + value;
+					}
+					normalized = value;
+					break;
+				default:
+					if (value.length() > col.length) {
+						return col.name + " is longer than " + col.length + " characters";
+					}
+					//COPY text format reads a backslash as an escape
+					normalized = value.indexOf('\\') < 0 ? value : value.replace("\\", "\\\\");
+					break;
+			}//end switch
+			if (c > 0) {
+				row.append(',');
+			}
+			row.append(normalized);
+		}//end for
+		return null;
+	}//end normalize
+
+	private static boolean inDomain(Type type, int v) {
+		switch (type) {
+			case PINTEGER: return v > 0;
+			case PZEROINTEGER:
+			case YEAR_1970: return v >= 0;
+			case SEATS: return v > 0 && v < 500;
+			default: return true;
+		}
+	}
+
+	//written by the writer thread before the referencing level is parsed, and only read afterwards
+	private boolean references(String table, int key) {
+		IntIntMap keys = this._keys.get(table);
+		return keys != null && keys.containsKey(key);
+	}
+
+	/**
+	 * @param value yyyy-MM-dd or M/d/yyyy, optionally followed by a time, which a DATE column drops
+	 * @return the date as yyyy-MM-dd, or null when it is none
+	 */
+	static String date(String value) {
+		int space = value.indexOf(' ');
+		String time = space < 0 ? "" : value.substring(space + 1).trim();
+		for (int i = 0; i < time.length(); ++i) {
+			char ch = time.charAt(i);
+			if (ch != ':' && ch != '.' && (ch < '0' || ch > '9')) {
+				return null;
+			}
+		}
+		String day = space < 0 ? value : value.substring(0, space);
+		boolean us = day.indexOf('/') >= 0;
+		String[] parts = day.split(us ? "/" : "-", -1);
+		if (parts.length != 3) {
+			return null;
+		}
+		try {
+			int year = Integer.parseInt(us ? parts[2] : parts[0]);
+			int month = Integer.parseInt(us ? parts[0] : parts[1]);
+			int dom = Integer.parseInt(us ? parts[1] : parts[2]);
+			return LocalDate.of(year, month, dom).toString();
+		}catch (NumberFormatException | DateTimeException e) {
+			return null;
+		}
+	}//end date
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: java " + CsvPreprocessor.class.getName()
+				+ " <csv dir> <output dir> [--threads <n>]");
+			return;
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (int i = 2; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+				case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+				default: throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+		long rejected = new CsvPreprocessor(new File(args[0]), new File(args[1]), threads).run();
+		if (rejected > 0) {
+			System.exit(1);
+		}
+	}//end main
+}//end CsvPreprocessor
@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -21,10 +22,20 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.io.PrintStream;
+import java.io.StringReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Properties;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 
 
 /**
@@ -34,25 +45,293 @@ import java.time.format.DateTimeFormatter;
  */
 
 public class DBproject{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//default number of physical connections kept by the pool
+	public static final int DEFAULT_POOL_SIZE = 10;
+	//rows fetched per round trip by executeQueryStreaming
+	public static final int DEFAULT_FETCH_SIZE = 1000;
+	//seconds between two writes of --metrics-file when --metrics is not given
+	public static final int DEFAULT_METRICS_SECONDS = 10;
+	//rows per batch and transaction for --batch
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	//cruises whose available seats are kept in memory
+	public static final int SEAT_CACHE_SIZE = 65536;
+	//bounds of the query result cache; results expire after the TTL unless it is 0
+	public static final int QUERY_CACHE_ENTRIES = 4096;
+	public static final long QUERY_CACHE_BYTES = 32L << 20;
+	public static final int QUERY_CACHE_TTL_SECONDS = 30;
+	//days between arriving at a port and sailing on, when a trip does not say
+	public static final int DEFAULT_CONNECT_DAYS = 1;
+	//cruises added by other clients that are looked up one by one; more reload the indexes
+	public static final int CHANGED_CRUISE_LOOKUPS = 16;
+	//seconds a read replica may lag behind the primary and still take reads
+	public static final int DEFAULT_REPLICA_MAX_LAG_SECONDS = 5;
+	//seconds between two health checks of the read replicas
+	public static final int REPLICA_CHECK_SECONDS = 5;
+	//prepared statements cached per pooled connection
+	public static final int STATEMENT_CACHE_SIZE = 64;
+	//seconds between two reconciliations of the reservation status counts
+	public static final int STATUS_RECONCILE_SECONDS = 60;
+	//seconds between two verifications of the seat cache against the database
+	public static final int SEAT_VERIFY_SECONDS = 60;
+	//executions of a prepared statement before the driver switches to a named server-side prepare
+	public static final int PREPARE_THRESHOLD = 3;
+
+	//sequence backing reservation numbers, see sql/create.sql
+	public static final String RESERVATION_SEQUENCE = "reservation_rnum_seq";
+
+	//pool of physical database connections shared by every operation
+	private ConnectionPool _pool = null;
+	//JDBC url of the pool
+	private String _url = null;
+	//connection properties of the pool, shared with the replica pools
+	private Properties _props = null;
+	//read replicas taking read-only queries; null when there are none
+	private volatile ReplicaSet _replicas = null;
+	//primary and replicas may lag this much before reads go back to the primary
+	private int _replicaMaxLag = DEFAULT_REPLICA_MAX_LAG_SECONDS;
+	//the databases cruises and reservations are split across, each with its booking and waitlist engine;
+	//the pool above is the first one
+	private volatile ShardSet _shards = null;
+	//available seats per cruise, kept current by bookCruise and the waitlist engine and verified periodically
+	private final SeatCache _seats = new SeatCache(SEAT_CACHE_SIZE);
+	//repairs per ship, kept current by addRepair
+	private final RepairLeaderboard _repairs = new RepairLeaderboard();
+	//reservations per status, kept current by bookCruise and the waitlist engine
+	private final StatusCounters _statuses = new StatusCounters();
+	//departures per port and day, kept current by addCruise
+	private final DepartureIndex _departures = new DepartureIndex();
+	//sailings as a graph for planning multi-leg trips, kept current by addCruise
+	private final RoutePlanner _routes = new RoutePlanner();
+	//applies the writes of other clients to the state above, see sql/create_notify.sql
+	private ChangeListener _changes = null;
+	//the same for every shard but the first
+	private final List<ChangeListener> _shardChanges = new ArrayList<ChangeListener>();
+	//latency, errors and rows per operation and statement shape
+	private final Metrics _metrics = new Metrics();
+	//results of read-only queries, dropped when a write touches their tables; null to disable
+	private volatile QueryCache _queryCache = new QueryCache(QUERY_CACHE_ENTRIES, QUERY_CACHE_BYTES, QUERY_CACHE_TTL_SECONDS);
+	//how executeQueryAndPrintResult writes its rows
+	private volatile ResultRenderer.Format _format = ResultRenderer.Format.TSV;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+
+	//statements issued by the menu operations, bound through the prepared statement cache
+	static final String SQL_ADD_SHIP = "INSERT INTO Ship (id, make, model, age, seats) VALUES (?, ?, ?, ?, ?)";
+	static final String SQL_ADD_CAPTAIN = "INSERT INTO Captain (id, fullname, nationality) VALUES (?, ?, ?)";
+	//the same for every shard, skipping shards that have the row already so a failed write can be retried
+	static final String SQL_ADD_SHIP_EVERYWHERE = SQL_ADD_SHIP + " ON CONFLICT (id) DO NOTHING";
+	static final String SQL_ADD_CAPTAIN_EVERYWHERE = SQL_ADD_CAPTAIN + " ON CONFLICT (id) DO NOTHING";
+	//SQLSTATE of a duplicate primary key
+	static final String UNIQUE_VIOLATION = "23505";
+	static final String SQL_ADD_CRUISE = "INSERT INTO Cruise (cnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_port, departure_port) "
+		+ "VALUES (?, ?, ?, ?, CAST(? AS DATE), CAST(? AS DATE), ?, ?)";
+	static final String SQL_RESERVATION_STATUS = "SELECT status FROM Reservation WHERE ccid = ? AND cid = ?";
+	//returns the status each reservation had before, read under the row lock
+	static final String SQL_SET_RESERVATION_STATUS = "UPDATE Reservation R SET status = ? "
+		+ "FROM (SELECT rnum, status FROM Reservation WHERE ccid = ? AND cid = ? FOR UPDATE) O "
+		+ "WHERE R.rnum = O.rnum RETURNING O.status";
+	static final String SQL_AVAILABLE_SEATS = SeatCache.SQL_ALL_SEATS + " WHERE C.cnum = ?";
+	//both lookups of the booking flow, sent to the server together
+	static final String SQL_RESERVATION_AND_SEATS = SQL_RESERVATION_STATUS + "; " + SQL_AVAILABLE_SEATS;
+	static final String SQL_ADD_REPAIR = "INSERT INTO Repairs (rid, repair_date, repair_code, captain_id, ship_id, technician_id) "
+		+ "VALUES (?, CAST(? AS DATE), ?, ?, ?, ?)";
+	static final String SQL_REPAIRS_IN_WINDOW = "SELECT ship_id, COUNT(*) FROM Repairs WHERE repair_date >= CAST(? AS DATE) AND repair_date < CAST(? AS DATE) "
+		+ "GROUP BY ship_id ORDER BY COUNT(*) DESC, ship_id LIMIT ?";
+	static final String SQL_COUNT_STATUS = "SELECT COUNT(*) FROM Reservation WHERE status = ?";
 	
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
+		this(dbname, dbport, user, passwd, DEFAULT_POOL_SIZE);
+	}
+
+	public DBproject(String dbname, String dbport, String user, String passwd, int poolSize) throws SQLException {
+		this("localhost", dbname, dbport, user, passwd, poolSize);
+	}
+
+	public DBproject(String host, String dbname, String dbport, String user, String passwd, int poolSize) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+			String url = "jdbc:postgresql://" + host + ":" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			Properties props = new Properties();
+			props.setProperty("user", user);
+			props.setProperty("password", passwd);
+			props.setProperty("prepareThreshold", Integer.toString(PREPARE_THRESHOLD));
+			//lets the driver fold JDBC batches into multi-row INSERTs
+			props.setProperty("reWriteBatchedInserts", "true");
+			this._props = props;
+
+			// open the pool and check that a physical connection can be obtained
+			this._pool = new ConnectionPool(url, props, poolSize);
+			this._pool.setStatementCacheSize(STATEMENT_CACHE_SIZE);
+			this._pool.borrow().close();
+			this._url = url;
+			//a single shard until shard() splits the data
+			this._shards = new ShardSet(Collections.singletonList(url), Collections.singletonList(this._pool),
+				RESERVATION_SEQUENCE, this._metrics);
+			this._metrics.setQueryCache(this._queryCache);
+			//listens before anything is loaded, so no change falls in between
+			final ConnectionPool pool = this._pool;
+			this._changes = new ChangeListener(pool, changes -> applyChanges(pool, changes));
+			this._changes.start();
+			this._metrics.setChangeListener(this._changes);
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
 	        System.out.println("Make sure you started postgres on this machine");
 	        System.exit(-1);
 		}
+		loadState();
+		this._statuses.startReconciler(STATUS_RECONCILE_SECONDS, this._shards.pools());
+		this._seats.startVerifier(SEAT_VERIFY_SECONDS, this._shards.pools());
+	}
+
+	//loads what is kept in memory from every shard, reporting what failed
+	private void loadState() {
+		ConnectionPool[] pools = this._shards.pools();
+		try{
+			for (ConnectionPool pool : pools) {
+				this._seats.warm(pool);
+			}
+		}catch(SQLException e){
+			//lookups fall back to the database until the cache fills up again
+			System.err.println("Unable to warm the seat cache: " + e.getMessage());
+		}
+		try{
+			this._repairs.load(pools);
+		}catch(SQLException e){
+			//loaded again on first use
+			System.err.println("Unable to load the repair leaderboard: " + e.getMessage());
+		}
+		try{
+			this._statuses.load(pools);
+		}catch(SQLException e){
+			//counted in the database until the reconciler succeeds
+			System.err.println("Unable to load the reservation status counts: " + e.getMessage());
+		}
+		try{
+			this._departures.load(pools);
+		}catch(SQLException e){
+			//loaded again on first search
+			System.err.println("Unable to load the departure index: " + e.getMessage());
+		}
+		try{
+			this._routes.load(pools);
+		}catch(SQLException e){
+			//loaded again on first query
+			System.err.println("Unable to load the route planner: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the connection pool used by this instance
+	 */
+	public ConnectionPool getPool() {
+		return this._pool;
+	}
+
+	/**
+	 * Adds a read replica of the database.  Read-only queries go round-robin
+	 * to the replicas that are up and caught up, except for threads that
+	 * wrote lately, which read from the primary.  Writes, bookings and the
+	 * loads of the in-memory state always use the primary, and only results
+	 * read from the primary are kept in the query cache.
+	 *
+	 * @param host the host of the replica
+	 * @param port the port of the replica
+	 * @param dbname the database name on the replica
+	 */
+	public synchronized void addReplica(String host, String port, String dbname) {
+		String url = "jdbc:postgresql://" + host + ":" + port + "/" + dbname;
+		Properties props = new Properties();
+		props.putAll(this._props);
+		//a replica that is down should cost seconds, not the TCP timeout
+		props.setProperty("connectTimeout", "5");
+		ConnectionPool pool = new ConnectionPool(url, props, this._pool.getMaxSize());
+		pool.setStatementCacheSize(STATEMENT_CACHE_SIZE);
+		if (this._replicas == null) {
+			ReplicaSet replicas = new ReplicaSet(this._replicaMaxLag, REPLICA_CHECK_SECONDS);
+			replicas.startChecker();
+			this._metrics.setReplicas(replicas);
+			this._replicas = replicas;
+		}
+		this._replicas.add(url, pool);
+	}
+
+	/**
+	 * @param seconds how far behind the primary a replica added afterwards may be and still take reads
+	 */
+	public synchronized void setReplicaMaxLag(int seconds) {
+		this._replicaMaxLag = seconds;
+	}
+
+	/**
+	 * @return the read replicas, or null when there are none
+	 */
+	public ReplicaSet getReplicas() {
+		return this._replicas;
+	}
+
+	//a connection for a query, from a replica when the query and the thread allow it
+	private PooledConnection borrowFor(String query) throws SQLException {
+		ReplicaSet replicas = this._replicas;
+		return replicas == null ? this._pool.borrow() : replicas.borrow(this._pool, query);
+	}
+
+	/**
+	 * Splits the data across this database and others, see ShardSet.  The
+	 * rows of a cruise and its reservations are looked for on the shard of
+	 * its number, repairs on the shard of their ship, and ships and captains
+	 * are written to every shard.  Every database needs the schema of
+	 * sql/create.sql and the data split the same way, e.g. by bulkLoad.
+	 * Ad-hoc queries and the read replicas only see the first shard.
+	 *
+	 * @param urls the JDBC urls of the other shards, in shard order
+	 * @throws java.sql.SQLException when a shard could not be reached
+	 */
+	public synchronized void shard(List<String> urls) throws SQLException {
+		if (this._shards.size() > 1) {
+			throw new IllegalStateException("the data is split already");
+		}
+		List<String> all = new ArrayList<String>();
+		List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+		all.add(this._url);
+		pools.add(this._pool);
+		try {
+			for (String url : urls) {
+				ConnectionPool pool = new ConnectionPool(url, this._props, this._pool.getMaxSize());
+				pool.setStatementCacheSize(STATEMENT_CACHE_SIZE);
+				all.add(url);
+				pools.add(pool);
+				pool.borrow().close();
+			}
+		}catch (SQLException e) {
+			for (int i = 1; i < pools.size(); ++i) {
+				pools.get(i).close();
+			}
+			throw e;
+		}
+		ShardSet shards = new ShardSet(all, pools, RESERVATION_SEQUENCE, this._metrics);
+		for (int i = 1; i < shards.size(); ++i) {
+			final ConnectionPool pool = shards.get(i).pool;
+			ChangeListener listener = new ChangeListener(pool, changes -> applyChanges(pool, changes));
+			listener.start();
+			this._shardChanges.add(listener);
+		}
+		this._shards = shards;
+		this._metrics.setShards(shards);
+		//the state loaded so far only covers the first shard
+		this._seats.clear();
+		loadState();
+		this._statuses.startReconciler(STATUS_RECONCILE_SECONDS, shards.pools());
+		this._seats.startVerifier(SEAT_VERIFY_SECONDS, shards.pools());
+	}
+
+	/**
+	 * @return the databases the data is split across, a single one unless shard() was called
+	 */
+	public ShardSet getShards() {
+		return this._shards;
 	}
 	
 	/**
@@ -63,14 +342,20 @@ public class DBproject{
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
+		Metrics.Timer timer = this._metrics.statement(sql);
+		long start = System.nanoTime();
+		// borrows a connection and creates a statement object
+		try (PooledConnection pc = this._pool.borrow();
+		     Statement stmt = pc.connection().createStatement ()) {
+			// issues the update instruction
+			timer.record(System.nanoTime() - start, stmt.executeUpdate (sql));
+		}catch (SQLException e) {
+			timer.failed(System.nanoTime() - start);
+			throw e;
+		}finally {
+			//a failed statement may still have changed something before the error
+			written(sql);
+		}
 	}//end executeUpdate
 
 	/**
@@ -83,37 +368,34 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+		QueryCache cache = this._queryCache;
+		Object[] key = printKey(NO_PARAMS);
+		int cached = printCached(cache, query, key);
+		if (cached >= 0) {
+			return cached;
+		}
+		QueryCache.Stamp stamp = cache == null ? null : cache.stamp(query);
+		Metrics.Timer timer = this._metrics.statement(query);
+		long start = System.nanoTime();
+		//borrows a connection and creates a statement object
+		try (PooledConnection pc = borrowFor(query);
+		     Statement stmt = pc.connection().createStatement ()) {
+			//fetches through a cursor so large results are not buffered first
+			pc.connection().setAutoCommit(false);
+			stmt.setFetchSize(DEFAULT_FETCH_SIZE);
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			//issues the query instruction and outputs the rows to standard out.
+			int rowCount = printResult(stmt.executeQuery (query), cache, fromPrimary(pc, stamp), query, key);
+			//keeps what a write with RETURNING did; the pool rolls back what is not committed
+			pc.connection().commit();
+			timer.record(System.nanoTime() - start, rowCount);
+			return rowCount;
+		}catch (SQLException e) {
+			timer.failed(System.nanoTime() - start);
+			throw e;
+		}finally {
+			queried(cache, stamp, query);
+		}//end try
 	}
 	
 	/**
@@ -126,31 +408,47 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
+		QueryCache cache = this._queryCache;
+		List<List<String>> cached = rowsCached(cache, query, NO_PARAMS);
+		if (cached != null) {
+			return cached;
+		}
+		QueryCache.Stamp stamp = cache == null ? null : cache.stamp(query);
+		Metrics.Timer timer = this._metrics.statement(query);
+		long start = System.nanoTime();
+		//borrows a connection and creates a statement object 
+		try (PooledConnection pc = borrowFor(query);
+		     Statement stmt = pc.connection().createStatement ()) {
 		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
+			//issues the query instruction 
+			ResultSet rs = stmt.executeQuery (query); 
 	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
+			/*
+			 * obtains the metadata object for the returned result set.  The metadata 
+			 * contains row and column info. 
+			*/ 
+			ResultSetMetaData rsmd = rs.getMetaData (); 
+			int numCol = rsmd.getColumnCount (); 
+			int rowCount = 0; 
 	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+			//iterates through the result set and saves the data returned by the query. 
+			boolean outputHeader = false;
+			List<List<String>> result  = new ArrayList<List<String>>(); 
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(); 
+				for (int i=1; i<=numCol; ++i) 
+					record.add(rs.getString (i)); 
+				result.add(record); 
+			}//end while 
+			timer.record(System.nanoTime() - start, result.size());
+			cacheRows(cache, fromPrimary(pc, stamp), query, NO_PARAMS, result);
+			return result; 
+		}catch (SQLException e) {
+			timer.failed(System.nanoTime() - start);
+			throw e;
+		}finally {
+			queried(cache, stamp, query);
+		}//end try
 	}//end executeQueryAndReturnResult
 	
 	/**
@@ -162,26 +460,1140 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		Metrics.Timer timer = this._metrics.statement(query);
+		long start = System.nanoTime();
+		//borrows a connection and creates a statement object
+		try (PooledConnection pc = borrowFor(query);
+		     Statement stmt = pc.connection().createStatement ()) {
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
 
-		int rowCount = 0;
+			int rowCount = 0;
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			timer.record(System.nanoTime() - start, rowCount);
+			return rowCount;
+		}catch (SQLException e) {
+			timer.failed(System.nanoTime() - start);
+			throw e;
+		}//end try
 	}
 	
+	/**
+	 * Method to execute a parameterized update SQL statement.  The statement
+	 * is prepared once per pooled connection and reused afterwards.
+	 * 
+	 * @param sql the SQL string with '?' placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 */
+	public int executeUpdate (String sql, Object... params) throws SQLException {
+		return updateOn(this._pool, sql, params);
+	}//end executeUpdate
+
+	//runs a parameterized update on the database of a pool, e.g. of one shard
+	private int updateOn (ConnectionPool pool, String sql, Object... params) throws SQLException {
+		Metrics.Timer timer = this._metrics.statement(sql);
+		long start = System.nanoTime();
+		try (PooledConnection pc = pool.borrow()) {
+			PreparedStatement ps = prepare(pc, sql, params);
+			int rowCount = ps.executeUpdate ();
+			timer.record(System.nanoTime() - start, rowCount);
+			return rowCount;
+		}catch (SQLException e) {
+			timer.failed(System.nanoTime() - start);
+			throw e;
+		}finally {
+			written(sql);
+		}//end try
+	}//end updateOn
+
+	//inserts a row of a table copied to every shard.  A shard that failed misses the row; running the
+	//insert again adds it there, since shards that have it already skip it through idempotentSql
+	private int updateEverywhere (String sql, final String idempotentSql, final Object... params) throws SQLException {
+		ShardSet shards = this._shards;
+		if (shards.size() == 1) {
+			return executeUpdate(sql, params);
+		}
+		final List<Integer> failed = Collections.synchronizedList(new ArrayList<Integer>());
+		final SQLException[] cause = { null };
+		List<Integer> rows = shards.scatter(shard -> {
+			try {
+				return updateOn(shard.pool, idempotentSql, params);
+			}catch (SQLException e) {
+				synchronized (cause) {
+					failed.add(shard.index);
+					if (cause[0] == null) {
+						cause[0] = e;
+					}
+				}
+				return 0;
+			}
+		});
+		if (!failed.isEmpty()) {
+			Collections.sort(failed);
+			throw new SQLException("the write failed on shards " + failed + ": " + cause[0].getMessage(),
+				cause[0].getSQLState(), cause[0]);
+		}
+		int inserted = 0;
+		for (int r : rows) {
+			inserted = Math.max(inserted, r);
+		}
+		if (inserted == 0) {
+			//as the single database would have said
+			throw new SQLException("the row exists already on every shard", UNIQUE_VIOLATION);
+		}
+		return inserted;
+	}//end updateEverywhere
+
+	/**
+	 * Method to execute a parameterized query and output the results to
+	 * standard out.
+	 * 
+	 * @param query the query string with '?' placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		QueryCache cache = this._queryCache;
+		Object[] key = printKey(params);
+		int cached = printCached(cache, query, key);
+		if (cached >= 0) {
+			return cached;
+		}
+		QueryCache.Stamp stamp = cache == null ? null : cache.stamp(query);
+		Metrics.Timer timer = this._metrics.statement(query);
+		long start = System.nanoTime();
+		try (PooledConnection pc = borrowFor(query)) {
+			pc.connection().setAutoCommit(false);
+			PreparedStatement ps = prepare(pc, query, params);
+			ps.setFetchSize(DEFAULT_FETCH_SIZE);
+			try {
+				int rowCount = printResult(ps.executeQuery (), cache, fromPrimary(pc, stamp), query, key);
+				//keeps what a write with RETURNING did; the pool rolls back what is not committed
+				pc.connection().commit();
+				timer.record(System.nanoTime() - start, rowCount);
+				return rowCount;
+			}finally {
+				ps.setFetchSize(0);
+			}
+		}catch (SQLException e) {
+			timer.failed(System.nanoTime() - start);
+			throw e;
+		}finally {
+			queried(cache, stamp, query);
+		}//end try
+	}
+
+	//renders a result set to standard out in the configured format, keeping small results in the cache
+	private int printResult(ResultSet rs, QueryCache cache, QueryCache.Stamp stamp, String query, Object[] key) throws SQLException {
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+			QueryCache.Capture capture = stamp == null ? null : new QueryCache.Capture(out, cache.getMaxRenderedChars());
+			int rowCount = ResultRenderer.create(this._format).render(rs, capture == null ? out : capture);
+			if (capture != null) {
+				String text = capture.captured();
+				if (text != null) {
+					cache.put(query, key, stamp, new QueryCache.Rendered(text, rowCount), 2L * text.length());
+				}
+				capture.flush();
+			}
+			out.flush();
+			return rowCount;
+		}catch (IOException e) {
+			throw new SQLException("Unable to write the result: " + e.getMessage(), e);
+		}finally {
+			rs.close();
+		}
+	}
+
+	private static final Object[] NO_PARAMS = new Object[0];
+
+	//the cache key of a printed result, which depends on the output format
+	private Object[] printKey(Object[] params) {
+		Object[] key = java.util.Arrays.copyOf(params, params.length + 1);
+		key[params.length] = this._format;
+		return key;
+	}
+
+	//prints a cached result and returns its row count, or -1 when there is none
+	private int printCached(QueryCache cache, String query, Object[] key) throws SQLException {
+		if (cache == null || cache.readSet(query) == null) {
+			return -1;
+		}
+		QueryCache.Rendered cached = (QueryCache.Rendered) cache.get(query, key);
+		if (cached == null) {
+			return -1;
+		}
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+			out.write(cached.text);
+			out.flush();
+			return cached.rows;
+		}catch (IOException e) {
+			throw new SQLException("Unable to write the result: " + e.getMessage(), e);
+		}
+	}
+
+	//a copy of a cached result, so callers may change it, or null when there is none
+	@SuppressWarnings("unchecked")
+	private static List<List<String>> rowsCached(QueryCache cache, String query, Object[] params) {
+		if (cache == null || cache.readSet(query) == null) {
+			return null;
+		}
+		List<List<String>> cached = (List<List<String>>) cache.get(query, params);
+		if (cached == null) {
+			return null;
+		}
+		List<List<String>> result = new ArrayList<List<String>>(cached.size());
+		for (List<String> row : cached) {
+			result.add(new ArrayList<String>(row));
+		}
+		return result;
+	}
+
+	private static void cacheRows(QueryCache cache, QueryCache.Stamp stamp, String query, Object[] params,
+			List<List<String>> rows) {
+		if (stamp == null) {
+			return;
+		}
+		List<List<String>> copy = new ArrayList<List<String>>(rows.size());
+		for (List<String> row : rows) {
+			copy.add(new ArrayList<String>(row));
+		}
+		cache.put(query, params, stamp, copy, QueryCache.sizeOf(copy));
+	}
+
+	//the stamp to cache a result under, null when it was read from a replica: a replica may not have the
+	//writes of the current thread yet, and a hit on that result would hide them from the thread
+	private QueryCache.Stamp fromPrimary(PooledConnection pc, QueryCache.Stamp stamp) {
+		return pc.pool() == this._pool ? stamp : null;
+	}
+
+	//statements that are not cached may be writes with RETURNING
+	private static void queried(QueryCache cache, QueryCache.Stamp stamp, String query) {
+		if (cache != null && stamp == null) {
+			cache.queried(query);
+		}
+	}
+
+	private void written(String sql) {
+		wrote();
+		QueryCache cache = this._queryCache;
+		if (cache != null) {
+			cache.written(sql);
+		}
+	}
+
+	//keeps the reads of the current thread on the primary until the replicas have its write
+	private void wrote() {
+		ReplicaSet replicas = this._replicas;
+		if (replicas != null) {
+			replicas.wrote();
+		}
+	}
+
+	//marks tables changed by writes that bypass executeUpdate
+	private void changed(String... tables) {
+		wrote();
+		QueryCache cache = this._queryCache;
+		if (cache != null) {
+			cache.invalidate(tables);
+		}
+	}
+
+	/**
+	 * @param cache the query result cache, or null to disable caching
+	 */
+	public void setQueryCache(QueryCache cache) {
+		this._queryCache = cache;
+		this._metrics.setQueryCache(cache);
+	}
+
+	/**
+	 * @return the query result cache, or null when caching is disabled
+	 */
+	public QueryCache getQueryCache() {
+		return this._queryCache;
+	}
+
+	/**
+	 * Reports connections of every shard held longer than a threshold, with
+	 * the stack of their borrower, see ConnectionPool.
+	 *
+	 * @param millis the threshold, or 0 to disable detection
+	 */
+	public void setLeakThresholdMillis(long millis) {
+		for (ConnectionPool pool : this._shards.pools()) {
+			pool.setLeakThresholdMillis(millis);
+		}
+	}
+
+	/**
+	 * @param format the format used by executeQueryAndPrintResult
+	 */
+	public void setOutputFormat(ResultRenderer.Format format) {
+		this._format = format;
+	}
+
+	/**
+	 * Method to execute a parameterized query and return the results as a
+	 * list of records.
+	 * 
+	 * @param query the query string with '?' placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+		QueryCache cache = this._queryCache;
+		List<List<String>> cached = rowsCached(cache, query, params);
+		if (cached != null) {
+			return cached;
+		}
+		QueryCache.Stamp stamp = cache == null ? null : cache.stamp(query);
+		Metrics.Timer timer = this._metrics.statement(query);
+		long start = System.nanoTime();
+		try (PooledConnection pc = borrowFor(query);
+		     ResultSet rs = prepare(pc, query, params).executeQuery ()) {
+			int numCol = rs.getMetaData ().getColumnCount ();
+			List<List<String>> result  = new ArrayList<List<String>>();
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(numCol);
+				for (int i=1; i<=numCol; ++i)
+					record.add(rs.getString (i));
+				result.add(record);
+			}//end while
+			timer.record(System.nanoTime() - start, result.size());
+			cacheRows(cache, fromPrimary(pc, stamp), query, params, result);
+			return result;
+		}catch (SQLException e) {
+			timer.failed(System.nanoTime() - start);
+			throw e;
+		}finally {
+			queried(cache, stamp, query);
+		}//end try
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute a parameterized query and return whether it
+	 * produced a row (1) or not (0).
+	 * 
+	 * @param query the query string with '?' placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned, at most one
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query, Object... params) throws SQLException {
+		Metrics.Timer timer = this._metrics.statement(query);
+		long start = System.nanoTime();
+		try (PooledConnection pc = borrowFor(query);
+		     ResultSet rs = prepare(pc, query, params).executeQuery ()) {
+			int rowCount = rs.next() ? 1 : 0;
+			timer.record(System.nanoTime() - start, rowCount);
+			return rowCount;
+		}catch (SQLException e) {
+			timer.failed(System.nanoTime() - start);
+			throw e;
+		}//end try
+	}
+
+	/**
+	 * Callback receiving the rows of a streamed query one at a time.
+	 */
+	public interface RowHandler {
+		/**
+		 * @param row the result set positioned on the current row; read it
+		 *            with the typed getters and do not keep a reference to it
+		 * @throws java.sql.SQLException to abort the query
+		 */
+		void handle(ResultSet row) throws SQLException;
+	}
+
+	/**
+	 * Method to execute a parameterized query and stream its rows to a
+	 * handler.  The query runs through a server-side cursor that fetches
+	 * fetchSize rows per round trip, so memory use does not depend on the
+	 * size of the result.
+	 * 
+	 * @param query the query string with '?' placeholders
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @param handler called once per row
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows streamed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long executeQueryStreaming (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+		Metrics.Timer timer = this._metrics.statement(query);
+		long start = System.nanoTime();
+		try (PooledConnection pc = borrowFor(query)) {
+			//the driver only uses a cursor inside a transaction
+			pc.connection().setAutoCommit(false);
+			PreparedStatement ps = prepare(pc, query, params);
+			ps.setFetchSize(fetchSize);
+			long rowCount = 0;
+			try (ResultSet rs = ps.executeQuery ()) {
+				while (rs.next()) {
+					handler.handle(rs);
+					++rowCount;
+				}//end while
+			}finally {
+				//the statement stays cached for callers that expect the default
+				ps.setFetchSize(0);
+			}
+			//keeps what a write with RETURNING did; the pool rolls back what is not committed
+			pc.connection().commit();
+			timer.record(System.nanoTime() - start, rowCount);
+			return rowCount;
+		}catch (SQLException e) {
+			timer.failed(System.nanoTime() - start);
+			throw e;
+		}//end try
+	}//end executeQueryStreaming
+
+	//runs a short parameterized query on an autocommit connection of a pool, without a cursor
+	private int forEachRow (ConnectionPool pool, String query, RowHandler handler, Object... params) throws SQLException {
+		Metrics.Timer timer = this._metrics.statement(query);
+		long start = System.nanoTime();
+		try (PooledConnection pc = pool.borrow();
+		     ResultSet rs = prepare(pc, query, params).executeQuery ()) {
+			int rowCount = 0;
+			while (rs.next()) {
+				handler.handle(rs);
+				++rowCount;
+			}//end while
+			timer.record(System.nanoTime() - start, rowCount);
+			return rowCount;
+		}catch (SQLException e) {
+			timer.failed(System.nanoTime() - start);
+			throw e;
+		}//end try
+	}
+
+	//runs ';' separated queries in one round trip, handing the rows of the i-th result to handlers[i]
+	private int forEachResult (ConnectionPool pool, String query, RowHandler[] handlers, Object... params) throws SQLException {
+		Metrics.Timer timer = this._metrics.statement(query);
+		long start = System.nanoTime();
+		try (PooledConnection pc = pool.borrow()) {
+			PreparedStatement ps = prepare(pc, query, params);
+			int rowCount = 0;
+			int result = 0;
+			boolean isResultSet = ps.execute();
+			while (isResultSet || ps.getUpdateCount() != -1) {
+				if (isResultSet) {
+					try (ResultSet rs = ps.getResultSet()) {
+						while (rs.next()) {
+							handlers[result].handle(rs);
+							++rowCount;
+						}//end while
+					}
+					++result;
+				}
+				isResultSet = ps.getMoreResults();
+			}//end while
+			timer.record(System.nanoTime() - start, rowCount);
+			return rowCount;
+		}catch (SQLException e) {
+			timer.failed(System.nanoTime() - start);
+			throw e;
+		}//end try
+	}
+
+	//fetches the cached statement for sql on pc and binds params to it
+	private static PreparedStatement prepare(PooledConnection pc, String sql, Object[] params) throws SQLException {
+		PreparedStatement ps = pc.prepare(sql);
+		for (int i = 0; i < params.length; ++i) {
+			ps.setObject(i + 1, params[i]);
+		}
+		return ps;
+	}
+
+	/**
+	 * Method to allocate a new reservation number.  Numbers come from a block
+	 * leased from the reservation sequence, so no round trip is needed for
+	 * most calls and concurrent clients never receive the same number.
+	 * With shards, the number belongs to the first one.
+	 * 
+	 * @return an unused reservation number
+	 * @throws java.sql.SQLException when a new block could not be leased
+	 */
+	public int nextReservationNumber() throws SQLException {
+		return this._shards.get(0).rnums.next();
+	}
+
+	/**
+	 * Method to book a cruise for a customer.  A seat is claimed and the
+	 * reservation inserted in one statement; the reservation is confirmed
+	 * when a seat was free and waitlisted otherwise.
+	 * 
+	 * @param ccid the customer id
+	 * @param cid the cruise number
+	 * @return the new reservation
+	 * @throws java.sql.SQLException when the booking failed
+	 */
+	public BookingEngine.Booking bookCruise(final int ccid, final int cid) throws SQLException {
+		return this._metrics.time("bookCruise", () -> {
+			ShardSet.Shard shard = this._shards.of(cid);
+			long since = this._seats.stamp();
+			BookingEngine.Booking booking = shard.booking.book(shard.rnums.next(), ccid, cid);
+			changed("Reservation", "Cruise");
+			this._statuses.added(cid, booking.status);
+			if (booking.isConfirmed()) {
+				this._seats.put(cid, booking.seatsLeft, since);
+			}
+			else {
+				this._seats.invalidate(cid);
+			}
+			return booking;
+		});
+	}
+
+	/**
+	 * Method to find the number of available seats of a cruise, i.e. the
+	 * capacity of its ship minus the seats sold.  Served from the seat cache
+	 * and loaded from the database on a miss.
+	 * 
+	 * @param cnum the cruise number
+	 * @return the available seats, or SeatCache.MISSING for an unknown cruise
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int getAvailableSeats(final int cnum) throws SQLException {
+		return this._metrics.time("availableSeats", () -> seatsLeft(cnum));
+	}
+
+	//seats left on a cruise from the seat cache, loading it on a miss
+	private int seatsLeft(int cnum) throws SQLException {
+		int seats = this._seats.get(cnum);
+		if (seats != SeatCache.MISSING) {
+			return seats;
+		}
+		final int[] found = { SeatCache.MISSING };
+		long since = this._seats.stamp();
+		forEachRow(this._shards.of(cnum).pool, SQL_AVAILABLE_SEATS, row -> found[0] = row.getInt(2), cnum);
+		if (found[0] != SeatCache.MISSING) {
+			this._seats.put(cnum, found[0], since);
+		}
+		return found[0];
+	}
+
+	/**
+	 * Method to find the cruises leaving a port within a range of days that
+	 * have seats left.  Served from the departure index and the seat cache.
+	 * 
+	 * @param port the departure port, or null for every port
+	 * @param from the first day, yyyy-MM-dd
+	 * @param until the day after the last day, yyyy-MM-dd
+	 * @param minSeats the seats a cruise needs to have left
+	 * @return the departures by day and then cruise number
+	 * @throws java.sql.SQLException when the index or the seats could not be loaded
+	 */
+	public List<DepartureIndex.Departure> findDepartures(String port, String from, String until, int minSeats) throws SQLException {
+		final LocalDate first;
+		final LocalDate end;
+		try {
+			first = LocalDate.parse(from);
+			end = LocalDate.parse(until);
+		}catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("dates have to be yyyy-MM-dd: " + e.getParsedString());
+		}
+		return this._metrics.time("departures", () -> {
+			if (!this._departures.isLoaded()) {
+				this._departures.load(this._shards.pools());
+			}
+			return this._departures.search(port, first, end, minSeats, this::seatsLeft);
+		});
+	}
+
+	/**
+	 * Method to plan a trip between two ports, changing cruises on the way
+	 * when needed.  Served from the route planner.
+	 * 
+	 * @param from the departure port
+	 * @param to the arrival port
+	 * @param earliest the first day the trip may depart, yyyy-MM-dd
+	 * @param minConnectDays the days needed between arriving at a port and leaving it again
+	 * @param cheapest find the cheapest trip rather than the one arriving first
+	 * @return the trip, or null when the ports are not connected
+	 * @throws java.sql.SQLException when the cruises could not be loaded
+	 */
+	public RoutePlanner.Itinerary planRoute(String from, String to, String earliest, int minConnectDays,
+			boolean cheapest) throws SQLException {
+		final LocalDate day;
+		try {
+			day = LocalDate.parse(earliest);
+		}catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("dates have to be yyyy-MM-dd: " + e.getParsedString());
+		}
+		return this._metrics.time(cheapest ? "cheapestRoute" : "earliestRoute", () -> {
+			if (!this._routes.isLoaded()) {
+				this._routes.load(this._shards.pools());
+			}
+			return cheapest ? this._routes.cheapest(from, to, day, minConnectDays)
+				: this._routes.earliestArrival(from, to, day, minConnectDays);
+		});
+	}
+
+	/**
+	 * @return the sailings graph used to plan trips
+	 */
+	public RoutePlanner getRoutePlanner() {
+		return this._routes;
+	}
+
+	/**
+	 * @return the departures per port and day
+	 */
+	public DepartureIndex getDepartureIndex() {
+		return this._departures;
+	}
+
+	/**
+	 * @return the cache of available seats per cruise
+	 */
+	public SeatCache getSeatCache() {
+		return this._seats;
+	}
+
+	/**
+	 * Method to add a ship, on every shard.  After a failure on some shards
+	 * the same call can be repeated; it adds the ship where it is missing.
+	 * 
+	 * @return the number of rows inserted on one shard
+	 * @throws java.sql.SQLException when the insert failed, naming the shards it failed on
+	 */
+	public int addShip(int id, String make, String model, int age, int seats) throws SQLException {
+		return this._metrics.time("addShip", () -> updateEverywhere(SQL_ADD_SHIP, SQL_ADD_SHIP_EVERYWHERE, id, make, model, age, seats));
+	}
+
+	/**
+	 * Method to add a captain, on every shard.  After a failure on some
+	 * shards the same call can be repeated; it adds the captain where it is
+	 * missing.
+	 * 
+	 * @return the number of rows inserted on one shard
+	 * @throws java.sql.SQLException when the insert failed, naming the shards it failed on
+	 */
+	public int addCaptain(int id, String fullname, String nationality) throws SQLException {
+		return this._metrics.time("addCaptain", () -> updateEverywhere(SQL_ADD_CAPTAIN, SQL_ADD_CAPTAIN_EVERYWHERE, id, fullname, nationality));
+	}
+
+	/**
+	 * Method to add a cruise.  Dates are given as yyyy-MM-dd HH:mm.
+	 * 
+	 * @return the number of rows inserted
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public int addCruise(int cnum, int cost, int numSold, int numStops, String departureDate,
+			String arrivalDate, String arrivalPort, String departurePort) throws SQLException {
+		return this._metrics.time("addCruise", () -> {
+			ConnectionPool pool = this._shards.of(cnum).pool;
+			int rows = updateOn(pool, SQL_ADD_CRUISE, cnum, cost, numSold, numStops,
+				departureDate, arrivalDate, arrivalPort, departurePort);
+			if (!this._departures.add(cnum, departurePort, departureDate)) {
+				//the database read a date format the index does not
+				this._departures.refresh(pool, cnum);
+			}
+			if (!this._routes.add(cnum, cost, numStops, departureDate, arrivalDate, arrivalPort, departurePort)) {
+				this._routes.refresh(pool, cnum);
+			}
+			return rows;
+		});
+	}
+
+	/**
+	 * Method to look up the reservation of a customer on a cruise.
+	 * 
+	 * @return the reservation status, or null when there is none
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public String getReservationStatus(int ccid, int cid) throws SQLException {
+		return this._metrics.time("reservationStatus", () -> {
+			ShardSet.Shard shard = this._shards.of(cid);
+			if (shard.index == 0) {
+				//cached, and answered by the replicas when there are some
+				List<List<String>> rows = executeQueryAndReturnResult(SQL_RESERVATION_STATUS, ccid, cid);
+				return rows.isEmpty() ? null : rows.get(0).get(0);
+			}
+			final String[] status = { null };
+			forEachRow(shard.pool, SQL_RESERVATION_STATUS, row -> status[0] = row.getString(1), ccid, cid);
+			return status[0];
+		});
+	}
+
+	/**
+	 * A customer's reservation on a cruise together with the seats left on it.
+	 */
+	public static class ReservationCheck {
+		//null when the customer has no reservation on the cruise
+		public final String status;
+		//SeatCache.MISSING when no ship is assigned to the cruise
+		public final int seats;
+
+		ReservationCheck(String status, int seats) {
+			this.status = status;
+			this.seats = seats;
+		}
+	}
+
+	/**
+	 * Method to look up the reservation of a customer on a cruise and the
+	 * seats left on it.  Seats missing from the seat cache are queried in
+	 * the same round trip as the reservation.
+	 * 
+	 * @return the reservation status and the seats left
+	 * @throws java.sql.SQLException when failed to execute the queries
+	 */
+	public ReservationCheck checkReservation(int ccid, int cid) throws SQLException {
+		return this._metrics.time("checkReservation", () -> {
+			ConnectionPool pool = this._shards.of(cid).pool;
+			final String[] status = { null };
+			final int[] seats = { this._seats.get(cid) };
+			if (seats[0] != SeatCache.MISSING) {
+				forEachRow(pool, SQL_RESERVATION_STATUS, row -> status[0] = row.getString(1), ccid, cid);
+				return new ReservationCheck(status[0], seats[0]);
+			}
+			long since = this._seats.stamp();
+			forEachResult(pool, SQL_RESERVATION_AND_SEATS, new RowHandler[] {
+				row -> status[0] = row.getString(1),
+				row -> seats[0] = row.getInt(2)
+			}, ccid, cid, cid);
+			if (seats[0] != SeatCache.MISSING) {
+				this._seats.put(cid, seats[0], since);
+			}
+			return new ReservationCheck(status[0], seats[0]);
+		});
+	}
+
+	/**
+	 * Method to change the status of a customer's reservation on a cruise.
+	 * Taking a reservation off the waitlist needs a free seat; putting it
+	 * back gives its seat to the first waitlisted reservation.
+	 * 
+	 * @return the number of reservations updated
+	 * @throws java.sql.SQLException when the update failed or no seat is free
+	 */
+	public int setReservationStatus(int ccid, int cid, String status) throws SQLException {
+		return this._metrics.time("setReservationStatus", () -> {
+			long since = this._seats.stamp();
+			WaitlistEngine.Outcome outcome = this._shards.of(cid).waitlist.changeStatus(ccid, cid, status);
+			for (String old : outcome.previous) {
+				this._statuses.changed(cid, old, status);
+			}
+			applyWaitlist(outcome, since);
+			return outcome.previous.size();
+		});
+	}
+
+	/**
+	 * Method to cancel a customer's reservation on a cruise.  The seat it
+	 * held goes to the first waitlisted reservation in the same transaction.
+	 * 
+	 * @return the cancellation and the promotions it caused
+	 * @throws java.sql.SQLException when the cancellation failed
+	 */
+	public WaitlistEngine.Outcome cancelReservation(int ccid, int cid) throws SQLException {
+		return this._metrics.time("cancelReservation", () -> {
+			long since = this._seats.stamp();
+			WaitlistEngine.Outcome outcome = this._shards.of(cid).waitlist.cancel(ccid, cid);
+			for (String old : outcome.previous) {
+				this._statuses.removed(cid, old);
+			}
+			applyWaitlist(outcome, since);
+			return outcome;
+		});
+	}
+
+	/**
+	 * Method to fill the free seats of cruises from their waitlists, e.g.
+	 * after a sale or a capacity change made outside this program.
+	 * 
+	 * @param cids the cruise numbers
+	 * @return the promotions
+	 * @throws java.sql.SQLException when the promotion failed
+	 */
+	public WaitlistEngine.Outcome promoteWaitlist(int... cids) throws SQLException {
+		return this._metrics.time("promoteWaitlist", () -> {
+			ShardSet shards = this._shards;
+			if (shards.size() == 1) {
+				long since = this._seats.stamp();
+				WaitlistEngine.Outcome outcome = shards.get(0).waitlist.promote(cids);
+				applyWaitlist(outcome, since);
+				return outcome;
+			}
+			//one transaction per shard, each applied once it committed
+			int[][] split = shards.split(cids);
+			final WaitlistEngine.Outcome outcome = new WaitlistEngine.Outcome();
+			for (int i = 0; i < split.length; ++i) {
+				if (split[i].length == 0) {
+					continue;
+				}
+				//stamped per shard, after the counts of the shards before were stored
+				long since = this._seats.stamp();
+				WaitlistEngine.Outcome part = shards.get(i).waitlist.promote(split[i]);
+				applyWaitlist(part, since);
+				outcome.previous.addAll(part.previous);
+				outcome.promoted.addAll(part.promoted);
+				part.seatsLeft.forEach(outcome.seatsLeft::put);
+			}
+			return outcome;
+		});
+	}
+
+	//brings the seat cache and status counters in line with a committed waitlist change,
+	//since being the seat cache stamp taken before the change
+	private void applyWaitlist(WaitlistEngine.Outcome outcome, long since) {
+		changed("Reservation", "Cruise");
+		for (WaitlistEngine.Promotion p : outcome.promoted) {
+			this._statuses.changed(p.cid, "W", "C");
+		}
+		this._seats.putAll(outcome.seatsLeft, since);
+	}
+
+	/**
+	 * Method to add a repair.  The date is given as yyyy-MM-dd.
+	 * 
+	 * @return the number of rows inserted
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public int addRepair(int rid, String repairDate, String repairCode, int captainId, int shipId,
+			int technicianId) throws SQLException {
+		return this._metrics.time("addRepair", () -> {
+			int rows = updateOn(this._shards.of(shipId).pool, SQL_ADD_REPAIR, rid, repairDate, repairCode, captainId,
+				shipId, technicianId);
+			this._repairs.increment(shipId);
+			return rows;
+		});
+	}
+
+	/**
+	 * Method to count the repairs of every ship.  Served from the repair
+	 * leaderboard.
+	 * 
+	 * @return {ship_id, repairs} pairs, most repaired ship first
+	 * @throws java.sql.SQLException when the leaderboard could not be loaded
+	 */
+	public List<int[]> getRepairsPerShip() throws SQLException {
+		return getMostRepairedShips(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Method to find the most repaired ships.  Served from the repair
+	 * leaderboard in O(k).
+	 * 
+	 * @param k the number of ships wanted
+	 * @return {ship_id, repairs} pairs, most repaired ship first
+	 * @throws java.sql.SQLException when the leaderboard could not be loaded
+	 */
+	public List<int[]> getMostRepairedShips(int k) throws SQLException {
+		return this._metrics.time("repairsPerShip", () -> {
+			if (!this._repairs.isLoaded()) {
+				this._repairs.load(this._shards.pools());
+			}
+			return this._repairs.top(k);
+		});
+	}
+
+	/**
+	 * Method to find the most repaired ships within a period.  Aggregates
+	 * the repairs of that period in the database, on every shard at once.
+	 * 
+	 * @param from the first day of the period, yyyy-MM-dd
+	 * @param until the day after the period, yyyy-MM-dd
+	 * @param k the number of ships wanted
+	 * @return {ship_id, repairs} pairs, most repaired ship first
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<int[]> getMostRepairedShips(String from, String until, int k) throws SQLException {
+		final List<int[]> result = new ArrayList<int[]>();
+		return this._metrics.time("repairsInWindow", () -> {
+			ShardSet shards = this._shards;
+			if (shards.size() == 1) {
+				executeQueryStreaming(SQL_REPAIRS_IN_WINDOW, DEFAULT_FETCH_SIZE,
+					row -> result.add(new int[] { row.getInt(1), row.getInt(2) }), from, until, k);
+				return result;
+			}
+			//the repairs of a ship are on one shard, so the top k overall are among the top k of each
+			List<List<int[]>> parts = shards.scatter(shard -> {
+				final List<int[]> top = new ArrayList<int[]>();
+				forEachRow(shard.pool, SQL_REPAIRS_IN_WINDOW, row -> top.add(new int[] { row.getInt(1), row.getInt(2) }),
+					from, until, k);
+				return top;
+			});
+			for (List<int[]> part : parts) {
+				result.addAll(part);
+			}
+			//the order of SQL_REPAIRS_IN_WINDOW
+			result.sort((a, b) -> a[1] != b[1] ? Integer.compare(b[1], a[1]) : Integer.compare(a[0], b[0]));
+			return result.size() > k ? new ArrayList<int[]>(result.subList(0, k)) : result;
+		});
+	}
+
+	/**
+	 * @return the ranking of ships by repairs
+	 */
+	public RepairLeaderboard getRepairLeaderboard() {
+		return this._repairs;
+	}
+
+	/**
+	 * Method to count the reservations with a given status.  Served from the
+	 * status counters once they are loaded, and summed over the shards
+	 * otherwise.
+	 * 
+	 * @param status W, C or R
+	 * @return the number of reservations
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long countPassengersWithStatus(String status) throws SQLException {
+		return this._metrics.time("statusCount", () -> {
+			if (this._statuses.isLoaded()) {
+				return this._statuses.count(status);
+			}
+			long count = 0;
+			for (long n : this._shards.scatter(shard -> {
+				final long[] found = { 0 };
+				forEachRow(shard.pool, SQL_COUNT_STATUS, row -> found[0] = row.getLong(1), status);
+				return found[0];
+			})) {
+				count += n;
+			}
+			return count;
+		});
+	}
+
+	/**
+	 * Method to count the reservations of a cruise by status.
+	 * 
+	 * @param cid the cruise number
+	 * @return the number of W, C and R reservations, in that order
+	 * @throws java.sql.SQLException when the counts could not be loaded
+	 */
+	public int[] countPassengersByStatus(int cid) throws SQLException {
+		return this._metrics.time("statusCountByCruise", () -> {
+			if (!this._statuses.isLoaded()) {
+				this._statuses.load(this._shards.pools());
+			}
+			return this._statuses.countByCruise(cid);
+		});
+	}
+
+	/**
+	 * @return the latency, error and row counts of this instance
+	 */
+	public Metrics getMetrics() {
+		return this._metrics;
+	}
+
+	/**
+	 * @return the reservation counts per status
+	 */
+	public StatusCounters getStatusCounters() {
+		return this._statuses;
+	}
+
+	/**
+	 * Applies the writes of other clients, as reported by the change
+	 * listener, to the state kept in memory.  Entries of the changed rows are
+	 * dropped; structures that cannot be patched row by row are loaded again,
+	 * at most once per burst.
+	 *
+	 * @param pool the pool of the shard the changes were made on
+	 * @param changes the changed rows per table
+	 */
+	private void applyChanges(ConnectionPool pool, List<ChangeListener.Change> changes) {
+		QueryCache cache = this._queryCache;
+		boolean seats = false;
+		boolean departures = false;
+		boolean routes = false;
+		boolean repairs = false;
+		boolean statuses = false;
+		for (ChangeListener.Change change : changes) {
+			if (change.everything()) {
+				if (cache != null) {
+					cache.clear();
+				}
+				seats = departures = routes = repairs = statuses = true;
+				continue;
+			}
+			if (cache != null) {
+				cache.invalidate(change.table);
+			}
+			switch (change.table) {
+				case "cruise":
+					if (change.keys == null) {
+						seats = true;
+					}
+					else {
+						for (int cnum : change.keys) {
+							this._seats.invalidate(cnum);
+						}
+					}
+					//bookings only move num_sold, which departures and routes do not keep
+					if (change.only(ChangeListener.SEATS)) {
+						break;
+					}
+					if (change.keys != null && change.keys.length <= CHANGED_CRUISE_LOOKUPS
+							&& change.only(ChangeListener.INSERT | ChangeListener.SEATS)) {
+						try {
+							for (int cnum : change.keys) {
+								this._departures.refresh(pool, cnum);
+								this._routes.refresh(pool, cnum);
+							}
+							break;
+						}catch (SQLException e) {
+							//falls back to loading both again
+						}
+					}
+					departures = routes = true;
+					break;
+				case "cruiseinfo":
+					if (change.keys == null) {
+						seats = true;
+					}
+					else {
+						for (int cnum : change.keys) {
+							this._seats.invalidate(cnum);
+						}
+					}
+					break;
+				case "ship":
+					//the cruises of a ship are not known here
+					seats = true;
+					break;
+				case "schedule":
+					departures = true;
+					break;
+				case "repairs":
+					repairs = true;
+					break;
+				case "reservation":
+					if (change.keys == null) {
+						statuses = true;
+					}
+					else {
+						try {
+							this._statuses.refresh(pool, change.keys);
+						}catch (SQLException e) {
+							statuses = true;
+						}
+					}
+					break;
+				default:
+					break;
+			}//end switch
+		}//end for
+
+		if (seats) {
+			//lookups go to the database until the cache fills up again
+			this._seats.clear();
+		}
+		ConnectionPool[] pools = this._shards.pools();
+		try{
+			if (departures) {
+				this._departures.load(pools);
+			}
+			if (routes) {
+				this._routes.load(pools);
+			}
+			if (repairs) {
+				this._repairs.load(pools);
+			}
+			if (statuses) {
+				this._statuses.reconcile(pools);
+			}
+		}catch(SQLException e){
+			//the reconciler and the next burst or reconnect try again
+			System.err.println("Unable to apply the changes of other clients: " + e.getMessage());
+		}
+	}//end applyChanges
+
+	/**
+	 * @return the listener applying the writes of other clients, or null when there is none
+	 */
+	public ChangeListener getChangeListener() {
+		return this._changes;
+	}
+
+	/**
+	 * Method to load the data/*.csv files of a directory into the database
+	 * through the COPY protocol.  Independent tables load in parallel, and
+	 * so do the shards, each with its own rows.
+	 * 
+	 * @param dataDir the directory holding the CSV files
+	 * @param truncate empty the tables before loading them
+	 * @return the number of rows loaded
+	 * @throws java.sql.SQLException when a COPY failed
+	 * @throws java.io.IOException when a file could not be read
+	 */
+	public long bulkLoad(File dataDir, boolean truncate) throws SQLException, IOException {
+		long rows;
+		try {
+			rows = this._shards.load(dataDir, truncate);
+		}finally {
+			//every table may have changed, even when the load failed halfway
+			wrote();
+			QueryCache cache = this._queryCache;
+			if (cache != null) {
+				cache.clear();
+			}
+		}
+		//the catalog changed underneath the cache
+		ConnectionPool[] pools = this._shards.pools();
+		this._seats.clear();
+		for (ConnectionPool pool : pools) {
+			this._seats.warm(pool);
+		}
+		this._repairs.load(pools);
+		this._statuses.load(pools);
+		this._departures.load(pools);
+		this._routes.load(pools);
+		return rows;
+	}
+
+	/**
+	 * Method to insert many ships, captains or cruises read from a file, one
+	 * record per line in the column order of the data/*.csv files.  Rows are
+	 * sent in JDBC batches, one transaction per batch; rows that fail are
+	 * reported on standard error with their line number.  With shards,
+	 * ships and captains go to every shard and cruises to the shard of their
+	 * number.  New cruises are added to the departure index and the route
+	 * planner.
+	 * 
+	 * @param kind the kind of records to insert
+	 * @param records the records, one per line
+	 * @param batchSize the number of rows per batch
+	 * @return the number of rows inserted
+	 * @throws java.sql.SQLException when the database could not be reached
+	 * @throws java.io.IOException when the input could not be read
+	 */
+	public long batchInsert(BatchInserter.Kind kind, BufferedReader records, int batchSize) throws SQLException, IOException {
+		ConnectionPool[] pools = this._shards.pools();
+		long rows;
+		try {
+			rows = new BatchInserter(pools, kind, batchSize).insertAll(records);
+		}finally {
+			written(kind.sql);
+		}
+		//the listener skips the notifications of this process, so the new sailings are added here
+		if (kind == BatchInserter.Kind.CRUISE && rows > 0) {
+			this._departures.load(pools);
+			this._routes.load(pools);
+		}
+		return rows;
+	}
+
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * value of sequence used for autogenerated keys.  currval is session
+	 * local, so with pooled connections the value is only meaningful if the
+	 * borrowed connection is the one that last called nextval.
 	 * 
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
@@ -189,24 +1601,36 @@ public class DBproject{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		try (PooledConnection pc = this._pool.borrow();
+		     Statement stmt = pc.connection().createStatement ()) {
+			ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+			if (rs.next()) return rs.getInt(1);
+			return -1;
+		}
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to close the pooled physical connections if they are open.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		if (this._changes != null) {
+			this._changes.close();
+		}
+		for (ChangeListener listener : this._shardChanges) {
+			listener.close();
+		}
+		if (this._replicas != null) {
+			this._replicas.close();
+		}
+		if (this._shards != null) {
+			this._shards.close();
+		}
+		this._statuses.close();
+		this._seats.close();
+		this._metrics.close();
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -215,13 +1639,114 @@ public class DBproject{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
-			System.err.println (
-				"Usage: " + "java [-classpath <classpath>] " + DBproject.class.getName () +
-		            " <dbname> <port> <user>");
+		if (args.length < 3) {
+			usage();
 			return;
 		}//end if
+
+		//optional modes following the connection arguments
+		String loadDir = null;
+		boolean truncate = false;
+		BatchInserter.Kind batchKind = null;
+		String batchFile = null;
+		int batchSize = DEFAULT_BATCH_SIZE;
+		String execFile = null;
+		StringBuilder commands = new StringBuilder();
+		int threads = 1;
+		int servePort = 0;
+		ResultRenderer.Format format = ResultRenderer.Format.TSV;
+		String query = null;
+		int metricsSeconds = 0;
+		String metricsFile = null;
+		int cacheTtl = QUERY_CACHE_TTL_SECONDS;
+		boolean cache = true;
+		String host = "localhost";
+		List<String> replicas = new ArrayList<String>();
+		int replicaLag = DEFAULT_REPLICA_MAX_LAG_SECONDS;
+		List<String> shards = new ArrayList<String>();
+		long leakMillis = 0;
+		for (int i = 3; i < args.length; ++i) {
+			if (args[i].equals("--load") && i + 1 < args.length) {
+				loadDir = args[++i];
+			}
+			else if (args[i].equals("--truncate")) {
+				truncate = true;
+			}
+			else if (args[i].equals("--batch") && i + 2 < args.length) {
+				try {
+					batchKind = BatchInserter.Kind.parse(args[++i]);
+				}catch (IllegalArgumentException e) {
+					usage();
+					return;
+				}
+				batchFile = args[++i];
+			}
+			else if (args[i].equals("--batch-size") && i + 1 < args.length) {
+				batchSize = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--exec") && i + 1 < args.length) {
+				execFile = args[++i];
+			}
+			else if (args[i].equals("--cmd") && i + 1 < args.length) {
+				commands.append(args[++i]).append('\n');
+			}
+			else if (args[i].equals("--threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--serve") && i + 1 < args.length) {
+				servePort = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--format") && i + 1 < args.length) {
+				try {
+					format = ResultRenderer.Format.parse(args[++i]);
+				}catch (IllegalArgumentException e) {
+					usage();
+					return;
+				}
+			}
+			else if (args[i].equals("--query") && i + 1 < args.length) {
+				query = args[++i];
+			}
+			else if (args[i].equals("--metrics") && i + 1 < args.length) {
+				metricsSeconds = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--metrics-file") && i + 1 < args.length) {
+				metricsFile = args[++i];
+			}
+			else if (args[i].equals("--cache-ttl") && i + 1 < args.length) {
+				cacheTtl = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--no-cache")) {
+				cache = false;
+			}
+			else if (args[i].equals("--host") && i + 1 < args.length) {
+				host = args[++i];
+			}
+			else if (args[i].equals("--replica") && i + 1 < args.length && args[i + 1].indexOf(':') > 0) {
+				replicas.add(args[++i]);
+			}
+			else if (args[i].equals("--replica-lag") && i + 1 < args.length) {
+				replicaLag = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--shard") && i + 1 < args.length && args[i + 1].indexOf(':') > 0) {
+				shards.add(args[++i]);
+			}
+			else if (args[i].equals("--leak-ms") && i + 1 < args.length) {
+				leakMillis = Long.parseLong(args[++i]);
+			}
+			else {
+				usage();
+				return;
+			}
+		}//end for
 		
+		//in headless mode standard out carries only command results
+		boolean headless = execFile != null || commands.length() > 0 || query != null;
+		PrintStream results = System.out;
+		if (headless) {
+			System.setOut(System.err);
+		}
+
 		DBproject esql = null;
 		
 		try{
@@ -241,7 +1766,84 @@ public class DBproject{
 			String dbport = args[1];
 			String user = args[2];
 			
-			esql = new DBproject (dbname, dbport, user, "");
+			esql = new DBproject (host, dbname, dbport, user, "", Math.max(threads, DEFAULT_POOL_SIZE));
+			esql.setOutputFormat(format);
+			esql.setReplicaMaxLag(replicaLag);
+			for (String replica : replicas) {
+				//host:port, or host:port/dbname when the name differs
+				int colon = replica.indexOf(':');
+				int slash = replica.indexOf('/', colon);
+				esql.addReplica(replica.substring(0, colon), slash < 0 ? replica.substring(colon + 1) : replica.substring(colon + 1, slash),
+					slash < 0 ? dbname : replica.substring(slash + 1));
+			}
+			if (!shards.isEmpty()) {
+				List<String> urls = new ArrayList<String>();
+				for (String shard : shards) {
+					//host:port, or host:port/dbname when the name differs
+					urls.add("jdbc:postgresql://" + (shard.indexOf('/') < 0 ? shard + "/" + dbname : shard));
+				}
+				esql.shard(urls);
+			}
+			esql.setLeakThresholdMillis(leakMillis);
+			if (!cache) {
+				esql.setQueryCache(null);
+			}
+			else if (cacheTtl != QUERY_CACHE_TTL_SECONDS) {
+				esql.setQueryCache(new QueryCache(QUERY_CACHE_ENTRIES, QUERY_CACHE_BYTES, cacheTtl));
+			}
+			if (metricsSeconds > 0 || metricsFile != null) {
+				esql.getMetrics().startReporter(esql.getPool(), metricsSeconds > 0 ? metricsSeconds : DEFAULT_METRICS_SECONDS,
+					metricsSeconds > 0 ? System.err : null, metricsFile == null ? null : new File(metricsFile));
+			}
+
+			if (loadDir != null) {
+				esql.bulkLoad(new File(loadDir), truncate);
+				return;
+			}
+			if (batchKind != null) {
+				BufferedReader records = batchFile.equals("-") ? in : new BufferedReader(new FileReader(batchFile));
+				try {
+					esql.batchInsert(batchKind, records, batchSize);
+				}finally {
+					records.close();
+				}
+				return;
+			}
+			if (query != null) {
+				System.setOut(results);
+				try {
+					esql.executeQueryAndPrintResult(query);
+				}finally {
+					System.setOut(System.err);
+				}
+				return;
+			}
+			if (headless) {
+				BufferedReader script;
+				if (execFile == null) {
+					script = new BufferedReader(new StringReader(commands.toString()));
+				}
+				else {
+					script = execFile.equals("-") ? in : new BufferedReader(new FileReader(execFile));
+				}
+				try {
+					new CommandRunner(esql, results).run(script, threads);
+				}finally {
+					script.close();
+				}
+				return;
+			}
+			if (servePort > 0) {
+				final DBproject db = esql;
+				final HttpService service = new HttpService(db, servePort, Math.max(threads, DEFAULT_POOL_SIZE));
+				//serves until the process is stopped
+				Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+					service.stop();
+					db.cleanup();
+				}));
+				service.start();
+				Thread.currentThread().join();
+			}
 			
 			boolean keepon = true;
 			while(keepon){
@@ -272,6 +1874,12 @@ public class DBproject{
 		}finally{
 			try{
 				if(esql != null) {
+					if (metricsSeconds > 0) {
+						//whatever happened since the last periodic report
+						StringBuilder report = new StringBuilder();
+						esql.getMetrics().report(report, esql.getPool());
+						System.err.print(report);
+					}
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -282,6 +1890,19 @@ public class DBproject{
 		}
 	}
 
+	private static void usage() {
+		System.err.println (
+			"Usage: " + "java [-classpath <classpath>] " + DBproject.class.getName () +
+	            " <dbname> <port> <user> [--load <csv dir> [--truncate]]" +
+	            " [--batch <ship|captain|cruise> <file|-> [--batch-size <n>]]" +
+	            " [--exec <file|-> | --cmd <command>...] [--serve <http port>] [--threads <n>]" +
+	            " [--query <sql> [--format <table|tsv|csv|json>]]" +
+	            " [--metrics <report seconds>] [--metrics-file <prometheus file>]" +
+	            " [--cache-ttl <seconds, 0 for none> | --no-cache]" +
+	            " [--host <primary host>] [--replica <host:port[/dbname]>...] [--replica-lag <seconds>]" +
+	            " [--shard <host:port[/dbname]>...] [--leak-ms <connection hold millis>]");
+	}
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -406,9 +2027,7 @@ public class DBproject{
 		
 		try{
 			//input data we collected into Ship table
-			String query = "INSERT INTO Ship (ID, make, model,age,seats)"; 	
-			query += "VALUES (" + id + ", \'" + make + "\', \'" + model + "\', \'" +  age + "\', \'" + seats +"\');"; 
-		 esql.executeUpdate(query);
+			esql.addShip(id, make, model, age, seats);
 		}catch(Exception e){
 		 System.err.println (e.getMessage());
 		}
@@ -478,8 +2097,7 @@ public class DBproject{
 		
 		try{
 			//input a new captain into the Captain table
-			String query = "INSERT INTO Captain (ID, fullname, nationality) VALUES (" + id + ", \'" + fullname + "\', \'" + nationality +"\');"; 
-		 esql.executeUpdate(query);
+			esql.addCaptain(id, fullname, nationality);
 
 	      }catch(Exception e){
 		 System.err.println (e.getMessage());
@@ -644,9 +2262,7 @@ public class DBproject{
 		
 		try{
 			//Use the values and add a Cruise to the Cruise table 
-		String query = "INSERT INTO Cruise (cnum, cost, num_sold, num_stops,actual_departure_date,actual_arrival_date,arrival_port, departure_port)"; 
-		query += " VALUES (" + cnum  + ", \'" + cost  + "\', \'" + num_sold + "\', \'" + num_stops + "\', \'" +actual_departure_date;
-		query += "\', \'" +   actual_arrival_date  + "\', \'" + arrival_port   + "\', \'" + departure_port+"\');"; 		 esql.executeUpdate(query);
+			esql.addCruise(cnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_port, departure_port);
 			
 
 	      }catch(Exception e){
@@ -659,8 +2275,7 @@ public class DBproject{
 
 	public static void BookCruise(DBproject esql) {//4
 		int ccid, cid;
-		int rnum=0;
-		String  userInput, query, status;
+		String  userInput, status;
 		
 
 		do {
@@ -687,8 +2302,12 @@ public class DBproject{
 		}while(true) ;
 
 		try {
-			query = "SELECT status FROM Reservation WHERE ccid = " + ccid + "AND cid = " + cid + ";";
-			if(esql.executeQueryAndPrintResult(query) == 0) {
+			//the reservation and the seats left come back in one round trip
+			ReservationCheck check = esql.checkReservation(ccid, cid);
+			if(check.status == null) {
+				if(check.seats != SeatCache.MISSING) {
+					System.out.println("\tSeats left on this cruise: " + check.seats);
+				}
 				while(true) {
 					System.out.println("\tNo reservation yet. Do you want to book a cruise? 'yes' or 'no': ");
 					try {
@@ -696,50 +2315,19 @@ public class DBproject{
 						if(userInput.equals("yes") || userInput.equals("y")) {
 							
 							try {
-								query = "SELECT R.rnum FROM Reservation R;";
-								List <List<String>> Reservation_num  = esql.executeQueryAndReturnResult(query);
-								rnum = Reservation_num.size() + 1;
-							}
-							catch(Exception e) {
-								System.err.println(e.getMessage());
-							}
-							
-							
-							
-							
-							try {
-								query = "SELECT T1.cnum, T1.seats-T2.num_sold as availseats FROM (SELECT C1.cnum, S1.seats FROM Cruise C1, CruiseInfo CI1, Ship S1 WHERE CI1.ciid = C1.cnum AND CI1.ship_id = S1.id) AS T1, (SELECT C2.cnum, C2.num_sold FROM Cruise C2 GROUP BY C2.cnum) AS T2 WHERE T1.cnum = T2.cnum AND T1.cnum = " + cid + ";";
-								if(esql.executeQueryAndPrintResult(query)  == 0) {
-									status = "W";
-									System.out.print("There are no seats open on this cruise. You have been waitlisted.");
+								//claims a seat and inserts the reservation in one atomic statement
+								BookingEngine.Booking booking = esql.bookCruise(ccid, cid);
+								if(booking.isConfirmed()) {
+									System.out.println("Your reservation " + booking.rnum + " has been confirmed. Seats left: " + booking.seatsLeft);
 								}
 								else {
-									status = "C";
-									System.out.print("Your reservation has been confirmed");
+									System.out.println("There are no seats open on this cruise. Reservation " + booking.rnum + " has been waitlisted.");
 								}
-								
-									
 							}
 							catch(Exception e) {
 								System.err.println(e.getMessage());
 								continue;
 							}
-								
-							
-							
-								
-							try {
-								query = "INSERT INTO Reservation (rnum, ccid, cid, status) VALUES (" + rnum + ", " + ccid + ", " + cid + ", '" + status + "');";
-                                    				esql.executeUpdate(query);
-								
-								//query = "SELECT R.rnum, R.ccid, R.cid, R.status FROM Reservation R;";
-								//esql.executeQueryAndPrintResult(query);
-
-							}
-							catch(Exception e) {
-								System.err.println("Invalid input" + e.getMessage());
-								continue;
-							}
 							
 						}
 						else if(userInput.equals("no") || userInput.equals("n")) {
@@ -762,8 +2350,7 @@ public class DBproject{
 					 try {
                             			System.out.println("Reservation found.");
 									
-						query = "SELECT status FROM Reservation WHERE ccid = " + ccid + "AND cid = " + cid + ";";
-						status = esql.executeQueryAndReturnResult(query).get(0).get(0);
+						status = check.status;
 						//if(status == "R") {
 						//	System.out.print("You have reserved this cruise, would you like to confirm your reservation? Input yes or no.");
 						//}
@@ -776,11 +2363,11 @@ public class DBproject{
                             			userInput = in.readLine();
                             			if(userInput.equals("yes") || userInput.equals("y")) {
                                 			while (true) {
-                                    				System.out.print("Input new Reservation Status(W, C, or R): " );
+                                    				System.out.print("Input new Reservation Status(W, C, or R), or X to cancel it: " );
                                     				try {
                                         				status = in.readLine();
-                                        				if(!status.equals("W")  && !status.equals("C") && !status.equals("R")) {
-                                            					throw new RuntimeException("Your input is invalid! Status can only be W, C, or R");
+                                        				if(!status.equals("W")  && !status.equals("C") && !status.equals("R") && !status.equals("X")) {
+                                            					throw new RuntimeException("Your input is invalid! Status can only be W, C, R, or X");
                                         				}
                                         				break;
                                     				}
@@ -792,8 +2379,14 @@ public class DBproject{
                                 			
 
                                 			try {
-                                    				query = "UPDATE Reservation SET status = \'" + status + "\' WHERE ccid = " + ccid + " AND cid = " + cid + ";";
-                                    				esql.executeQuery(query);
+								if(status.equals("X")) {
+									//the freed seat goes to the first waitlisted reservation
+									WaitlistEngine.Outcome outcome = esql.cancelReservation(ccid, cid);
+									System.out.println("Reservation cancelled. Promoted from the waitlist: " + outcome.promoted.size());
+								}
+								else {
+                                    				esql.setReservationStatus(ccid, cid, status);
+								}
 
 								//query = "SELECT R.rnum, R.ccid, R.cid, R.status FROM Reservation R WHERE R.ccid = " + ccid + ";";
 								//esql.executeQueryAndReturnResult(query);
@@ -831,8 +2424,6 @@ public class DBproject{
 		//get date from cruise
 		//find num sold
 
-		DateTimeFormatter Date = DateTimeFormatter.ofPattern("yyyy-dd-MM HH:mm");
-
 		int cnum ;
 		do {
 		    try {
@@ -846,12 +2437,11 @@ public class DBproject{
 		    }
 		} while (true);
 		
-		String actual_departure_date ;
+		LocalDate day ;
 		do {
 		    try {
-			System.out.print("\tEnter departure_date [yyyy-MM-dd HH:mm]: $");
-			actual_departure_date = in.readLine();
-			LocalDate localadd = LocalDate.parse(actual_departure_date, Date);
+			System.out.print("\tEnter departure_date [yyyy-MM-dd]: $");
+			day = LocalDate.parse(in.readLine().trim());
 			    break;
 		    }
 		    catch (Exception e) {
@@ -861,14 +2451,20 @@ public class DBproject{
 		} while (true);
 
 		try {
-			//T1 is  number of seats
-			//T2 is number of sold
-			//subtract them to get availible seats.
-			//there is one date per cruise therefore we do not use the input for date.
-			//String query = "SELECT T1.seats-T2.num_sold FROM Ship S, Cruise C, (SELECT C1.cnum, S1.seats FROM Cruise C1, CruiseInfo CI1, Ship S1 WHERE CI1.ciid = C1.cnum AND CI1.ship_id = S1.id) AS T1, (SELECT C2.cnum, C2.num_sold FROM Cruise C2 GROUP BY C2.cnum) AS T2 WHERE C.cnum = T1.cnum AND T1.cnum = T2.cnum AND T1.cnum = " + cnum + " AND C.actual_departure_date  = " +actual_departure_date + ";";
-			String query = "SELECT DISTINCT T1.seats-T2.num_sold AS availSeats FROM Ship S, (SELECT C1.cnum, S1.seats FROM Cruise C1, CruiseInfo CI1, Ship S1 WHERE CI1.ciid = C1.cnum AND CI1.ship_id = S1.id) AS T1, (SELECT C2.cnum, C2.num_sold FROM Cruise C2 GROUP BY C2.cnum) AS T2 WHERE  T1.cnum = T2.cnum AND T1.cnum = " + cnum + " ;";
-
-			esql.executeQueryAndPrintResult(query);
+			//the departures of that day, with the seats left of each from the seat cache
+			DepartureIndex.Departure found = null;
+			for (DepartureIndex.Departure d : esql.findDepartures(null, day.toString(), day.plusDays(1).toString(), 0)) {
+				if (d.cnum == cnum) {
+					found = d;
+				}
+			}
+			if (found == null) {
+				System.out.println("Cruise " + cnum + " does not depart on " + day + " or has no ship assigned");
+			}
+			else {
+				System.out.println("availseats\t");
+				System.out.println(found.seats + "\t");
+			}
 		}
 		catch(Exception e) {
 			System.err.print(e.getMessage());
@@ -886,8 +2482,10 @@ public class DBproject{
 		
 		try {
 			//get ship ID and count the number of existing ship_ids from all of the repairs. Order the count by descending.
-			String query =" SELECT ship_id, COUNT(ship_id) FROM Repairs R GROUP BY ship_id ORDER BY COUNT(ship_id) DESC;";			
-			esql.executeQueryAndPrintResult(query);
+			System.out.println("ship_id\tcount\t");
+			for (int[] ship : esql.getRepairsPerShip()) {
+				System.out.println(ship[0] + "\t" + ship[1] + "\t");
+			}
 		}
 		catch(Exception e) {
 			System.err.print(e.getMessage());
@@ -922,8 +2520,8 @@ public class DBproject{
 		
 		try {
 			//count number of reservations with same input status
-			String query ="SELECT COUNT(*) FROM Reservation WHERE status = '" + input + "';";			
-			esql.executeQueryAndPrintResult(query);
+			System.out.println("count\t");
+			System.out.println(esql.countPassengersWithStatus(input) + "\t");
 		}
 		catch(Exception e) {
 			System.err.print(e.getMessage());
@@ -0,0 +1,317 @@
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Departures per port, sorted by day, for finding the cruises that leave a
+ * port within a range of days.  A cruise departs on the days of its
+ * Schedule rows, or on its actual_departure_date when it has none.
+ *
+ * Every port keeps one sorted long array whose entries pack the departure
+ * day (days since 1970-01-01) into the high and the cruise number into the
+ * low 32 bits, so a range is two binary searches and a copy, without
+ * boxing.  A second array holds every port's departures for searches that
+ * name no port.  The arrays are never modified: adding a cruise copies the
+ * array of its port with the new entry in place, and readers go on with
+ * whichever array they read.
+ *
+ */
+
+public class DepartureIndex {
+	static final String SQL_DEPARTURES = "SELECT C.cnum, C.departure_port, COALESCE(S.departure_time, C.actual_departure_date) "
+		+ "FROM Cruise C LEFT JOIN Schedule S ON S.cruiseNum = C.cnum";
+	static final String SQL_CRUISE_DEPARTURE = "SELECT C.cnum, C.departure_port, C.actual_departure_date FROM Cruise C WHERE C.cnum = ?";
+	//what search() combined with seat availability answers, for comparison; port, from, until, seats
+	static final String SQL_SEARCH = "SELECT C.cnum, COALESCE(S.departure_time, C.actual_departure_date) AS departs, SH.seats - C.num_sold "
+		+ "FROM Cruise C LEFT JOIN Schedule S ON S.cruiseNum = C.cnum "
+		+ "JOIN CruiseInfo CI ON CI.cruise_id = C.cnum JOIN Ship SH ON SH.id = CI.ship_id "
+		+ "WHERE C.departure_port = ? AND COALESCE(S.departure_time, C.actual_departure_date) >= ? "
+		+ "AND COALESCE(S.departure_time, C.actual_departure_date) < ? AND SH.seats - C.num_sold >= ? "
+		+ "ORDER BY departs, C.cnum";
+
+	private static final long[] EMPTY = new long[0];
+
+	private volatile Map<String, long[]> _byPort = new ConcurrentHashMap<String, long[]>();
+	private volatile long[] _all = EMPTY;
+	private volatile boolean _loaded = false;
+
+	/**
+	 * A cruise departing in a searched range.
+	 */
+	public static class Departure {
+		public final int cnum;
+		public final LocalDate date;
+		public final int seats;
+
+		Departure(int cnum, LocalDate date, int seats) {
+			this.cnum = cnum;
+			this.date = date;
+			this.seats = seats;
+		}
+	}
+
+	//a growing array of entries, used while loading
+	private static class Entries {
+		long[] entries = new long[4];
+		int size = 0;
+
+		void add(long e) {
+			if (this.size == this.entries.length) {
+				this.entries = Arrays.copyOf(this.entries, this.size * 2);
+			}
+			this.entries[this.size++] = e;
+		}
+	}
+
+	static long entry(long day, int cnum) {
+		return (day << 32) | (cnum & 0xffffffffL);
+	}
+
+	static int cnum(long entry) {
+		return (int) entry;
+	}
+
+	static long day(long entry) {
+		return entry >> 32;
+	}
+
+	//port codes are CHAR(5), so the database pads shorter ones
+	private static String key(String port) {
+		return port.trim();
+	}
+
+	public boolean isLoaded() {
+		return this._loaded;
+	}
+
+	/**
+	 * Replaces the index with the departures in the database.
+	 *
+	 * @param pools the pool of every shard holding cruises
+	 * @return the number of departures loaded
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public int load(ConnectionPool... pools) throws SQLException {
+		Map<String, Entries> ports = new HashMap<String, Entries>();
+		for (ConnectionPool pool : pools) {
+			read(pool, ports);
+		}
+
+		Map<String, long[]> byPort = new ConcurrentHashMap<String, long[]>(ports.size() * 2);
+		int n = 0;
+		for (Entries e : ports.values()) {
+			n += e.size;
+		}
+		long[] all = new long[n];
+		int at = 0;
+		for (Map.Entry<String, Entries> e : ports.entrySet()) {
+			long[] entries = Arrays.copyOf(e.getValue().entries, e.getValue().size);
+			Arrays.sort(entries);
+			entries = distinct(entries);
+			byPort.put(e.getKey(), entries);
+			System.arraycopy(entries, 0, all, at, entries.length);
+			at += entries.length;
+		}
+		all = Arrays.copyOf(all, at);
+		Arrays.sort(all);
+		synchronized (this) {
+			this._byPort = byPort;
+			this._all = all;
+			this._loaded = true;
+		}
+		return all.length;
+	}//end load
+
+	//adds the departures of one shard to ports
+	private static void read(ConnectionPool pool, Map<String, Entries> ports) throws SQLException {
+		try (PooledConnection pc = pool.borrow()) {
+			//stream through a cursor
+			pc.connection().setAutoCommit(false);
+			PreparedStatement ps = pc.prepare(SQL_DEPARTURES);
+			ps.setFetchSize(DBproject.DEFAULT_FETCH_SIZE);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					String port = key(rs.getString(2));
+					Entries entries = ports.get(port);
+					if (entries == null) {
+						entries = new Entries();
+						ports.put(port, entries);
+					}
+					entries.add(entry(rs.getDate(3).toLocalDate().toEpochDay(), rs.getInt(1)));
+				}
+			}finally {
+				ps.setFetchSize(0);
+			}
+		}//end try
+	}
+
+	//drops repeated entries from a sorted array, e.g. two Schedule rows on the same day
+	private static long[] distinct(long[] sorted) {
+		int n = 0;
+		for (int i = 0; i < sorted.length; ++i) {
+			if (n == 0 || sorted[n - 1] != sorted[i]) {
+				sorted[n++] = sorted[i];
+			}
+		}
+		return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+	}
+
+	/**
+	 * Adds the departure of a new cruise.
+	 *
+	 * @param departureDate the date as given to the INSERT; only yyyy-MM-dd prefixes are understood
+	 * @return false when the date could not be read, see {@link #refresh(ConnectionPool, int)}
+	 */
+	public boolean add(int cnum, String port, String departureDate) {
+		LocalDate date;
+		try {
+			String d = departureDate.trim();
+			date = LocalDate.parse(d.length() > 10 ? d.substring(0, 10) : d);
+		}catch (DateTimeParseException | IndexOutOfBoundsException e) {
+			return false;
+		}
+		add(cnum, port, date);
+		return true;
+	}
+
+	/**
+	 * Adds the departure of a cruise as stored in Cruise.
+	 *
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public void refresh(ConnectionPool pool, int cnum) throws SQLException {
+		try (PooledConnection pc = pool.borrow()) {
+			PreparedStatement ps = pc.prepare(SQL_CRUISE_DEPARTURE);
+			ps.setInt(1, cnum);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (rs.next()) {
+					add(cnum, rs.getString(2), rs.getDate(3).toLocalDate());
+				}
+			}
+		}
+	}
+
+	private synchronized void add(int cnum, String port, LocalDate date) {
+		long e = entry(date.toEpochDay(), cnum);
+		String k = key(port);
+		long[] entries = insert(this._byPort.get(k), e);
+		if (entries != null) {
+			this._byPort.put(k, entries);
+			this._all = insert(this._all, e);
+		}
+	}
+
+	//a copy of a sorted array with one more entry, or null when it is there already
+	private static long[] insert(long[] sorted, long e) {
+		if (sorted == null) {
+			return new long[] { e };
+		}
+		int at = Arrays.binarySearch(sorted, e);
+		if (at >= 0) {
+			return null;
+		}
+		at = -at - 1;
+		long[] copy = new long[sorted.length + 1];
+		System.arraycopy(sorted, 0, copy, 0, at);
+		copy[at] = e;
+		System.arraycopy(sorted, at, copy, at + 1, sorted.length - at);
+		return copy;
+	}
+
+	/**
+	 * @param port the departure port, or null for every port
+	 * @param from the first day
+	 * @param until the day after the last day
+	 * @return the departures in the range as packed entries, by day and then cruise number
+	 */
+	public long[] range(String port, LocalDate from, LocalDate until) {
+		long[] entries = port == null ? this._all : this._byPort.get(key(port));
+		if (entries == null || !from.isBefore(until)) {
+			return EMPTY;
+		}
+		//the smallest entry of a day has cruise bits 0
+		int lo = lowerBound(entries, from.toEpochDay() << 32);
+		int hi = lowerBound(entries, until.toEpochDay() << 32);
+		return Arrays.copyOfRange(entries, lo, hi);
+	}
+
+	//the first position whose entry is at least key
+	private static int lowerBound(long[] sorted, long key) {
+		int lo = 0;
+		int hi = sorted.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid] < key) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Seats left on a cruise, SeatCache.MISSING when it has no ship.
+	 */
+	interface Availability {
+		int seats(int cnum) throws SQLException;
+	}
+
+	/**
+	 * Finds the cruises leaving a port within a range of days that have
+	 * seats left.
+	 *
+	 * @param port the departure port, or null for every port
+	 * @param from the first day
+	 * @param until the day after the last day
+	 * @param minSeats the seats a cruise needs to have left
+	 * @param seats where the seats left come from
+	 * @return the departures by day and then cruise number
+	 * @throws java.sql.SQLException when the seats could not be looked up
+	 */
+	public List<Departure> search(String port, LocalDate from, LocalDate until, int minSeats,
+			Availability seats) throws SQLException {
+		long[] entries = range(port, from, until);
+		List<Departure> result = new ArrayList<Departure>();
+		for (long e : entries) {
+			int cnum = cnum(e);
+			int left = seats.seats(cnum);
+			if (left != SeatCache.MISSING && left >= minSeats) {
+				result.add(new Departure(cnum, LocalDate.ofEpochDay(day(e)), left));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the ports with at least one departure
+	 */
+	public String[] ports() {
+		return this._byPort.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * @return the number of departures indexed
+	 */
+	public int size() {
+		return this._all.length;
+	}
+
+	/**
+	 * Binds the parameters of {@link #SQL_SEARCH}.
+	 */
+	static Object[] searchParams(String port, LocalDate from, LocalDate until, int minSeats) {
+		return new Object[] { port, Date.valueOf(from), Date.valueOf(until), minSeats };
+	}
+}//end DepartureIndex
@@ -0,0 +1,325 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Serves the cruise operations as JSON over HTTP:
+ *
+ *   POST /book?ccid=&lt;customer&gt;&amp;cid=&lt;cruise&gt;
+ *   POST /cancel?ccid=&lt;customer&gt;&amp;cid=&lt;cruise&gt;
+ *   GET  /seats?cnum=&lt;cruise&gt;
+ *   GET  /departures?from=&lt;yyyy-MM-dd&gt;&amp;until=&lt;yyyy-MM-dd&gt;[&amp;port=&lt;port&gt;][&amp;seats=&lt;n&gt;]
+ *   GET  /route?from=&lt;port&gt;&amp;to=&lt;port&gt;&amp;day=&lt;yyyy-MM-dd&gt;[&amp;by=&lt;earliest|cheapest&gt;][&amp;connect=&lt;days&gt;]
+ *   GET  /repairs[?k=&lt;ships&gt;][&amp;from=&lt;yyyy-MM-dd&gt;&amp;until=&lt;yyyy-MM-dd&gt;]
+ *   GET  /status?status=&lt;W|C|R&gt;[&amp;cid=&lt;cruise&gt;]
+ *   GET  /metrics (Prometheus text format)
+ *
+ * Every request runs on its own virtual thread when the JVM has them (Java
+ * 21 and later); older JVMs fall back to a bounded pool of platform threads
+ * whose full queue pushes back on the accepting thread.  Either way the
+ * number of concurrent statements is capped by the JDBC connection pool.
+ *
+ */
+
+public class HttpService {
+	//SQLSTATE of an insert referencing a row that does not exist
+	static final String FOREIGN_KEY_VIOLATION = "23503";
+
+	private final DBproject _db;
+	private final HttpServer _server;
+	private final ExecutorService _executor;
+
+	/**
+	 * @param db the instance serving the requests
+	 * @param port the TCP port to listen on
+	 * @param platformThreads threads used when virtual threads are unavailable
+	 * @throws java.io.IOException when the port could not be bound
+	 */
+	public HttpService(DBproject db, int port, int platformThreads) throws IOException {
+		this._db = db;
+		this._server = HttpServer.create(new InetSocketAddress(port), 1024);
+		this._executor = newRequestExecutor(platformThreads);
+		this._server.setExecutor(this._executor);
+
+		this._server.createContext("/book", json("POST", this::book));
+		this._server.createContext("/cancel", json("POST", this::cancel));
+		this._server.createContext("/seats", json("GET", this::seats));
+		this._server.createContext("/departures", json("GET", this::departures));
+		this._server.createContext("/route", json("GET", this::route));
+		this._server.createContext("/repairs", json("GET", this::repairs));
+		this._server.createContext("/status", json("GET", this::status));
+		this._server.createContext("/metrics", this::metrics);
+	}
+
+	public void start() {
+		this._server.start();
+		System.out.println("Listening on port " + this._server.getAddress().getPort());
+	}
+
+	public void stop() {
+		this._server.stop(1);
+		this._executor.shutdown();
+	}
+
+	//one virtual thread per request where available, a bounded platform pool otherwise
+	static ExecutorService newRequestExecutor(int platformThreads) {
+		try {
+			Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		}catch (ReflectiveOperationException e) {
+			return new ThreadPoolExecutor(platformThreads, platformThreads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(platformThreads * 16), new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+	}
+
+	/**
+	 * Produces the JSON body of a response from the query parameters.
+	 */
+	interface Endpoint {
+		String handle(Map<String, String> params) throws SQLException;
+	}
+
+	/**
+	 * Thrown by endpoints for requests naming something that does not exist.
+	 */
+	static class NotFoundException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		NotFoundException(String message) {
+			super(message);
+		}
+	}
+
+	private String book(Map<String, String> params) throws SQLException {
+		BookingEngine.Booking b = this._db.bookCruise(intParam(params, "ccid"), intParam(params, "cid"));
+		return "{\"rnum\":" + b.rnum + ",\"status\":\"" + b.status + "\",\"seatsLeft\":" + b.seatsLeft + "}";
+	}
+
+	private String cancel(Map<String, String> params) throws SQLException {
+		int cid = intParam(params, "cid");
+		WaitlistEngine.Outcome outcome = this._db.cancelReservation(intParam(params, "ccid"), cid);
+		if (outcome.previous.isEmpty()) {
+			throw new NotFoundException("no reservation on cruise " + cid);
+		}
+		StringBuilder json = new StringBuilder("{\"cancelled\":").append(outcome.previous.size()).append(",\"promoted\":[");
+		for (int i = 0; i < outcome.promoted.size(); ++i) {
+			WaitlistEngine.Promotion p = outcome.promoted.get(i);
+			json.append(i == 0 ? "" : ",").append("{\"rnum\":").append(p.rnum).append(",\"ccid\":").append(p.ccid).append('}');
+		}
+		json.append(']');
+		int seats = outcome.seatsLeft.get(cid, SeatCache.MISSING);
+		if (seats != SeatCache.MISSING) {
+			json.append(",\"seatsLeft\":").append(seats);
+		}
+		return json.append('}').toString();
+	}
+
+	private String seats(Map<String, String> params) throws SQLException {
+		int cnum = intParam(params, "cnum");
+		int seats = this._db.getAvailableSeats(cnum);
+		if (seats == SeatCache.MISSING) {
+			throw new NotFoundException("no ship is assigned to cruise " + cnum);
+		}
+		return "{\"cnum\":" + cnum + ",\"seats\":" + seats + "}";
+	}
+
+	private String departures(Map<String, String> params) throws SQLException {
+		String from = params.get("from");
+		String until = params.get("until");
+		if (from == null || until == null) {
+			throw new IllegalArgumentException("from and until are required");
+		}
+		int seats = params.containsKey("seats") ? intParam(params, "seats") : 1;
+		StringBuilder json = new StringBuilder("[");
+		for (DepartureIndex.Departure d : this._db.findDepartures(params.get("port"), from, until, seats)) {
+			if (json.length() > 1) {
+				json.append(',');
+			}
+			json.append("{\"cnum\":").append(d.cnum).append(",\"date\":\"").append(d.date)
+				.append("\",\"seats\":").append(d.seats).append('}');
+		}
+		return json.append(']').toString();
+	}
+
+	private String route(Map<String, String> params) throws SQLException {
+		String from = params.get("from");
+		String to = params.get("to");
+		String day = params.get("day");
+		if (from == null || to == null || day == null) {
+			throw new IllegalArgumentException("from, to and day are required");
+		}
+		String by = params.getOrDefault("by", "earliest");
+		if (!by.equals("earliest") && !by.equals("cheapest")) {
+			throw new IllegalArgumentException("by is earliest or cheapest");
+		}
+		int connect = params.containsKey("connect") ? intParam(params, "connect") : DBproject.DEFAULT_CONNECT_DAYS;
+		RoutePlanner.Itinerary trip = this._db.planRoute(from, to, day, connect, by.equals("cheapest"));
+		if (trip == null) {
+			throw new NotFoundException("no trip from " + from + " to " + to);
+		}
+		StringBuilder json = new StringBuilder("{\"cost\":").append(trip.cost).append(",\"stops\":").append(trip.stops)
+			.append(",\"legs\":[");
+		for (int i = 0; i < trip.legs.length; ++i) {
+			RoutePlanner.Leg leg = trip.legs[i];
+			json.append(i == 0 ? "" : ",").append("{\"cnum\":").append(leg.cnum)
+				.append(",\"from\":\"").append(leg.from).append("\",\"to\":\"").append(leg.to)
+				.append("\",\"departs\":\"").append(leg.departs).append("\",\"arrives\":\"").append(leg.arrives)
+				.append("\",\"cost\":").append(leg.cost).append('}');
+		}
+		return json.append("]}").toString();
+	}
+
+	private String repairs(Map<String, String> params) throws SQLException {
+		int k = params.containsKey("k") ? intParam(params, "k") : Integer.MAX_VALUE;
+		String from = params.get("from");
+		String until = params.get("until");
+		if ((from == null) != (until == null)) {
+			throw new IllegalArgumentException("from and until go together");
+		}
+		List<int[]> ships = from == null ? this._db.getMostRepairedShips(k) : this._db.getMostRepairedShips(from, until, k);
+		StringBuilder json = new StringBuilder("[");
+		for (int[] ship : ships) {
+			if (json.length() > 1) {
+				json.append(',');
+			}
+			json.append("{\"ship_id\":").append(ship[0]).append(",\"repairs\":").append(ship[1]).append('}');
+		}
+		return json.append(']').toString();
+	}
+
+	private String status(Map<String, String> params) throws SQLException {
+		String status = params.get("status");
+		if (status == null || !(status.equals("W") || status.equals("C") || status.equals("R"))) {
+			throw new IllegalArgumentException("status can only be W, C, or R");
+		}
+		if (params.containsKey("cid")) {
+			int cid = intParam(params, "cid");
+			int count = this._db.countPassengersByStatus(cid)[StatusCounters.index(status)];
+			return "{\"status\":\"" + status + "\",\"cid\":" + cid + ",\"count\":" + count + "}";
+		}
+		return "{\"status\":\"" + status + "\",\"count\":" + this._db.countPassengersWithStatus(status) + "}";
+	}
+
+	private void metrics(HttpExchange exchange) throws IOException {
+		StringBuilder body = new StringBuilder(1 << 14);
+		this._db.getMetrics().prometheus(body, this._db.getPool());
+		byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	//wraps an endpoint with method checking, parameter parsing and error mapping
+	private static HttpHandler json(final String method, final Endpoint endpoint) {
+		return exchange -> {
+			int code;
+			String body;
+			try {
+				if (!exchange.getRequestMethod().equals(method)) {
+					code = 405;
+					body = error("use " + method);
+				}
+				else {
+					body = endpoint.handle(parseQuery(exchange.getRequestURI().getRawQuery()));
+					code = 200;
+				}
+			}catch (NotFoundException e) {
+				code = 404;
+				body = error(e.getMessage());
+			}catch (IllegalArgumentException e) {
+				code = 400;
+				body = error(e.getMessage());
+			}catch (SQLException e) {
+				//a foreign key violation means the customer or cruise does not exist
+				code = FOREIGN_KEY_VIOLATION.equals(e.getSQLState()) ? 404 : 500;
+				body = error(e.getMessage());
+			}catch (Exception e) {
+				code = 500;
+				body = error(e.getMessage());
+			}
+			send(exchange, code, body);
+		};
+	}
+
+	private static void send(HttpExchange exchange, int code, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(code, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	static Map<String, String> parseQuery(String query) {
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null || query.isEmpty()) {
+			return params;
+		}
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			String key = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? "" : pair.substring(eq + 1);
+			params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+		return params;
+	}
+
+	static int intParam(Map<String, String> params, String name) {
+		String value = params.get(name);
+		if (value == null) {
+			throw new IllegalArgumentException("missing parameter " + name);
+		}
+		try {
+			return Integer.parseInt(value);
+		}catch (NumberFormatException e) {
+			throw new IllegalArgumentException("parameter " + name + " is not an integer: " + value);
+		}
+	}
+
+	static String error(String message) {
+		return "{\"error\":" + quote(message) + "}";
+	}
+
+	static String quote(String s) {
+		if (s == null) {
+			return "null";
+		}
+		StringBuilder out = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char ch = s.charAt(i);
+			switch (ch) {
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				case '\t': out.append("\\t"); break;
+				default:
+					if (ch < 0x20) {
+						out.append(String.format("\\u%04x", (int) ch));
+					}
+					else {
+						out.append(ch);
+					}
+			}
+		}
+		return out.append('"').toString();
+	}
+}//end HttpService
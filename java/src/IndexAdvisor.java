@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Checks the indexes against the statements DBproject actually runs.  Every
+ * statement is run under EXPLAIN (ANALYZE, BUFFERS) with parameters taken
+ * from the data, inside a transaction that is rolled back, so the writes
+ * leave nothing behind.  The report shows each plan with its median
+ * execution time, sequential scans that filter rows (candidates for a
+ * missing index) and indexes that pg_stat_user_indexes has never seen used.
+ *
+ * With --apply the statements are timed, the given SQL file (e.g.
+ * sql/create_indexes.sql) is run and the statements are timed again, so
+ * the effect of an index set shows up as before/after timings.
+ *
+ */
+
+public class IndexAdvisor {
+	private static final Pattern EXECUTION_TIME = Pattern.compile("Execution [Tt]ime: ([0-9.]+) ms");
+	private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+	private static final Pattern FILTER = Pattern.compile("^\\s*Filter: (.*)");
+
+	static final String SQL_UNUSED_INDEXES = "SELECT S.relname, S.indexrelname, pg_relation_size(S.indexrelid) "
+		+ "FROM pg_stat_user_indexes S JOIN pg_index I ON I.indexrelid = S.indexrelid "
+		+ "WHERE S.idx_scan = 0 AND NOT I.indisunique AND NOT I.indisprimary ORDER BY 3 DESC";
+	static final String SQL_TABLE_SCANS = "SELECT relname, seq_scan, seq_tup_read, COALESCE(idx_scan, 0) "
+		+ "FROM pg_stat_user_tables ORDER BY seq_tup_read DESC";
+
+	/**
+	 * One statement of DBproject with a query producing sample parameters.
+	 */
+	static class Probe {
+		final String name;
+		final String sql;
+		final String params;
+
+		Probe(String name, String sql, String params) {
+			this.name = name;
+			this.sql = sql;
+			this.params = params;
+		}
+	}
+
+	static final List<Probe> PROBES = Arrays.asList(
+		new Probe("reservationStatus", DBproject.SQL_RESERVATION_STATUS,
+			"SELECT ccid, cid FROM Reservation ORDER BY rnum LIMIT 1"),
+		new Probe("setReservationStatus", DBproject.SQL_SET_RESERVATION_STATUS,
+			"SELECT 'R', ccid, cid FROM Reservation ORDER BY rnum LIMIT 1"),
+		new Probe("availableSeats", DBproject.SQL_AVAILABLE_SEATS,
+			"SELECT MIN(cruise_id) FROM CruiseInfo"),
+		new Probe("bookCruise", BookingEngine.SQL_BOOK,
+			"SELECT MIN(cruise_id), (SELECT COALESCE(MAX(rnum), 0) + 1 FROM Reservation), "
+			+ "(SELECT MIN(id) FROM Customer), MIN(cruise_id) FROM CruiseInfo"),
+		new Probe("promoteWaitlist", WaitlistEngine.SQL_PROMOTE,
+			"SELECT ARRAY(SELECT DISTINCT cid FROM Reservation WHERE status = 'W' LIMIT 16)"),
+		new Probe("departuresSql", DepartureIndex.SQL_SEARCH,
+			"SELECT departure_port, actual_departure_date, actual_departure_date + 7, 1 FROM Cruise ORDER BY cnum LIMIT 1"),
+		new Probe("statusCount", DBproject.SQL_COUNT_STATUS, "SELECT 'W'"),
+		new Probe("statusCountByCruise", StatusCounters.SQL_COUNT_BY_CRUISE, null),
+		new Probe("repairsPerShip", RepairLeaderboard.SQL_SUMMARY, null),
+		new Probe("repairsAggregate", RepairLeaderboard.SQL_AGGREGATE, null),
+		new Probe("repairsInWindow", DBproject.SQL_REPAIRS_IN_WINDOW,
+			"SELECT CAST(MAX(repair_date) - 90 AS TEXT), CAST(MAX(repair_date) + 1 AS TEXT), 10 FROM Repairs"));
+
+	/**
+	 * The outcome of running one probe a number of times.
+	 */
+	static class Measurement {
+		final double medianMillis;
+		final List<String> plan;
+
+		Measurement(double medianMillis, List<String> plan) {
+			this.medianMillis = medianMillis;
+			this.plan = plan;
+		}
+	}
+
+	private final Connection _conn;
+	private final int _runs;
+
+	/**
+	 * @param conn the connection to analyze through; its autocommit is turned off
+	 * @param runs the executions per statement, the median of which is reported
+	 */
+	public IndexAdvisor(Connection conn, int runs) throws SQLException {
+		this._conn = conn;
+		this._runs = runs;
+		this._conn.setAutoCommit(false);
+	}
+
+	/**
+	 * Runs every probe and returns the measurements in PROBES order.
+	 * Statements failing, e.g. on an older schema, are reported and skipped.
+	 */
+	public List<Measurement> measureAll() {
+		List<Measurement> result = new ArrayList<Measurement>();
+		for (Probe probe : PROBES) {
+			try {
+				result.add(measure(probe));
+			}catch (SQLException e) {
+				System.err.println(probe.name + ": " + e.getMessage());
+				result.add(null);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Runs one probe under EXPLAIN (ANALYZE, BUFFERS), rolling back after
+	 * every run.
+	 *
+	 * @throws java.sql.SQLException when the statement failed
+	 */
+	public Measurement measure(Probe probe) throws SQLException {
+		double[] times = new double[this._runs];
+		List<String> plan = null;
+		try {
+			for (int run = 0; run < this._runs; ++run) {
+				Object[] params = sampleParams(probe);
+				plan = new ArrayList<String>();
+				try (PreparedStatement ps = this._conn.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + probe.sql)) {
+					for (int i = 0; i < params.length; ++i) {
+						ps.setObject(i + 1, params[i]);
+					}
+					try (ResultSet rs = ps.executeQuery()) {
+						while (rs.next()) {
+							plan.add(rs.getString(1));
+						}
+					}
+				}
+				times[run] = executionMillis(plan);
+				this._conn.rollback();
+			}
+		}finally {
+			this._conn.rollback();
+		}
+		Arrays.sort(times);
+		return new Measurement(times[times.length / 2], plan);
+	}//end measure
+
+	private Object[] sampleParams(Probe probe) throws SQLException {
+		if (probe.params == null) {
+			return new Object[0];
+		}
+		try (Statement stmt = this._conn.createStatement();
+		     ResultSet rs = stmt.executeQuery(probe.params)) {
+			if (!rs.next()) {
+				throw new SQLException("no sample data for " + probe.name);
+			}
+			Object[] params = new Object[rs.getMetaData().getColumnCount()];
+			for (int i = 0; i < params.length; ++i) {
+				params[i] = rs.getObject(i + 1);
+			}
+			return params;
+		}
+	}
+
+	static double executionMillis(List<String> plan) {
+		for (String line : plan) {
+			Matcher m = EXECUTION_TIME.matcher(line);
+			if (m.find()) {
+				return Double.parseDouble(m.group(1));
+			}
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * @return "table: filter" for every sequential scan of a plan that filters rows
+	 */
+	static List<String> filteredSeqScans(List<String> plan) {
+		List<String> found = new ArrayList<String>();
+		String table = null;
+		for (String line : plan) {
+			Matcher scan = SEQ_SCAN.matcher(line);
+			if (scan.find()) {
+				table = scan.group(1);
+				continue;
+			}
+			Matcher filter = FILTER.matcher(line);
+			if (table != null && filter.find()) {
+				found.add(table + ": " + filter.group(1));
+			}
+			//the Filter line directly follows its scan node, before any child node
+			if (line.trim().startsWith("->")) {
+				table = null;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Prints each plan, its median time and the sequential scans it filters.
+	 */
+	public void printPlans(List<Measurement> measurements) {
+		for (int i = 0; i < PROBES.size(); ++i) {
+			Measurement m = measurements.get(i);
+			if (m == null) {
+				continue;
+			}
+			System.out.printf("== %s (median %.3f ms over %d runs)%n", PROBES.get(i).name, m.medianMillis, this._runs);
+			for (String line : m.plan) {
+				System.out.println("   " + line);
+			}
+			for (String scan : filteredSeqScans(m.plan)) {
+				System.out.println("   possible missing index, sequential scan on " + scan);
+			}
+			System.out.println();
+		}
+	}
+
+	/**
+	 * Prints the indexes that were never used and the tables read mostly by
+	 * sequential scans, according to the statistics collector.
+	 *
+	 * @throws java.sql.SQLException when the statistics could not be read
+	 */
+	public void printIndexUsage() throws SQLException {
+		try (Statement stmt = this._conn.createStatement()) {
+			System.out.println("== unused indexes (idx_scan = 0 since the statistics were reset)");
+			try (ResultSet rs = stmt.executeQuery(SQL_UNUSED_INDEXES)) {
+				while (rs.next()) {
+					System.out.printf("   %-16s %-36s %10d bytes%n", rs.getString(1), rs.getString(2), rs.getLong(3));
+				}
+			}
+			System.out.println();
+			System.out.println("== table scans");
+			System.out.printf("   %-16s %12s %14s %12s%n", "table", "seq_scan", "seq_tup_read", "idx_scan");
+			try (ResultSet rs = stmt.executeQuery(SQL_TABLE_SCANS)) {
+				while (rs.next()) {
+					System.out.printf("   %-16s %12d %14d %12d%n", rs.getString(1), rs.getLong(2), rs.getLong(3), rs.getLong(4));
+				}
+			}
+		}finally {
+			this._conn.rollback();
+		}
+	}//end printIndexUsage
+
+	/**
+	 * Runs every statement of a SQL file and commits them together.
+	 *
+	 * @throws java.sql.SQLException when a statement failed; nothing is applied then
+	 * @throws java.io.IOException when the file could not be read
+	 */
+	public void apply(String file) throws SQLException, IOException {
+		String script = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+		try (Statement stmt = this._conn.createStatement()) {
+			for (String sql : splitStatements(script)) {
+				stmt.execute(sql);
+			}
+			this._conn.commit();
+		}catch (SQLException e) {
+			this._conn.rollback();
+			throw e;
+		}
+	}
+
+	//splits a script on semicolons after removing /* */ and -- comments
+	static List<String> splitStatements(String script) {
+		String stripped = script.replaceAll("(?s)/\\*.*?\\*/", " ").replaceAll("--[^\n]*", " ");
+		List<String> statements = new ArrayList<String>();
+		for (String sql : stripped.split(";")) {
+			if (!sql.trim().isEmpty()) {
+				statements.add(sql.trim());
+			}
+		}
+		return statements;
+	}
+
+	private static void printComparison(List<Measurement> before, List<Measurement> after) {
+		System.out.printf("%-22s %12s %12s %9s%n", "statement", "before(ms)", "after(ms)", "speedup");
+		for (int i = 0; i < PROBES.size(); ++i) {
+			Measurement b = before.get(i);
+			Measurement a = after.get(i);
+			if (b == null || a == null) {
+				continue;
+			}
+			System.out.printf("%-22s %12.3f %12.3f %8.1fx%n",
+				PROBES.get(i).name, b.medianMillis, a.medianMillis, b.medianMillis / a.medianMillis);
+		}
+		System.out.println();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java " + IndexAdvisor.class.getName()
+				+ " <dbname> <port> <user> [--runs <n>] [--apply <file.sql>]");
+			return;
+		}
+		int runs = 5;
+		String applyFile = null;
+		for (int i = 3; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+				case "--runs": runs = Integer.parseInt(args[i + 1]); break;
+				case "--apply": applyFile = args[i + 1]; break;
+				default: throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+
+		Class.forName("org.postgresql.Driver");
+		Properties props = new Properties();
+		props.setProperty("user", args[2]);
+		props.setProperty("password", "");
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		try (Connection conn = DriverManager.getConnection(url, props)) {
+			IndexAdvisor advisor = new IndexAdvisor(conn, Math.max(1, runs));
+			List<Measurement> measurements = advisor.measureAll();
+			if (applyFile != null) {
+				advisor.apply(applyFile);
+				List<Measurement> after = advisor.measureAll();
+				printComparison(measurements, after);
+				measurements = after;
+			}
+			advisor.printPlans(measurements);
+			advisor.printIndexUsage();
+		}
+	}//end main
+}//end IndexAdvisor
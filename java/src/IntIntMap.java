@@ -0,0 +1,141 @@
+import java.util.Arrays;
+
+
+/**
+ * Map from int to int with open addressing and linear probing, for hot paths
+ * that should not box their keys.  Not thread-safe; owners synchronize.
+ *
+ */
+
+public class IntIntMap {
+	private int[] _keys;
+	private int[] _values;
+	private boolean[] _used;
+	private int _mask;
+	private int _size = 0;
+
+	/**
+	 * @param expected the number of entries expected, to size the table
+	 */
+	public IntIntMap(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+		allocate(capacity);
+	}
+
+	public int size() {
+		return this._size;
+	}
+
+	/**
+	 * @return the value of key, or missing when there is none
+	 */
+	public int get(int key, int missing) {
+		int slot = find(key);
+		return this._used[slot] ? this._values[slot] : missing;
+	}
+
+	public boolean containsKey(int key) {
+		return this._used[find(key)];
+	}
+
+	public void put(int key, int value) {
+		int slot = find(key);
+		if (!this._used[slot]) {
+			this._keys[slot] = key;
+			this._used[slot] = true;
+			if (++this._size * 2 > this._keys.length) {
+				this._values[slot] = value;
+				grow();
+				return;
+			}
+		}
+		this._values[slot] = value;
+	}
+
+	/**
+	 * Adds delta to the value of key, starting from zero when absent.
+	 *
+	 * @return the new value
+	 */
+	public int add(int key, int delta) {
+		int value = get(key, 0) + delta;
+		put(key, value);
+		return value;
+	}
+
+	public void remove(int key) {
+		int slot = find(key);
+		if (!this._used[slot]) {
+			return;
+		}
+		//backward-shift deletion keeps probe chains intact without tombstones
+		int hole = slot;
+		int next = (slot + 1) & this._mask;
+		while (this._used[next]) {
+			int home = hash(this._keys[next]) & this._mask;
+			if (((next - home) & this._mask) >= ((next - hole) & this._mask)) {
+				this._keys[hole] = this._keys[next];
+				this._values[hole] = this._values[next];
+				hole = next;
+			}
+			next = (next + 1) & this._mask;
+		}
+		this._used[hole] = false;
+		--this._size;
+	}
+
+	public void clear() {
+		Arrays.fill(this._used, false);
+		this._size = 0;
+	}
+
+	/**
+	 * Calls the visitor once per entry, in no particular order.
+	 */
+	public void forEach(Visitor visitor) {
+		for (int slot = 0; slot < this._keys.length; ++slot) {
+			if (this._used[slot]) {
+				visitor.visit(this._keys[slot], this._values[slot]);
+			}
+		}
+	}
+
+	public interface Visitor {
+		void visit(int key, int value);
+	}
+
+	private int find(int key) {
+		int slot = hash(key) & this._mask;
+		while (this._used[slot] && this._keys[slot] != key) {
+			slot = (slot + 1) & this._mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		int[] keys = this._keys;
+		int[] values = this._values;
+		boolean[] used = this._used;
+		allocate(keys.length * 2);
+		for (int i = 0; i < keys.length; ++i) {
+			if (used[i]) {
+				int slot = find(keys[i]);
+				this._keys[slot] = keys[i];
+				this._values[slot] = values[i];
+				this._used[slot] = true;
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		this._keys = new int[capacity];
+		this._values = new int[capacity];
+		this._used = new boolean[capacity];
+		this._mask = capacity - 1;
+	}
+
+	static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}//end IntIntMap
@@ -0,0 +1,158 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Log-linear histogram of latencies in nanoseconds, in the spirit of
+ * HdrHistogram.  Every power of two is split into 32 linear sub-buckets, so a
+ * recorded value is kept to within about 3% over the whole range of a long.
+ * Recording is one atomic increment and never allocates.
+ *
+ */
+
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * @param nanos the latency to record
+	 */
+	public void record(long nanos) {
+		this._counts.incrementAndGet(index(Math.max(0, nanos)));
+	}
+
+	/**
+	 * Adds every value recorded by another histogram to this one.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; ++i) {
+			long n = other._counts.get(i);
+			if (n != 0) {
+				this._counts.addAndGet(i, n);
+			}
+		}
+	}
+
+	/**
+	 * Moves every recorded value into a new histogram and clears this one,
+	 * which is how interval reports are taken while recording continues.
+	 *
+	 * @return the values recorded since the last call
+	 */
+	public LatencyHistogram drain() {
+		LatencyHistogram copy = new LatencyHistogram();
+		for (int i = 0; i < BUCKETS; ++i) {
+			long n = this._counts.getAndSet(i, 0);
+			if (n != 0) {
+				copy._counts.set(i, n);
+			}
+		}
+		return copy;
+	}
+
+	public long getCount() {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			total += this._counts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * @return the approximate sum of all recorded values
+	 */
+	public long getSum() {
+		long sum = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			long n = this._counts.get(i);
+			if (n != 0) {
+				sum += n * midpoint(i);
+			}
+		}
+		return sum;
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0.0 : (double) getSum() / count;
+	}
+
+	public long getMax() {
+		for (int i = BUCKETS - 1; i >= 0; --i) {
+			if (this._counts.get(i) != 0) {
+				return highestEquivalent(i);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the smallest recorded value that percentile of values do not exceed
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += this._counts.get(i);
+			if (seen >= rank) {
+				return highestEquivalent(i);
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Calls the visitor with the upper bound and count of every non-empty
+	 * bucket, in increasing order.
+	 */
+	public void forEachBucket(BucketVisitor visitor) {
+		for (int i = 0; i < BUCKETS; ++i) {
+			long n = this._counts.get(i);
+			if (n != 0) {
+				visitor.visit(highestEquivalent(i), n);
+			}
+		}
+	}
+
+	public interface BucketVisitor {
+		void visit(long upperBoundNanos, long count);
+	}
+
+	static int index(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exp - SUB_BITS;
+		return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+	}
+
+	//smallest value that maps to the bucket
+	static long lowestEquivalent(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = index / SUB_COUNT - 1;
+		return (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+	}
+
+	//largest value that maps to the bucket
+	static long highestEquivalent(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = index / SUB_COUNT - 1;
+		return lowestEquivalent(index) + (1L << shift) - 1;
+	}
+
+	private static long midpoint(int index) {
+		return lowestEquivalent(index) + (highestEquivalent(index) - lowestEquivalent(index)) / 2;
+	}
+}//end LatencyHistogram
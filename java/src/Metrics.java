@@ -0,0 +1,477 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Latency, call, error and row counts per operation and per SQL statement
+ * shape.  Recording is a map lookup, a few LongAdder increments and one
+ * atomic histogram increment, so it stays on in production.
+ *
+ * The numbers are exported two ways: a text report of the interval since
+ * the previous report, and the Prometheus text format with everything since
+ * startup, served by HttpService at /metrics or written to a file for the
+ * node_exporter textfile collector.
+ *
+ */
+
+public class Metrics {
+	//statement shapes tracked separately; any further shapes share one timer
+	public static final int MAX_STATEMENTS = 256;
+	private static final String OTHER_STATEMENTS = "other";
+
+	/**
+	 * Calls, errors, rows and latencies of one operation or statement shape.
+	 */
+	public static class Timer {
+		final String name;
+		private final LongAdder _calls = new LongAdder();
+		private final LongAdder _errors = new LongAdder();
+		private final LongAdder _rows = new LongAdder();
+		private final LongAdder _nanos = new LongAdder();
+		//recorded into until the next text report moves it into _total
+		private final LatencyHistogram _recent = new LatencyHistogram();
+		private final LatencyHistogram _total = new LatencyHistogram();
+		private long _reportedCalls = 0;
+		private long _reportedErrors = 0;
+		private long _reportedRows = 0;
+
+		Timer(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Records a successful call.
+		 *
+		 * @param nanos the duration of the call
+		 * @param rows the rows it returned or changed
+		 */
+		public void record(long nanos, long rows) {
+			this._calls.increment();
+			this._rows.add(rows);
+			this._nanos.add(nanos);
+			this._recent.record(nanos);
+		}
+
+		/**
+		 * Records a call that ended with an error.
+		 */
+		public void failed(long nanos) {
+			this._errors.increment();
+			record(nanos, 0);
+		}
+
+		public long getCalls() { return this._calls.sum(); }
+		public long getErrors() { return this._errors.sum(); }
+		public long getRows() { return this._rows.sum(); }
+
+		/**
+		 * @return every latency recorded since startup
+		 */
+		public LatencyHistogram snapshot() {
+			LatencyHistogram h = new LatencyHistogram();
+			//a report moves _recent into _total under the same lock
+			synchronized (this) {
+				h.add(this._total);
+				h.add(this._recent);
+			}
+			return h;
+		}
+	}//end Timer
+
+	/**
+	 * A call whose duration and outcome are recorded by {@link #time}.
+	 */
+	public interface Call<T> {
+		T call() throws SQLException;
+	}
+
+	private final Map<String, Timer> _operations = new ConcurrentHashMap<String, Timer>();
+	//statement shape to timer
+	private final Map<String, Timer> _statements = new ConcurrentHashMap<String, Timer>();
+	//already parameterized SQL to the timer of its shape, so the shape is computed once
+	private final Map<String, Timer> _bySql = new ConcurrentHashMap<String, Timer>();
+	private long _lastReport = System.nanoTime();
+	//reported alongside the timers when set
+	private volatile QueryCache _queryCache = null;
+	private volatile ChangeListener _changes = null;
+	private volatile ReplicaSet _replicas = null;
+	private volatile ShardSet _shards = null;
+
+	private Thread _reporter = null;
+	private volatile boolean _closed = false;
+
+	/**
+	 * @param cache the query result cache to report, or null for none
+	 */
+	public void setQueryCache(QueryCache cache) {
+		this._queryCache = cache;
+	}
+
+	/**
+	 * @param changes the listener for changes of other clients to report, or null for none
+	 */
+	public void setChangeListener(ChangeListener changes) {
+		this._changes = changes;
+	}
+
+	/**
+	 * @param replicas the read replicas to report, or null for none
+	 */
+	public void setReplicas(ReplicaSet replicas) {
+		this._replicas = replicas;
+	}
+
+	/**
+	 * @param shards the shards to report, or null for none
+	 */
+	public void setShards(ShardSet shards) {
+		this._shards = shards;
+	}
+
+	/**
+	 * @return the timer of an operation, created on first use
+	 */
+	public Timer operation(String name) {
+		Timer timer = this._operations.get(name);
+		return timer != null ? timer : this._operations.computeIfAbsent(name, Timer::new);
+	}
+
+	/**
+	 * @return the timer of the shape of a statement, created on first use
+	 */
+	public Timer statement(String sql) {
+		Timer timer = this._bySql.get(sql);
+		if (timer != null) {
+			return timer;
+		}
+		String shape = shape(sql);
+		if (this._statements.size() >= MAX_STATEMENTS && !this._statements.containsKey(shape)) {
+			shape = OTHER_STATEMENTS;
+		}
+		timer = this._statements.computeIfAbsent(shape, Timer::new);
+		//SQL with literals would fill the map with one entry per distinct value
+		if (shape.equals(sql) && this._bySql.size() < MAX_STATEMENTS) {
+			this._bySql.put(sql, timer);
+		}
+		return timer;
+	}
+
+	/**
+	 * Runs a call and records it under an operation.
+	 *
+	 * @return what the call returned
+	 * @throws java.sql.SQLException what the call threw
+	 */
+	public <T> T time(String operation, Call<T> call) throws SQLException {
+		Timer timer = operation(operation);
+		long start = System.nanoTime();
+		try {
+			T result = call.call();
+			timer.record(System.nanoTime() - start, 0);
+			return result;
+		}catch (SQLException | RuntimeException e) {
+			timer.failed(System.nanoTime() - start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Replaces string and number literals with '?' and collapses white space,
+	 * so statements differing only in their values share one shape.
+	 */
+	static String shape(String sql) {
+		StringBuilder out = new StringBuilder(sql.length());
+		boolean space = false;
+		for (int i = 0; i < sql.length(); ++i) {
+			char ch = sql.charAt(i);
+			if (Character.isWhitespace(ch)) {
+				space = out.length() > 0;
+				continue;
+			}
+			if (space) {
+				out.append(' ');
+				space = false;
+			}
+			if (ch == '\'') {
+				//skip to the closing quote; '' is an escaped quote inside the literal
+				++i;
+				while (i < sql.length() && !(sql.charAt(i) == '\'' && (i + 1 == sql.length() || sql.charAt(i + 1) != '\''))) {
+					i += sql.charAt(i) == '\'' ? 2 : 1;
+				}
+				out.append('?');
+			}
+			else if (Character.isDigit(ch) && (out.length() == 0 || !isIdentifierPart(out.charAt(out.length() - 1)))) {
+				while (i + 1 < sql.length() && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) {
+					++i;
+				}
+				out.append('?');
+			}
+			else {
+				out.append(ch);
+			}
+		}
+		return out.toString();
+	}//end shape
+
+	private static boolean isIdentifierPart(char ch) {
+		return Character.isLetterOrDigit(ch) || ch == '_' || ch == '?';
+	}
+
+	/**
+	 * Writes the calls, errors, rows and latencies recorded since the
+	 * previous report, then starts a new interval.
+	 */
+	public synchronized void report(StringBuilder out, ConnectionPool pool) {
+		long now = System.nanoTime();
+		out.append(String.format("--- metrics for the last %.1fs ---%n", (now - this._lastReport) / 1e9));
+		this._lastReport = now;
+		out.append(String.format("%-44s %9s %7s %10s %10s %10s %10s %10s %10s%n",
+			"operation / statement", "calls", "errors", "rows", "mean(us)", "p50(us)", "p99(us)", "p99.9(us)", "max(us)"));
+		for (Timer timer : sorted(this._operations)) {
+			interval(out, timer.name, timer);
+		}
+		for (Timer timer : sorted(this._statements)) {
+			interval(out, timer.name.length() > 44 ? timer.name.substring(0, 41) + "..." : timer.name, timer);
+		}
+		if (pool != null) {
+			out.append(pool.getStats()).append(System.lineSeparator());
+		}
+		QueryCache cache = this._queryCache;
+		if (cache != null) {
+			out.append(cache.getStats()).append(System.lineSeparator());
+		}
+		ChangeListener changes = this._changes;
+		if (changes != null) {
+			out.append(changes.getStats()).append(System.lineSeparator());
+		}
+		ReplicaSet replicas = this._replicas;
+		if (replicas != null) {
+			out.append(replicas.getStats()).append(System.lineSeparator());
+		}
+		ShardSet shards = this._shards;
+		if (shards != null) {
+			out.append(shards.getStats()).append(System.lineSeparator());
+		}
+	}//end report
+
+	private static void interval(StringBuilder out, String label, Timer timer) {
+		LatencyHistogram h;
+		long calls;
+		long errors;
+		long rows;
+		synchronized (timer) {
+			h = timer._recent.drain();
+			timer._total.add(h);
+			calls = timer.getCalls() - timer._reportedCalls;
+			errors = timer.getErrors() - timer._reportedErrors;
+			rows = timer.getRows() - timer._reportedRows;
+			timer._reportedCalls += calls;
+			timer._reportedErrors += errors;
+			timer._reportedRows += rows;
+		}
+		if (calls == 0) {
+			return;
+		}
+		out.append(String.format("%-44s %9d %7d %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+			label, calls, errors, rows, h.getMean() / 1e3, h.getValueAtPercentile(50) / 1e3,
+			h.getValueAtPercentile(99) / 1e3, h.getValueAtPercentile(99.9) / 1e3, h.getMax() / 1e3));
+	}
+
+	/**
+	 * Writes everything recorded since startup in the Prometheus text
+	 * exposition format.
+	 */
+	public void prometheus(StringBuilder out, ConnectionPool pool) {
+		family(out, "dbproject_operation", "operation", "DBproject operations", sorted(this._operations));
+		family(out, "dbproject_statement", "statement", "SQL statements by shape", sorted(this._statements));
+		QueryCache cache = this._queryCache;
+		if (cache != null) {
+			counter(out, "dbproject_query_cache_hits_total", "Query results served from the cache.", cache.getHitCount());
+			counter(out, "dbproject_query_cache_misses_total", "Cacheable queries sent to the database.", cache.getMissCount());
+			counter(out, "dbproject_query_cache_evictions_total", "Results evicted for space.", cache.getEvictionCount());
+			counter(out, "dbproject_query_cache_stale_total", "Results dropped after a write or expiry.", cache.getInvalidationCount());
+			gauge(out, "dbproject_query_cache_entries", "Results in the cache.", cache.size());
+			gauge(out, "dbproject_query_cache_bytes", "Estimated memory taken by the cached results.", cache.getBytes());
+		}
+		ChangeListener changes = this._changes;
+		if (changes != null) {
+			counter(out, "dbproject_change_notifications_total", "Change notifications received.", changes.getNotificationCount());
+			counter(out, "dbproject_change_bursts_total", "Bursts of changes by other clients applied.", changes.getBurstCount());
+			counter(out, "dbproject_change_flushes_total", "Full flushes after notifications may have been missed.", changes.getFlushCount());
+			counter(out, "dbproject_change_reconnects_total", "Reconnects of the listening connection.", changes.getReconnectCount());
+		}
+		ReplicaSet replicas = this._replicas;
+		if (replicas != null) {
+			counter(out, "dbproject_replica_reads_total", "Read-only queries sent to a replica.", replicas.getReplicaReadCount());
+			counter(out, "dbproject_replica_primary_reads_total", "Read-only queries sent to the primary for want of a replica.", replicas.getPrimaryReadCount());
+			counter(out, "dbproject_replica_pinned_reads_total", "Read-only queries kept on the primary after a write.", replicas.getPinnedReadCount());
+			counter(out, "dbproject_replica_failovers_total", "Replicas taken out of rotation by a failed borrow.", replicas.getFailoverCount());
+			gauge(out, "dbproject_replicas_healthy", "Replicas in rotation.", replicas.getHealthyCount());
+		}
+		ShardSet shards = this._shards;
+		if (shards != null) {
+			counter(out, "dbproject_shard_scatters_total", "Fleet-wide queries asked of every shard.", shards.getScatterCount());
+			out.append("# HELP dbproject_shard_routed_total Operations routed to a single shard.\n");
+			out.append("# TYPE dbproject_shard_routed_total counter\n");
+			long[] routed = shards.getRoutedCounts();
+			for (int i = 0; i < routed.length; ++i) {
+				out.append("dbproject_shard_routed_total{shard=\"").append(i).append("\"} ").append(routed[i]).append('\n');
+			}
+			gauge(out, "dbproject_shards", "Databases the data is split across.", shards.size());
+		}
+		if (pool == null) {
+			return;
+		}
+		LatencyHistogram waits = pool.getWaitHistogram();
+		out.append("# HELP dbproject_pool_wait_seconds Time spent waiting for a pooled connection.\n");
+		out.append("# TYPE dbproject_pool_wait_seconds summary\n");
+		quantiles(out, "dbproject_pool_wait_seconds", "", waits);
+		out.append("dbproject_pool_wait_seconds_sum ").append(waits.getSum() / 1e9).append('\n');
+		out.append("dbproject_pool_wait_seconds_count ").append(pool.getBorrowCount()).append('\n');
+		gauge(out, "dbproject_pool_active_connections", "Connections currently borrowed.", pool.getActiveCount());
+		gauge(out, "dbproject_pool_idle_connections", "Connections currently idle.", pool.getIdleCount());
+		counter(out, "dbproject_pool_timeouts_total", "Borrows that timed out.", pool.getTimeoutCount());
+		if (pool.getLeakThresholdMillis() > 0) {
+			//only counted while detection is on, see --leak-ms
+			counter(out, "dbproject_pool_leaks_total", "Connections held past the leak threshold.", pool.getLeakCount());
+		}
+	}//end prometheus
+
+	private static void family(StringBuilder out, String prefix, String label, String help, List<Timer> timers) {
+		out.append("# HELP ").append(prefix).append("_seconds Latency of ").append(help).append(".\n");
+		out.append("# TYPE ").append(prefix).append("_seconds summary\n");
+		for (Timer timer : timers) {
+			String labels = label + "=\"" + escape(timer.name) + "\"";
+			quantiles(out, prefix + "_seconds", labels, timer.snapshot());
+			out.append(prefix).append("_seconds_sum{").append(labels).append("} ").append(timer._nanos.sum() / 1e9).append('\n');
+			out.append(prefix).append("_seconds_count{").append(labels).append("} ").append(timer.getCalls()).append('\n');
+		}
+		out.append("# HELP ").append(prefix).append("_errors_total Failed ").append(help).append(".\n");
+		out.append("# TYPE ").append(prefix).append("_errors_total counter\n");
+		for (Timer timer : timers) {
+			out.append(prefix).append("_errors_total{").append(label).append("=\"").append(escape(timer.name)).append("\"} ")
+				.append(timer.getErrors()).append('\n');
+		}
+		out.append("# HELP ").append(prefix).append("_rows_total Rows returned or changed by ").append(help).append(".\n");
+		out.append("# TYPE ").append(prefix).append("_rows_total counter\n");
+		for (Timer timer : timers) {
+			out.append(prefix).append("_rows_total{").append(label).append("=\"").append(escape(timer.name)).append("\"} ")
+				.append(timer.getRows()).append('\n');
+		}
+	}
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private static void quantiles(StringBuilder out, String name, String labels, LatencyHistogram h) {
+		for (double q : QUANTILES) {
+			out.append(name).append('{');
+			if (!labels.isEmpty()) {
+				out.append(labels).append(',');
+			}
+			out.append("quantile=\"").append(q).append("\"} ").append(h.getValueAtPercentile(q * 100) / 1e9).append('\n');
+		}
+	}
+
+	private static void gauge(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" gauge\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void counter(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	//label values escape backslash, double quote and line feed
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static List<Timer> sorted(Map<String, Timer> timers) {
+		List<Timer> list = new ArrayList<Timer>(timers.values());
+		Collections.sort(list, (a, b) -> a.name.compareTo(b.name));
+		return list;
+	}
+
+	/**
+	 * Writes the Prometheus format to a file, replacing it atomically so a
+	 * collector never reads half a file.
+	 *
+	 * @throws java.io.IOException when the file could not be written
+	 */
+	public void writePrometheus(File file, ConnectionPool pool) throws IOException {
+		StringBuilder out = new StringBuilder(1 << 14);
+		prometheus(out, pool);
+		File parent = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+		try {
+			Files.write(tmp.toPath(), out.toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Starts a daemon thread that prints the text report and writes the
+	 * Prometheus file every period.
+	 *
+	 * @param pool the pool whose statistics are included, or null
+	 * @param periodSeconds the seconds between two reports
+	 * @param report where the text report goes, or null for none
+	 * @param file the Prometheus file to write, or null for none
+	 */
+	public synchronized void startReporter(final ConnectionPool pool, final int periodSeconds,
+			final PrintStream report, final File file) {
+		if (this._reporter != null) {
+			return;
+		}
+		this._reporter = new Thread(() -> {
+			while (!this._closed) {
+				try {
+					Thread.sleep(periodSeconds * 1000L);
+				}catch (InterruptedException e) {
+					return;
+				}
+				if (report != null) {
+					StringBuilder out = new StringBuilder(1 << 12);
+					report(out, pool);
+					report.print(out);
+					report.flush();
+				}
+				if (file != null) {
+					try {
+						writePrometheus(file, pool);
+					}catch (IOException e) {
+						System.err.println("Unable to write " + file + ": " + e.getMessage());
+					}
+				}
+			}
+		}, "metrics-reporter");
+		this._reporter.setDaemon(true);
+		this._reporter.start();
+	}
+
+	/**
+	 * Stops the reporting thread.
+	 */
+	public synchronized void close() {
+		this._closed = true;
+		if (this._reporter != null) {
+			this._reporter.interrupt();
+		}
+	}
+}//end Metrics
@@ -0,0 +1,166 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.postgresql.PGConnection;
+
+
+/**
+ * A physical connection owned by a {@link ConnectionPool}.  Closing it hands
+ * the connection back to the pool instead of closing the socket.
+ *
+ * Each connection keeps a small LRU cache of prepared statements keyed by
+ * their SQL text, so a statement is parsed once per connection and, after the
+ * driver's prepareThreshold executions, planned once on the server as well.
+ *
+ */
+
+public class PooledConnection implements AutoCloseable {
+	private final ConnectionPool _pool;
+	private final Connection _connection;
+	//the server process serving this connection, 0 when the driver does not say
+	private final int _backendPid;
+
+	private volatile long _lastUsed = System.currentTimeMillis();
+	private volatile long _borrowedAt;
+	private volatile Throwable _borrowTrace;
+	private volatile boolean _leakReported;
+
+	//prepared statements by SQL text, least recently used first
+	private final Map<String, PreparedStatement> _statements;
+
+	PooledConnection(ConnectionPool pool, Connection connection, final int statementCacheSize) {
+		this._pool = pool;
+		this._connection = connection;
+		this._backendPid = backendPid(connection);
+		this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= statementCacheSize) {
+					return false;
+				}
+				try {
+					eldest.getValue().close();
+				}catch (SQLException e) {
+					// ignored.
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @return the underlying physical connection; do not close it directly
+	 */
+	public Connection connection() {
+		return this._connection;
+	}
+
+	/**
+	 * @return the pool the connection belongs to
+	 */
+	public ConnectionPool pool() {
+		return this._pool;
+	}
+
+	/**
+	 * Hands the connection back to the pool.
+	 */
+	@Override
+	public void close() {
+		this._pool.release(this);
+	}
+
+	/**
+	 * Returns a prepared statement for the SQL text, reusing the one cached on
+	 * this connection when there is one.  The statement belongs to the cache:
+	 * callers close its result sets but never the statement itself.
+	 *
+	 * @param sql the SQL text with '?' placeholders
+	 * @return a prepared statement with its parameters cleared
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement ps = this._statements.get(sql);
+		if (ps != null && !ps.isClosed()) {
+			ps.clearParameters();
+			this._pool.recordStatementHit();
+			return ps;
+		}
+		ps = this._connection.prepareStatement(sql);
+		this._statements.put(sql, ps);
+		this._pool.recordStatementMiss();
+		return ps;
+	}//end prepare
+
+	private static int backendPid(Connection connection) {
+		try {
+			return connection.isWrapperFor(PGConnection.class) ? connection.unwrap(PGConnection.class).getBackendPID() : 0;
+		}catch (SQLException e) {
+			return 0;
+		}
+	}
+
+	int getBackendPid() {
+		return this._backendPid;
+	}
+
+	long getLastUsed() {
+		return this._lastUsed;
+	}
+
+	void onBorrow(boolean captureTrace) {
+		this._borrowedAt = System.currentTimeMillis();
+		this._borrowTrace = captureTrace ? new Throwable("connection borrowed here") : null;
+		this._leakReported = false;
+	}
+
+	/**
+	 * Reports the connection on standard error if it has been held longer than
+	 * the threshold and was not reported yet.
+	 *
+	 * @return true when a new leak was reported
+	 */
+	boolean reportLeak(long now, long thresholdMillis) {
+		if (this._leakReported || now - this._borrowedAt < thresholdMillis) {
+			return false;
+		}
+		this._leakReported = true;
+		System.err.println("Possible connection leak: held for " + (now - this._borrowedAt) + "ms");
+		if (this._borrowTrace != null) {
+			this._borrowTrace.printStackTrace();
+		}
+		return true;
+	}
+
+	/**
+	 * Puts the connection back in its default state before it is reused.
+	 *
+	 * @return false when the connection is broken and has to be discarded
+	 */
+	boolean reset() {
+		this._lastUsed = System.currentTimeMillis();
+		this._borrowTrace = null;
+		try {
+			if (this._connection.isClosed()) {
+				return false;
+			}
+			if (!this._connection.getAutoCommit()) {
+				this._connection.rollback();
+				this._connection.setAutoCommit(true);
+			}
+			return true;
+		}catch (SQLException e) {
+			return false;
+		}
+	}//end reset
+
+	void closePhysical() {
+		try {
+			this._connection.close();
+		}catch (SQLException e) {
+			// ignored.
+		}
+	}
+}//end PooledConnection
@@ -0,0 +1,464 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Results of read-only queries, keyed by the SQL text and its parameters.
+ * The cache is bounded by entries and by an estimate of the memory the
+ * results take, evicting the least recently used entry first, and entries
+ * may expire after a fixed time.
+ *
+ * Every table has a version that writes increment.  An entry remembers the
+ * versions of the tables its query reads, taken before the query ran, and
+ * is dropped on the first lookup after one of them changed.  A write racing
+ * with a query therefore makes its result stale rather than being missed.
+ * Tables are found by scanning the SQL for the names after FROM, JOIN,
+ * INTO, UPDATE and the like; a write naming no table this way changes
+ * every version.
+ *
+ * Writes made by other clients are noticed through the expiry time, or
+ * sooner when a ChangeListener passes their notifications to
+ * {@link #invalidate(String...)}.
+ *
+ */
+
+public class QueryCache {
+	//the reads worth caching: plain SELECTs without locks, sequences or clocks
+	private static final Pattern CACHEABLE = Pattern.compile("^\\s*(select|with)\\b", Pattern.CASE_INSENSITIVE);
+	private static final Pattern VOLATILE = Pattern.compile(
+		"\\b(nextval|currval|setval|lastval|now|random|clock_timestamp|timeofday|current_date|current_time|current_timestamp"
+		+ "|localtime|localtimestamp|insert|update|delete|truncate|for\\s+(no\\s+key\\s+)?update|for\\s+(key\\s+)?share)\\b",
+		Pattern.CASE_INSENSITIVE);
+	//also takes names after commas, which covers comma joins and adds harmless column names
+	private static final Pattern READS = Pattern.compile("(?:\\bfrom|\\bjoin|,)\\s*(?:[a-z_][a-z0-9_]*\\.)?([a-z_][a-z0-9_]*)",
+		Pattern.CASE_INSENSITIVE);
+	private static final Pattern WRITES = Pattern.compile(
+		"\\b(?:insert\\s+into|update|delete\\s+from|truncate(?:\\s+table)?|copy|alter\\s+table|drop\\s+table(?:\\s+if\\s+exists)?)"
+		+ "\\s+(?:only\\s+)?(?:[a-z_][a-z0-9_]*\\.)?([a-z_][a-z0-9_]*)", Pattern.CASE_INSENSITIVE);
+
+	//tables whose rows triggers change when another table is written, see sql/create.sql
+	private static final Map<String, String[]> TRIGGERED = new ConcurrentHashMap<String, String[]>();
+	static {
+		TRIGGERED.put("repairs", new String[] { "shiprepaircount" });
+	}
+
+	//rough per-object overheads, enough to compare entries with the budget
+	private static final int ENTRY_BYTES = 96;
+	private static final int ROW_BYTES = 32;
+	private static final int STRING_BYTES = 40;
+
+	private final int _maxEntries;
+	private final long _maxBytes;
+	private final long _ttlNanos;
+
+	private final LinkedHashMap<Key, Entry> _entries = new LinkedHashMap<Key, Entry>(256, 0.75f, true);
+	private long _bytes = 0;
+
+	//write versions per table, and one for writes whose tables are unknown
+	private final ConcurrentHashMap<String, AtomicLong> _versions = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong _everything = new AtomicLong();
+	//statement text to the tables it reads, null for statements not cached
+	private final ConcurrentHashMap<String, Object> _readSets = new ConcurrentHashMap<String, Object>();
+	private static final Object UNCACHEABLE = new Object();
+
+	private final LongAdder _hits = new LongAdder();
+	private final LongAdder _misses = new LongAdder();
+	private final LongAdder _evictions = new LongAdder();
+	private final LongAdder _invalidations = new LongAdder();
+
+	private static class Key {
+		final String sql;
+		final Object[] params;
+		final int hash;
+
+		Key(String sql, Object[] params) {
+			this.sql = sql;
+			this.params = params;
+			this.hash = 31 * sql.hashCode() + Arrays.hashCode(params);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return this.hash == k.hash && this.sql.equals(k.sql) && Arrays.equals(this.params, k.params);
+		}
+	}
+
+	private static class Entry {
+		final Object value;
+		final long bytes;
+		final long created;
+		final String[] tables;
+		final long[] versions;
+		final long everything;
+
+		Entry(Object value, long bytes, long created, Stamp stamp) {
+			this.value = value;
+			this.bytes = bytes;
+			this.created = created;
+			this.tables = stamp.tables;
+			this.versions = stamp.versions;
+			this.everything = stamp.everything;
+		}
+	}
+
+	/**
+	 * The table versions a query saw before it ran; pass it back to
+	 * {@link #put} with the result.
+	 */
+	public static class Stamp {
+		final String[] tables;
+		final long[] versions;
+		final long everything;
+
+		Stamp(String[] tables, long[] versions, long everything) {
+			this.tables = tables;
+			this.versions = versions;
+			this.everything = everything;
+		}
+	}
+
+	/**
+	 * @param maxEntries the results kept before evicting
+	 * @param maxBytes the estimated memory the results may take
+	 * @param ttlSeconds seconds a result is served for, 0 for no expiry
+	 */
+	public QueryCache(int maxEntries, long maxBytes, int ttlSeconds) {
+		if (maxEntries < 1 || maxBytes < 1 || ttlSeconds < 0) {
+			throw new IllegalArgumentException("cache sizes have to be positive and the expiry time not negative");
+		}
+		this._maxEntries = maxEntries;
+		this._maxBytes = maxBytes;
+		this._ttlNanos = ttlSeconds * 1000000000L;
+	}
+
+	/**
+	 * @return the tables a cacheable query reads, or null when its result is not cached
+	 */
+	String[] readSet(String sql) {
+		Object tables = this._readSets.get(sql);
+		if (tables == null) {
+			tables = UNCACHEABLE;
+			if (CACHEABLE.matcher(sql).find() && !VOLATILE.matcher(sql).find()) {
+				String[] found = tables(READS, sql);
+				if (found.length > 0) {
+					tables = found;
+				}
+			}
+			//unbounded statement texts are not remembered
+			if (this._readSets.size() < this._maxEntries * 4) {
+				this._readSets.put(sql, tables);
+			}
+		}
+		return tables == UNCACHEABLE ? null : (String[]) tables;
+	}
+
+	private static String[] tables(Pattern pattern, String sql) {
+		List<String> tables = new ArrayList<String>(4);
+		Matcher m = pattern.matcher(sql);
+		while (m.find()) {
+			String table = m.group(1).toLowerCase(Locale.ROOT);
+			if (!tables.contains(table)) {
+				tables.add(table);
+			}
+		}
+		return tables.toArray(new String[0]);
+	}
+
+	private AtomicLong version(String table) {
+		return this._versions.computeIfAbsent(table, t -> new AtomicLong());
+	}
+
+	/**
+	 * Reads the versions of the tables a query depends on.  Call it before
+	 * running the query.
+	 *
+	 * @return the stamp to store the result under, or null when the query is not cached
+	 */
+	public Stamp stamp(String sql) {
+		String[] tables = readSet(sql);
+		if (tables == null) {
+			return null;
+		}
+		long everything = this._everything.get();
+		long[] versions = new long[tables.length];
+		for (int i = 0; i < tables.length; ++i) {
+			versions[i] = version(tables[i]).get();
+		}
+		return new Stamp(tables, versions, everything);
+	}
+
+	/**
+	 * @return the cached result, or null when there is none that is current
+	 */
+	public Object get(String sql, Object[] params) {
+		Key key = new Key(sql, params);
+		synchronized (this) {
+			Entry e = this._entries.get(key);
+			if (e != null && isCurrent(e, System.nanoTime())) {
+				this._hits.increment();
+				return e.value;
+			}
+			if (e != null) {
+				remove(key);
+				this._invalidations.increment();
+			}
+		}
+		this._misses.increment();
+		return null;
+	}
+
+	private boolean isCurrent(Entry e, long now) {
+		if (this._ttlNanos > 0 && now - e.created > this._ttlNanos) {
+			return false;
+		}
+		if (e.everything != this._everything.get()) {
+			return false;
+		}
+		for (int i = 0; i < e.tables.length; ++i) {
+			if (version(e.tables[i]).get() != e.versions[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stores the result of a query read under the stamp.  Results larger
+	 * than a sixteenth of the memory budget are not kept.
+	 *
+	 * @param bytes the estimated memory the result takes, see {@link #sizeOf}
+	 */
+	public void put(String sql, Object[] params, Stamp stamp, Object value, long bytes) {
+		bytes += ENTRY_BYTES + 2L * sql.length() + STRING_BYTES * (long) params.length;
+		if (bytes > this._maxBytes / 16) {
+			return;
+		}
+		Key key = new Key(sql, params);
+		Entry e = new Entry(value, bytes, System.nanoTime(), stamp);
+		synchronized (this) {
+			remove(key);
+			this._entries.put(key, e);
+			this._bytes += bytes;
+			Iterator<Map.Entry<Key, Entry>> it = this._entries.entrySet().iterator();
+			while ((this._entries.size() > this._maxEntries || this._bytes > this._maxBytes) && it.hasNext()) {
+				this._bytes -= it.next().getValue().bytes;
+				it.remove();
+				this._evictions.increment();
+			}
+		}
+	}
+
+	//callers hold the monitor
+	private void remove(Key key) {
+		Entry old = this._entries.remove(key);
+		if (old != null) {
+			this._bytes -= old.bytes;
+		}
+	}
+
+	/**
+	 * @return the estimated memory taken by rows of strings
+	 */
+	public static long sizeOf(List<List<String>> rows) {
+		long bytes = 0;
+		for (List<String> row : rows) {
+			bytes += ROW_BYTES;
+			for (String value : row) {
+				bytes += value == null ? 8 : STRING_BYTES + 2L * value.length();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Marks the tables a write statement changes, so cached results reading
+	 * them are not served again.  Statements naming no table this way mark
+	 * every table.
+	 */
+	public void written(String sql) {
+		String[] tables = tables(WRITES, sql);
+		if (tables.length == 0) {
+			this._everything.incrementAndGet();
+			return;
+		}
+		invalidate(tables);
+	}
+
+	/**
+	 * Marks the tables a statement run as a query changes, if any, e.g. an
+	 * UPDATE with RETURNING.
+	 */
+	public void queried(String sql) {
+		String[] tables = tables(WRITES, sql);
+		if (tables.length > 0) {
+			invalidate(tables);
+		}
+	}
+
+	/**
+	 * Marks tables as changed, e.g. by writes that do not go through SQL
+	 * text this cache sees.
+	 */
+	public void invalidate(String... tables) {
+		for (String table : tables) {
+			String t = table.toLowerCase(Locale.ROOT);
+			version(t).incrementAndGet();
+			String[] triggered = TRIGGERED.get(t);
+			if (triggered != null) {
+				for (String other : triggered) {
+					version(other).incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops every result.
+	 */
+	public void clear() {
+		this._everything.incrementAndGet();
+		synchronized (this) {
+			this._entries.clear();
+			this._bytes = 0;
+		}
+	}
+
+	/**
+	 * A printed result: the text and the number of rows in it.
+	 */
+	public static class Rendered {
+		public final String text;
+		public final int rows;
+
+		public Rendered(String text, int rows) {
+			this.text = text;
+			this.rows = rows;
+		}
+	}
+
+	/**
+	 * Keeps what is written in memory up to a limit and passes everything
+	 * through to the target once the limit is exceeded, so large results
+	 * stream as before and small ones can be cached.
+	 */
+	public static class Capture extends Writer {
+		private final Writer _out;
+		private final int _limit;
+		private StringBuilder _text = new StringBuilder();
+
+		public Capture(Writer out, int limit) {
+			this._out = out;
+			this._limit = limit;
+		}
+
+		@Override
+		public void write(char[] buf, int off, int len) throws IOException {
+			if (this._text != null && this._text.length() + len <= this._limit) {
+				this._text.append(buf, off, len);
+				return;
+			}
+			if (this._text != null) {
+				this._out.append(this._text);
+				this._text = null;
+			}
+			this._out.write(buf, off, len);
+		}
+
+		@Override
+		public Writer append(CharSequence csq) throws IOException {
+			if (this._text != null && this._text.length() + csq.length() <= this._limit) {
+				this._text.append(csq);
+				return this;
+			}
+			if (this._text != null) {
+				this._out.append(this._text);
+				this._text = null;
+			}
+			this._out.append(csq);
+			return this;
+		}
+
+		/**
+		 * @return what was written, or null when it went past the limit
+		 */
+		public String captured() {
+			return this._text == null ? null : this._text.toString();
+		}
+
+		/**
+		 * Writes what was kept to the target and flushes it.
+		 */
+		@Override
+		public void flush() throws IOException {
+			if (this._text != null) {
+				this._out.append(this._text);
+				this._text.setLength(0);
+			}
+			this._out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}//end Capture
+
+	/**
+	 * @return the characters a printed result may have and still be cached
+	 */
+	public int getMaxRenderedChars() {
+		return (int) Math.min(Integer.MAX_VALUE, this._maxBytes / 16 / 2);
+	}
+
+	public long getHitCount() { return this._hits.sum(); }
+	public long getMissCount() { return this._misses.sum(); }
+	public long getEvictionCount() { return this._evictions.sum(); }
+	public long getInvalidationCount() { return this._invalidations.sum(); }
+
+	public synchronized int size() {
+		return this._entries.size();
+	}
+
+	/**
+	 * @return the estimated memory taken by the cached results
+	 */
+	public synchronized long getBytes() {
+		return this._bytes;
+	}
+
+	public double getHitRatio() {
+		long hits = getHitCount();
+		long total = hits + getMissCount();
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	/**
+	 * @return a one line summary of the cache counters
+	 */
+	public String getStats() {
+		return String.format("query cache: size=%d max=%d bytes=%d max bytes=%d hits=%d misses=%d hit ratio=%.3f evictions=%d stale=%d",
+			size(), this._maxEntries, getBytes(), this._maxBytes, getHitCount(), getMissCount(), getHitRatio(),
+			getEvictionCount(), getInvalidationCount());
+	}
+}//end QueryCache
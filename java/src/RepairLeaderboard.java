@@ -0,0 +1,169 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Ships ranked by their number of repairs, kept in memory so the ranking can
+ * be read without aggregating the Repairs table.  The ranking is loaded once
+ * from the ShipRepairCount summary (see sql/create.sql) and then updated by
+ * every repair this process inserts.
+ *
+ * Ships are held in two arrays sorted by count, most repaired first, plus an
+ * int map from ship id to array position.  An increment swaps the ship with
+ * the first ship of its tie group before counting up, so the arrays stay
+ * sorted after O(log n) work and reading the top k ships costs O(k).
+ *
+ */
+
+public class RepairLeaderboard {
+	//maintained by the triggers of sql/create.sql
+	static final String SQL_SUMMARY = "SELECT ship_id, repairs FROM ShipRepairCount WHERE repairs > 0";
+	//used on databases created before the summary table existed
+	static final String SQL_AGGREGATE = "SELECT ship_id, COUNT(*) FROM Repairs GROUP BY ship_id";
+	//undefined_table
+	private static final String SQLSTATE_UNDEFINED_TABLE = "42P01";
+
+	//ship id and repair count by rank
+	private int[] _ships = new int[16];
+	private int[] _counts = new int[16];
+	//ships ranked
+	private int _size = 0;
+	//ship id to rank
+	private final IntIntMap _rank = new IntIntMap(16);
+	private boolean _loaded = false;
+
+	/**
+	 * Replaces the ranking with the counts in the database.  An increment
+	 * racing with the load may be counted twice until the next load.
+	 *
+	 * @param pools the pool of every shard to read the counts through; the counts of a ship are summed
+	 * @throws java.sql.SQLException when the counts could not be read
+	 */
+	public void load(ConnectionPool... pools) throws SQLException {
+		final IntIntMap counts = new IntIntMap(256);
+		for (ConnectionPool pool : pools) {
+			try (PooledConnection pc = pool.borrow()) {
+				try {
+					read(pc, SQL_SUMMARY, counts);
+				}catch (SQLException e) {
+					if (!SQLSTATE_UNDEFINED_TABLE.equals(e.getSQLState())) {
+						throw e;
+					}
+					read(pc, SQL_AGGREGATE, counts);
+				}
+			}//end try
+		}
+
+		final long[] packed = new long[counts.size()];
+		counts.forEach(new IntIntMap.Visitor() {
+			int i = 0;
+			public void visit(int ship, int count) {
+				//ascending order of the negated count puts the largest first
+				packed[i++] = ((long) -count << 32) | (ship & 0xFFFFFFFFL);
+			}
+		});
+		Arrays.sort(packed);
+
+		synchronized (this) {
+			int capacity = Math.max(16, packed.length);
+			this._ships = new int[capacity];
+			this._counts = new int[capacity];
+			this._rank.clear();
+			for (int i = 0; i < packed.length; ++i) {
+				this._ships[i] = (int) packed[i];
+				this._counts[i] = (int) -(packed[i] >> 32);
+				this._rank.put(this._ships[i], i);
+			}
+			this._size = packed.length;
+			this._loaded = true;
+		}
+	}//end load
+
+	private static void read(PooledConnection pc, String sql, IntIntMap counts) throws SQLException {
+		try (Statement stmt = pc.connection().createStatement();
+		     ResultSet rs = stmt.executeQuery(sql)) {
+			while (rs.next()) {
+				int ship = rs.getInt(1);
+				counts.put(ship, counts.get(ship, 0) + rs.getInt(2));
+			}
+		}
+	}
+
+	public synchronized boolean isLoaded() {
+		return this._loaded;
+	}
+
+	/**
+	 * Counts one more repair of a ship.
+	 */
+	public synchronized void increment(int ship) {
+		int pos = this._rank.get(ship, -1);
+		if (pos < 0) {
+			pos = append(ship);
+		}
+		//the first ship with the same count takes our place, so we can count up in front of it
+		int first = firstWithCount(this._counts[pos]);
+		swap(first, pos);
+		++this._counts[first];
+	}
+
+	/**
+	 * @param k the number of ships wanted
+	 * @return {ship_id, repairs} of the k most repaired ships, most repaired first
+	 */
+	public synchronized List<int[]> top(int k) {
+		int n = Math.min(k, this._size);
+		List<int[]> result = new ArrayList<int[]>(n);
+		for (int i = 0; i < n && this._counts[i] > 0; ++i) {
+			result.add(new int[] { this._ships[i], this._counts[i] });
+		}
+		return result;
+	}
+
+	//ranks a new ship last, with no repairs
+	private int append(int ship) {
+		if (this._size == this._ships.length) {
+			this._ships = Arrays.copyOf(this._ships, this._size * 2);
+			this._counts = Arrays.copyOf(this._counts, this._size * 2);
+		}
+		int pos = this._size++;
+		this._ships[pos] = ship;
+		this._counts[pos] = 0;
+		this._rank.put(ship, pos);
+		return pos;
+	}
+
+	//counts are in descending order, so each tie group is one run
+	private int firstWithCount(int count) {
+		int lo = 0;
+		int hi = this._size - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (this._counts[mid] > count) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private void swap(int i, int j) {
+		if (i == j) {
+			return;
+		}
+		int ship = this._ships[i];
+		this._ships[i] = this._ships[j];
+		this._ships[j] = ship;
+		int count = this._counts[i];
+		this._counts[i] = this._counts[j];
+		this._counts[j] = count;
+		this._rank.put(this._ships[i], i);
+		this._rank.put(this._ships[j], j);
+	}
+}//end RepairLeaderboard
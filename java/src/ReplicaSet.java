@@ -0,0 +1,274 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+
+/**
+ * Read replicas of the primary database, each behind a pool of its own, for
+ * taking read-only queries off the primary.  Reads go round-robin to the
+ * replicas that passed their last health check; when none did, or a replica
+ * cannot hand out a connection, the read goes to the primary instead.
+ *
+ * A background thread checks every replica periodically.  A replica is
+ * healthy when it answers and lags at most the configured number of seconds
+ * behind the primary.  No replica in rotation can then be further behind
+ * than that lag plus one check period, so a thread that wrote within that
+ * time reads from the primary and always sees its own writes.
+ *
+ */
+
+public class ReplicaSet implements AutoCloseable {
+	//seconds behind the primary replayed so far; 0 when caught up or not a standby at all
+	static final String SQL_LAG = "SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() "
+		+ "THEN 0 ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()), 0) END";
+
+	//statements a replica can answer: plain queries that neither lock, write, nor use sequences
+	private static final Pattern QUERY = Pattern.compile("^\\s*(select|with|values|table)\\b", Pattern.CASE_INSENSITIVE);
+	private static final Pattern WRITES = Pattern.compile(
+		"\\b(insert|update|delete|truncate|merge|into|nextval|setval|lo_\\w+|pg_advisory\\w*|for\\s+(no\\s+key\\s+)?update|for\\s+(key\\s+)?share)\\b",
+		Pattern.CASE_INSENSITIVE);
+
+	private static class Replica {
+		final String url;
+		final ConnectionPool pool;
+		volatile boolean healthy = true;
+		volatile double lagSeconds = 0;
+		final LongAdder reads = new LongAdder();
+
+		Replica(String url, ConnectionPool pool) {
+			this.url = url;
+			this.pool = pool;
+		}
+	}
+
+	private final List<Replica> _replicas = new CopyOnWriteArrayList<Replica>();
+	private final AtomicInteger _next = new AtomicInteger();
+	private final int _maxLagSeconds;
+	private final int _checkSeconds;
+	//how long reads of a thread stay on the primary after it wrote
+	private final long _pinNanos;
+	//when the current thread last wrote, in System.nanoTime()
+	private final ThreadLocal<long[]> _lastWrite = ThreadLocal.withInitial(() -> new long[] { Long.MIN_VALUE });
+
+	private final LongAdder _primaryReads = new LongAdder();
+	private final LongAdder _pinnedReads = new LongAdder();
+	private final LongAdder _failovers = new LongAdder();
+
+	private Thread _checker = null;
+	private volatile boolean _closed = false;
+
+	/**
+	 * @param maxLagSeconds how far behind the primary a replica may be and stay in rotation
+	 * @param checkSeconds the seconds between two health checks
+	 */
+	public ReplicaSet(int maxLagSeconds, int checkSeconds) {
+		if (maxLagSeconds < 0 || checkSeconds < 1) {
+			throw new IllegalArgumentException("lag can not be negative and checks need a positive period");
+		}
+		this._maxLagSeconds = maxLagSeconds;
+		this._checkSeconds = checkSeconds;
+		this._pinNanos = (maxLagSeconds + checkSeconds) * 1000000000L;
+	}
+
+	/**
+	 * Adds a replica.  It takes reads until its first health check fails.
+	 *
+	 * @param url the JDBC url, for the reports
+	 * @param pool the pool of connections to the replica
+	 */
+	public void add(String url, ConnectionPool pool) {
+		this._replicas.add(new Replica(url, pool));
+	}
+
+	/**
+	 * @return the number of replicas, healthy or not
+	 */
+	public int size() {
+		return this._replicas.size();
+	}
+
+	/**
+	 * @param sql a statement
+	 * @return true when a replica can run it
+	 */
+	public static boolean isReadOnly(String sql) {
+		return QUERY.matcher(sql).find() && !WRITES.matcher(sql).find();
+	}
+
+	/**
+	 * Records that the current thread wrote to the primary, so it reads from
+	 * the primary until the replicas in rotation caught up.
+	 */
+	public void wrote() {
+		this._lastWrite.get()[0] = System.nanoTime();
+	}
+
+	private boolean pinned() {
+		long last = this._lastWrite.get()[0];
+		return last != Long.MIN_VALUE && System.nanoTime() - last < this._pinNanos;
+	}
+
+	/**
+	 * Borrows a connection for a query, from the next healthy replica when
+	 * the query is read-only and the current thread has not written lately,
+	 * and from the primary otherwise.
+	 *
+	 * @param primary the pool of the primary
+	 * @param sql the statement about to run
+	 * @return a connection that must be closed by the caller
+	 * @throws java.sql.SQLException when no connection could be obtained
+	 */
+	public PooledConnection borrow(ConnectionPool primary, String sql) throws SQLException {
+		if (!isReadOnly(sql)) {
+			//e.g. SELECT nextval(...), which later reads expect to see
+			wrote();
+			return primary.borrow();
+		}
+		if (pinned()) {
+			this._pinnedReads.increment();
+			return primary.borrow();
+		}
+		int n = this._replicas.size();
+		for (int i = 0; i < n; ++i) {
+			Replica r = this._replicas.get(Math.floorMod(this._next.getAndIncrement(), n));
+			if (!r.healthy) {
+				continue;
+			}
+			try {
+				PooledConnection pc = r.pool.borrow();
+				r.reads.increment();
+				return pc;
+			}catch (SQLException e) {
+				//out of rotation until the next check finds it healthy again
+				r.healthy = false;
+				this._failovers.increment();
+			}
+		}
+		this._primaryReads.increment();
+		return primary.borrow();
+	}//end borrow
+
+	/**
+	 * Checks every replica once.
+	 *
+	 * @return the number of healthy replicas
+	 */
+	public int check() {
+		int healthy = 0;
+		for (Replica r : this._replicas) {
+			boolean ok;
+			try (PooledConnection pc = r.pool.borrow()) {
+				PreparedStatement ps = pc.prepare(SQL_LAG);
+				try (ResultSet rs = ps.executeQuery()) {
+					r.lagSeconds = rs.next() ? rs.getDouble(1) : 0;
+				}
+				ok = r.lagSeconds <= this._maxLagSeconds;
+			}catch (SQLException e) {
+				ok = false;
+			}
+			if (r.healthy && !ok) {
+				System.err.println("Replica " + r.url + " left the rotation" + (r.lagSeconds > this._maxLagSeconds
+					? String.format(", %.1fs behind", r.lagSeconds) : ""));
+			}
+			else if (!r.healthy && ok) {
+				System.err.println("Replica " + r.url + " rejoined the rotation");
+			}
+			r.healthy = ok;
+			if (ok) {
+				++healthy;
+			}
+		}
+		return healthy;
+	}//end check
+
+	/**
+	 * Starts a daemon thread checking the replicas every check period.
+	 */
+	public synchronized void startChecker() {
+		if (this._checker != null) {
+			return;
+		}
+		this._checker = new Thread(() -> {
+			while (!this._closed) {
+				check();
+				try {
+					Thread.sleep(this._checkSeconds * 1000L);
+				}catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "replica-checker");
+		this._checker.setDaemon(true);
+		this._checker.start();
+	}
+
+	/**
+	 * Stops the checking thread and closes the replica pools.
+	 */
+	@Override
+	public synchronized void close() {
+		this._closed = true;
+		if (this._checker != null) {
+			this._checker.interrupt();
+		}
+		for (Replica r : this._replicas) {
+			r.pool.close();
+		}
+	}
+
+	/**
+	 * @return the reads sent to replicas
+	 */
+	public long getReplicaReadCount() {
+		long n = 0;
+		for (Replica r : this._replicas) {
+			n += r.reads.sum();
+		}
+		return n;
+	}
+
+	/**
+	 * @return the read-only queries sent to the primary because no replica was available
+	 */
+	public long getPrimaryReadCount() { return this._primaryReads.sum(); }
+
+	/**
+	 * @return the read-only queries sent to the primary because their thread wrote lately
+	 */
+	public long getPinnedReadCount() { return this._pinnedReads.sum(); }
+
+	/**
+	 * @return the replicas taken out of rotation because they handed out no connection
+	 */
+	public long getFailoverCount() { return this._failovers.sum(); }
+
+	/**
+	 * @return the number of replicas that passed their last check
+	 */
+	public int getHealthyCount() {
+		int n = 0;
+		for (Replica r : this._replicas) {
+			if (r.healthy) {
+				++n;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return a one line summary of the routing counters and every replica
+	 */
+	public String getStats() {
+		StringBuilder out = new StringBuilder(String.format("replicas: healthy=%d/%d reads=%d primary=%d pinned=%d failovers=%d",
+			getHealthyCount(), size(), getReplicaReadCount(), getPrimaryReadCount(), getPinnedReadCount(), getFailoverCount()));
+		for (Replica r : this._replicas) {
+			out.append(String.format(" [%s %s lag=%.1fs reads=%d]", r.url, r.healthy ? "up" : "down", r.lagSeconds, r.reads.sum()));
+		}
+		return out.toString();
+	}
+}//end ReplicaSet
@@ -0,0 +1,109 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+
+/**
+ * Hands out reservation numbers from a database sequence.  The sequence is
+ * created with INCREMENT BY n (see sql/create.sql), so every nextval leases
+ * a block of n consecutive numbers to this process.  Numbers inside a block
+ * are handed out from memory; only one round trip is made per block.
+ *
+ * Blocks never overlap, so several processes can allocate concurrently
+ * without colliding.  Numbers left in a block when the process exits are
+ * simply skipped.  When several databases each have their own sequence,
+ * e.g. shards, every allocator is given a stride and an offset and hands
+ * out offset + stride * value, so the numbers of different databases never
+ * meet.
+ *
+ */
+
+public class ReservationIdAllocator {
+	private final ConnectionPool _pool;
+	private final String _sequence;
+	private final int _stride;
+	private final int _offset;
+	private int _blockSize = 0;
+
+	//next number to hand out and the first number past the current block
+	private long _next = 0;
+	private long _limit = 0;
+
+	/**
+	 * @param pool the pool used to lease new blocks
+	 * @param sequence the name of the sequence backing the numbers
+	 */
+	public ReservationIdAllocator(ConnectionPool pool, String sequence) {
+		this(pool, sequence, 1, 0);
+	}
+
+	/**
+	 * @param pool the pool used to lease new blocks
+	 * @param sequence the name of the sequence backing the numbers
+	 * @param stride the number of databases sharing the number space
+	 * @param offset the position of this database among them, below stride
+	 */
+	public ReservationIdAllocator(ConnectionPool pool, String sequence, int stride, int offset) {
+		if (stride < 1 || offset < 0 || offset >= stride) {
+			throw new IllegalArgumentException("offset has to be below a positive stride");
+		}
+		this._pool = pool;
+		this._sequence = sequence;
+		this._stride = stride;
+		this._offset = offset;
+	}
+
+	/**
+	 * @return the next unused reservation number
+	 * @throws java.sql.SQLException when a new block could not be leased or the numbers ran out
+	 */
+	public synchronized int next() throws SQLException {
+		if (this._next >= this._limit) {
+			lease();
+		}
+		long rnum = this._next++ * this._stride + this._offset;
+		if (rnum > Integer.MAX_VALUE) {
+			throw new SQLException("reservation numbers of sequence " + this._sequence + " are used up");
+		}
+		return (int) rnum;
+	}
+
+	/**
+	 * @return the number of ids leased per round trip
+	 */
+	public synchronized int getBlockSize() {
+		return this._blockSize;
+	}
+
+	//leases the next block from the sequence
+	private void lease() throws SQLException {
+		try (PooledConnection pc = this._pool.borrow()) {
+			if (this._blockSize == 0) {
+				this._blockSize = readIncrement(pc);
+			}
+			PreparedStatement ps = pc.prepare("SELECT nextval(CAST(? AS regclass))");
+			ps.setString(1, this._sequence);
+			try (ResultSet rs = ps.executeQuery()) {
+				rs.next();
+				this._next = rs.getLong(1);
+				this._limit = this._next + this._blockSize;
+			}
+		}
+	}//end lease
+
+	//reads INCREMENT BY of the sequence, which is the block size
+	private int readIncrement(PooledConnection pc) throws SQLException {
+		PreparedStatement ps = pc.prepare("SELECT increment_by FROM pg_sequences WHERE sequencename = lower(?)");
+		ps.setString(1, this._sequence);
+		try (ResultSet rs = ps.executeQuery()) {
+			if (!rs.next()) {
+				throw new SQLException("sequence " + this._sequence + " does not exist");
+			}
+			int increment = rs.getInt(1);
+			if (increment < 1) {
+				throw new SQLException("sequence " + this._sequence + " must have a positive increment");
+			}
+			return increment;
+		}
+	}
+}//end ReservationIdAllocator
@@ -0,0 +1,285 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+
+/**
+ * Writes a result set as text in one of several formats.  Column metadata is
+ * read once per result, every row is built in one reused StringBuilder and
+ * the text goes to the writer in large chunks, so rendering a big result
+ * costs little more than the I/O itself.
+ *
+ */
+
+public abstract class ResultRenderer {
+	/**
+	 * The supported output formats.
+	 */
+	public enum Format {
+		//columns padded to their display width
+		TABLE,
+		//tab separated values
+		TSV,
+		//comma separated values with RFC 4180 quoting
+		CSV,
+		//one JSON object per row
+		JSON;
+
+		public static Format parse(String name) {
+			return valueOf(name.toUpperCase());
+		}
+	}
+
+	//the builder is handed to the writer once it grows past this
+	private static final int CHUNK = 1 << 13;
+
+	protected final StringBuilder _buf = new StringBuilder(CHUNK + 256);
+	protected String[] _names;
+	protected boolean[] _numeric;
+
+	/**
+	 * @param format the output format
+	 * @return a renderer for that format
+	 */
+	public static ResultRenderer create(Format format) {
+		switch (format) {
+			case TABLE: return new Table();
+			case CSV: return new Delimited(',', true);
+			case JSON: return new JsonLines();
+			default: return new Delimited('\t', false);
+		}
+	}
+
+	/**
+	 * Writes every remaining row of the result set.  The header is only
+	 * written when there is at least one row.  The writer is not flushed.
+	 *
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when reading the result failed
+	 * @throws java.io.IOException when writing failed
+	 */
+	public int render(ResultSet rs, Writer out) throws SQLException, IOException {
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int numCol = rsmd.getColumnCount();
+		this._names = new String[numCol];
+		this._numeric = new boolean[numCol];
+		for (int i = 0; i < numCol; ++i) {
+			this._names[i] = rsmd.getColumnName(i + 1);
+			this._numeric[i] = isNumeric(rsmd.getColumnType(i + 1));
+		}
+		columns(rsmd);
+
+		String[] values = new String[numCol];
+		int rowCount = 0;
+		this._buf.setLength(0);
+		while (rs.next()) {
+			if (rowCount == 0) {
+				header();
+			}
+			for (int i = 0; i < numCol; ++i) {
+				values[i] = rs.getString(i + 1);
+			}
+			row(values);
+			++rowCount;
+			if (this._buf.length() >= CHUNK) {
+				out.append(this._buf);
+				this._buf.setLength(0);
+			}
+		}//end while
+		out.append(this._buf);
+		this._buf.setLength(0);
+		return rowCount;
+	}//end render
+
+	//called once per result before any row, with the metadata at hand
+	protected void columns(ResultSetMetaData rsmd) throws SQLException {
+	}
+
+	protected abstract void header();
+
+	protected abstract void row(String[] values);
+
+	private static boolean isNumeric(int type) {
+		switch (type) {
+			case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+			case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC: case Types.DECIMAL:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Tab or comma separated values.
+	 */
+	static class Delimited extends ResultRenderer {
+		private final char _sep;
+		private final boolean _quote;
+
+		Delimited(char sep, boolean quote) {
+			this._sep = sep;
+			this._quote = quote;
+		}
+
+		@Override
+		protected void header() {
+			row(this._names);
+		}
+
+		@Override
+		protected void row(String[] values) {
+			for (int i = 0; i < values.length; ++i) {
+				if (i > 0) {
+					this._buf.append(this._sep);
+				}
+				field(values[i]);
+			}
+			this._buf.append('\n');
+		}
+
+		private void field(String value) {
+			if (value == null) {
+				return;
+			}
+			if (!this._quote || !needsQuotes(value)) {
+				this._buf.append(value);
+				return;
+			}
+			this._buf.append('"');
+			for (int i = 0; i < value.length(); ++i) {
+				char ch = value.charAt(i);
+				if (ch == '"') {
+					this._buf.append('"');
+				}
+				this._buf.append(ch);
+			}
+			this._buf.append('"');
+		}
+
+		private boolean needsQuotes(String value) {
+			for (int i = 0; i < value.length(); ++i) {
+				char ch = value.charAt(i);
+				if (ch == this._sep || ch == '"' || ch == '\n' || ch == '\r') {
+					return true;
+				}
+			}
+			return false;
+		}
+	}//end Delimited
+
+	/**
+	 * Columns padded to the display width reported by the driver.
+	 */
+	static class Table extends ResultRenderer {
+		//wider columns are not padded further
+		private static final int MAX_WIDTH = 40;
+		private int[] _widths;
+
+		@Override
+		protected void columns(ResultSetMetaData rsmd) throws SQLException {
+			this._widths = new int[this._names.length];
+			for (int i = 0; i < this._widths.length; ++i) {
+				int display = Math.min(MAX_WIDTH, Math.max(1, rsmd.getColumnDisplaySize(i + 1)));
+				this._widths[i] = Math.max(display, this._names[i].length());
+			}
+		}
+
+		@Override
+		protected void header() {
+			row(this._names);
+			for (int i = 0; i < this._widths.length; ++i) {
+				if (i > 0) {
+					this._buf.append("-+-");
+				}
+				for (int w = 0; w < this._widths[i]; ++w) {
+					this._buf.append('-');
+				}
+			}
+			this._buf.append('\n');
+		}
+
+		@Override
+		protected void row(String[] values) {
+			for (int i = 0; i < values.length; ++i) {
+				if (i > 0) {
+					this._buf.append(" | ");
+				}
+				String value = values[i] == null ? "" : values[i];
+				int pad = this._widths[i] - value.length();
+				if (this._numeric[i]) {
+					spaces(pad);
+					this._buf.append(value);
+				}
+				else {
+					this._buf.append(value);
+					if (i < values.length - 1) {
+						spaces(pad);
+					}
+				}
+			}
+			this._buf.append('\n');
+		}
+
+		private void spaces(int n) {
+			for (int i = 0; i < n; ++i) {
+				this._buf.append(' ');
+			}
+		}
+	}//end Table
+
+	/**
+	 * One JSON object per line, numbers unquoted.
+	 */
+	static class JsonLines extends ResultRenderer {
+		@Override
+		protected void header() {
+		}
+
+		@Override
+		protected void row(String[] values) {
+			this._buf.append('{');
+			for (int i = 0; i < values.length; ++i) {
+				if (i > 0) {
+					this._buf.append(',');
+				}
+				string(this._names[i]);
+				this._buf.append(':');
+				if (values[i] == null) {
+					this._buf.append("null");
+				}
+				else if (this._numeric[i]) {
+					this._buf.append(values[i]);
+				}
+				else {
+					string(values[i]);
+				}
+			}
+			this._buf.append("}\n");
+		}
+
+		private void string(String s) {
+			this._buf.append('"');
+			for (int i = 0; i < s.length(); ++i) {
+				char ch = s.charAt(i);
+				switch (ch) {
+					case '"': this._buf.append("\\\""); break;
+					case '\\': this._buf.append("\\\\"); break;
+					case '\n': this._buf.append("\\n"); break;
+					case '\r': this._buf.append("\\r"); break;
+					case '\t': this._buf.append("\\t"); break;
+					default:
+						if (ch < 0x20) {
+							this._buf.append(String.format("\\u%04x", (int) ch));
+						}
+						else {
+							this._buf.append(ch);
+						}
+				}
+			}
+			this._buf.append('"');
+		}
+	}//end JsonLines
+}//end ResultRenderer
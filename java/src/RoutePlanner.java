@@ -0,0 +1,562 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Plans multi-leg trips between two ports over the sailings in Cruise.
+ * Every cruise is a leg from its departure port to its arrival port; a trip
+ * may change cruises at a port when the next one leaves at least the
+ * minimum connection time after the previous one arrived.  Cruise stores
+ * dates only, so times and connection times are whole days.
+ *
+ * The graph is held in primitive arrays: port codes are interned to ints,
+ * the legs are sorted by departure day for the earliest arrival search
+ * (a connection scan), and a second ordering groups them by departure port
+ * and day, with an offset per port, for the cheapest trip search (Dijkstra
+ * over legs).  Neither search touches the database.
+ *
+ * The graph is rebuilt from the legs in memory on the first query after a
+ * cruise was added.
+ *
+ */
+
+public class RoutePlanner {
+	static final String SQL_LEGS = "SELECT cnum, departure_port, arrival_port, actual_departure_date, actual_arrival_date, "
+		+ "cost, num_stops FROM Cruise";
+	static final String SQL_LEG = SQL_LEGS + " WHERE cnum = ?";
+
+	//returned for ports or trips that do not exist
+	static final int NONE = -1;
+
+	/**
+	 * One cruise of a trip.
+	 */
+	public static class Leg {
+		public final int cnum;
+		public final String from;
+		public final String to;
+		public final LocalDate departs;
+		public final LocalDate arrives;
+		public final int cost;
+		public final int stops;
+
+		Leg(int cnum, String from, String to, LocalDate departs, LocalDate arrives, int cost, int stops) {
+			this.cnum = cnum;
+			this.from = from;
+			this.to = to;
+			this.departs = departs;
+			this.arrives = arrives;
+			this.cost = cost;
+			this.stops = stops;
+		}
+	}
+
+	/**
+	 * A trip, its legs in sailing order.
+	 */
+	public static class Itinerary {
+		public final Leg[] legs;
+		public final long cost;
+		public final int stops;
+
+		Itinerary(Leg[] legs) {
+			long cost = 0;
+			int stops = 0;
+			for (Leg leg : legs) {
+				cost += leg.cost;
+				stops += leg.stops;
+			}
+			this.legs = legs;
+			this.cost = cost;
+			this.stops = stops;
+		}
+
+		public LocalDate departs() {
+			return this.legs[0].departs;
+		}
+
+		public LocalDate arrives() {
+			return this.legs[this.legs.length - 1].arrives;
+		}
+	}
+
+	//the legs as loaded and added, in no particular order
+	private int _size = 0;
+	private int[] _cnum = new int[1024];
+	private int[] _from = new int[1024];
+	private int[] _to = new int[1024];
+	private int[] _dep = new int[1024];
+	private int[] _arr = new int[1024];
+	private int[] _cost = new int[1024];
+	private int[] _stops = new int[1024];
+	private final Map<String, Integer> _portIds = new HashMap<String, Integer>();
+	private String[] _ports = new String[256];
+
+	private volatile Graph _graph = null;
+	private volatile boolean _loaded = false;
+
+	/**
+	 * An immutable snapshot of the legs, built for searching.
+	 */
+	private static class Graph {
+		final String[] ports;
+		final Map<String, Integer> portIds;
+		//leg attributes, legs sorted by departure day
+		final int[] cnum, from, to, dep, arr, cost, stops;
+		//leg numbers sorted by departure port and day; the legs of port p are byPort[first[p]] to byPort[first[p + 1] - 1]
+		final int[] byPort;
+		final int[] first;
+
+		Graph(RoutePlanner legs) {
+			int n = legs._size;
+			int ports = legs._portIds.size();
+			this.ports = Arrays.copyOf(legs._ports, ports);
+			this.portIds = new HashMap<String, Integer>(legs._portIds);
+
+			//sort by departure through keys packing the day over the leg number
+			long[] order = new long[n];
+			for (int i = 0; i < n; ++i) {
+				order[i] = ((long) legs._dep[i] << 32) | i;
+			}
+			Arrays.sort(order);
+			this.cnum = new int[n];
+			this.from = new int[n];
+			this.to = new int[n];
+			this.dep = new int[n];
+			this.arr = new int[n];
+			this.cost = new int[n];
+			this.stops = new int[n];
+			for (int k = 0; k < n; ++k) {
+				int i = (int) order[k];
+				this.cnum[k] = legs._cnum[i];
+				this.from[k] = legs._from[i];
+				this.to[k] = legs._to[i];
+				this.dep[k] = legs._dep[i];
+				this.arr[k] = legs._arr[i];
+				this.cost[k] = legs._cost[i];
+				this.stops[k] = legs._stops[i];
+			}
+
+			//counting sort by port keeps the departure order within a port
+			this.first = new int[ports + 1];
+			for (int k = 0; k < n; ++k) {
+				++this.first[this.from[k] + 1];
+			}
+			for (int p = 0; p < ports; ++p) {
+				this.first[p + 1] += this.first[p];
+			}
+			int[] next = Arrays.copyOf(this.first, ports);
+			this.byPort = new int[n];
+			for (int k = 0; k < n; ++k) {
+				this.byPort[next[this.from[k]]++] = k;
+			}
+		}//end Graph
+
+		int port(String code) {
+			Integer id = this.portIds.get(code.trim());
+			return id == null ? NONE : id;
+		}
+
+		Leg leg(int k) {
+			return new Leg(this.cnum[k], this.ports[this.from[k]], this.ports[this.to[k]],
+				LocalDate.ofEpochDay(this.dep[k]), LocalDate.ofEpochDay(this.arr[k]), this.cost[k], this.stops[k]);
+		}
+
+		//follows the legs that reached each port back from the destination
+		Itinerary trip(int[] via, int src, int dst, int last) {
+			int n = 0;
+			for (int k = last; k != NONE; k = this.from[k] == src ? NONE : via[this.from[k]]) {
+				++n;
+			}
+			Leg[] legs = new Leg[n];
+			for (int k = last; k != NONE; k = this.from[k] == src ? NONE : via[this.from[k]]) {
+				legs[--n] = leg(k);
+			}
+			return new Itinerary(legs);
+		}
+	}//end Graph
+
+	public boolean isLoaded() {
+		return this._loaded;
+	}
+
+	/**
+	 * Replaces the legs with the cruises in the database.
+	 *
+	 * @param pools the pool of every shard holding cruises
+	 * @return the number of legs loaded
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public int load(ConnectionPool... pools) throws SQLException {
+		RoutePlanner fresh = new RoutePlanner();
+		for (ConnectionPool pool : pools) {
+			try (PooledConnection pc = pool.borrow()) {
+				//stream through a cursor
+				pc.connection().setAutoCommit(false);
+				PreparedStatement ps = pc.prepare(SQL_LEGS);
+				ps.setFetchSize(DBproject.DEFAULT_FETCH_SIZE);
+				try (ResultSet rs = ps.executeQuery()) {
+					while (rs.next()) {
+						fresh.append(rs);
+					}
+				}finally {
+					ps.setFetchSize(0);
+				}
+			}//end try
+		}
+		synchronized (this) {
+			this._size = fresh._size;
+			this._cnum = fresh._cnum;
+			this._from = fresh._from;
+			this._to = fresh._to;
+			this._dep = fresh._dep;
+			this._arr = fresh._arr;
+			this._cost = fresh._cost;
+			this._stops = fresh._stops;
+			this._portIds.clear();
+			this._portIds.putAll(fresh._portIds);
+			this._ports = fresh._ports;
+			this._graph = null;
+			this._loaded = true;
+		}
+		return fresh._size;
+	}//end load
+
+	private void append(ResultSet rs) throws SQLException {
+		append(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getDate(4).toLocalDate(), rs.getDate(5).toLocalDate(),
+			rs.getInt(6), rs.getInt(7));
+	}
+
+	private synchronized void append(int cnum, String from, String to, LocalDate departs, LocalDate arrives, int cost, int stops) {
+		if (this._size == this._cnum.length) {
+			int n = this._size * 2;
+			this._cnum = Arrays.copyOf(this._cnum, n);
+			this._from = Arrays.copyOf(this._from, n);
+			this._to = Arrays.copyOf(this._to, n);
+			this._dep = Arrays.copyOf(this._dep, n);
+			this._arr = Arrays.copyOf(this._arr, n);
+			this._cost = Arrays.copyOf(this._cost, n);
+			this._stops = Arrays.copyOf(this._stops, n);
+		}
+		int i = this._size++;
+		this._cnum[i] = cnum;
+		this._from[i] = intern(from);
+		this._to[i] = intern(to);
+		this._dep[i] = (int) departs.toEpochDay();
+		//a leg never arrives before it departs, the searches rely on it
+		this._arr[i] = (int) Math.max(departs.toEpochDay(), arrives.toEpochDay());
+		this._cost[i] = cost;
+		this._stops[i] = stops;
+		this._graph = null;
+	}
+
+	//port codes are CHAR(5), so the database pads shorter ones
+	private int intern(String port) {
+		String code = port.trim();
+		Integer id = this._portIds.get(code);
+		if (id == null) {
+			id = this._portIds.size();
+			if (id == this._ports.length) {
+				this._ports = Arrays.copyOf(this._ports, id * 2);
+			}
+			this._ports[id] = code;
+			this._portIds.put(code, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Adds the leg of a new cruise.
+	 *
+	 * @param departureDate the dates as given to the INSERT; only yyyy-MM-dd prefixes are understood
+	 * @return false when a date could not be read, see {@link #refresh(ConnectionPool, int)}
+	 */
+	public boolean add(int cnum, int cost, int stops, String departureDate, String arrivalDate,
+			String arrivalPort, String departurePort) {
+		LocalDate departs = parse(departureDate);
+		LocalDate arrives = parse(arrivalDate);
+		if (departs == null || arrives == null) {
+			return false;
+		}
+		append(cnum, departurePort, arrivalPort, departs, arrives, cost, stops);
+		return true;
+	}
+
+	private static LocalDate parse(String date) {
+		try {
+			String d = date.trim();
+			return LocalDate.parse(d.length() > 10 ? d.substring(0, 10) : d);
+		}catch (DateTimeParseException | IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Adds the leg of a cruise as stored in Cruise.
+	 *
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public void refresh(ConnectionPool pool, int cnum) throws SQLException {
+		try (PooledConnection pc = pool.borrow()) {
+			PreparedStatement ps = pc.prepare(SQL_LEG);
+			ps.setInt(1, cnum);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (rs.next()) {
+					append(rs);
+				}
+			}
+		}
+	}
+
+	//the current snapshot, rebuilt after legs were added
+	private Graph graph() {
+		Graph g = this._graph;
+		if (g == null) {
+			synchronized (this) {
+				g = this._graph;
+				if (g == null) {
+					g = new Graph(this);
+					this._graph = g;
+				}
+			}
+		}
+		return g;
+	}
+
+	/**
+	 * Finds the trip that arrives first.  Legs are scanned once in
+	 * departure order, marking each port with the earliest day it can be
+	 * reached; the scan stops at the first leg leaving after the best
+	 * arrival found so far.
+	 *
+	 * @param from the departure port
+	 * @param to the arrival port
+	 * @param earliest the first day the trip may depart
+	 * @param minConnectDays the days needed between arriving at a port and leaving it again
+	 * @return the trip, or null when the ports are not connected
+	 */
+	public Itinerary earliestArrival(String from, String to, LocalDate earliest, int minConnectDays) {
+		if (minConnectDays < 0) {
+			throw new IllegalArgumentException("the connection time cannot be negative");
+		}
+		Graph g = graph();
+		int src = g.port(from);
+		int dst = g.port(to);
+		if (src == NONE || dst == NONE || src == dst) {
+			return null;
+		}
+		int n = g.cnum.length;
+		int[] reach = new int[g.ports.length];
+		int[] via = new int[g.ports.length];
+		Arrays.fill(reach, Integer.MAX_VALUE);
+		Arrays.fill(via, NONE);
+		int start = (int) earliest.toEpochDay();
+		//the traveller is at src from the first day on, no connection needed
+		reach[src] = start - minConnectDays;
+
+		int k = lowerBound(g.dep, 0, n, start);
+		while (k < n && g.dep[k] < reach[dst]) {
+			int day = g.dep[k];
+			int end = lowerBound(g.dep, k, n, day + 1);
+			//a leg arriving on the day it departs can feed another leg of the
+			//same day when no connection time is needed, so repeat the day then
+			boolean changed;
+			do {
+				changed = false;
+				for (int c = k; c < end; ++c) {
+					int f = g.from[c];
+					if (reach[f] != Integer.MAX_VALUE && reach[f] + minConnectDays <= day && g.arr[c] < reach[g.to[c]]
+							&& g.to[c] != src) {
+						reach[g.to[c]] = g.arr[c];
+						via[g.to[c]] = c;
+						changed = true;
+					}
+				}
+			} while (changed && minConnectDays == 0);
+			k = end;
+		}//end while
+		return via[dst] == NONE ? null : g.trip(via, src, dst, via[dst]);
+	}//end earliestArrival
+
+	/**
+	 * Finds the cheapest trip.  Dijkstra's algorithm runs over legs rather
+	 * than ports, since whether a leg can follow another depends on when
+	 * the first one arrives: the cheapest way to take each leg is settled in
+	 * order of cost, and the first leg settled into the arrival port ends
+	 * the cheapest trip.
+	 *
+	 * @param from the departure port
+	 * @param to the arrival port
+	 * @param earliest the first day the trip may depart
+	 * @param minConnectDays the days needed between arriving at a port and leaving it again
+	 * @return the trip, or null when the ports are not connected
+	 */
+	public Itinerary cheapest(String from, String to, LocalDate earliest, int minConnectDays) {
+		if (minConnectDays < 0) {
+			throw new IllegalArgumentException("the connection time cannot be negative");
+		}
+		Graph g = graph();
+		int src = g.port(from);
+		int dst = g.port(to);
+		if (src == NONE || dst == NONE || src == dst) {
+			return null;
+		}
+		int n = g.cnum.length;
+		long[] best = new long[n];
+		int[] prev = new int[n];
+		boolean[] settled = new boolean[n];
+		Arrays.fill(best, Long.MAX_VALUE);
+		LegHeap heap = new LegHeap(64);
+		int start = (int) earliest.toEpochDay();
+		for (int i = lowerBound(g.dep, g.byPort, g.first[src], g.first[src + 1], start); i < g.first[src + 1]; ++i) {
+			int c = g.byPort[i];
+			best[c] = g.cost[c];
+			prev[c] = NONE;
+			heap.push(best[c], c);
+		}
+		while (!heap.isEmpty()) {
+			int c = heap.pop();
+			if (settled[c]) {
+				continue;
+			}
+			settled[c] = true;
+			int p = g.to[c];
+			if (p == dst) {
+				int legs = 0;
+				for (int k = c; k != NONE; k = prev[k]) {
+					++legs;
+				}
+				Leg[] trip = new Leg[legs];
+				for (int k = c; k != NONE; k = prev[k]) {
+					trip[--legs] = g.leg(k);
+				}
+				return new Itinerary(trip);
+			}
+			if (p == src) {
+				//going back to the start is never cheaper than waiting there
+				continue;
+			}
+			for (int i = lowerBound(g.dep, g.byPort, g.first[p], g.first[p + 1], g.arr[c] + minConnectDays); i < g.first[p + 1]; ++i) {
+				int d = g.byPort[i];
+				long cost = best[c] + g.cost[d];
+				if (!settled[d] && cost < best[d]) {
+					best[d] = cost;
+					prev[d] = c;
+					heap.push(cost, d);
+				}
+			}
+		}//end while
+		return null;
+	}//end cheapest
+
+	//the first position in [lo, hi) of a sorted array holding at least key
+	private static int lowerBound(int[] sorted, int lo, int hi, int key) {
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid] < key) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	//the same through an index array, for one port's range of byPort
+	private static int lowerBound(int[] values, int[] index, int lo, int hi, int key) {
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[index[mid]] < key) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * A binary min-heap of legs keyed by cost, in two primitive arrays.
+	 * Legs whose cost drops are pushed again and skipped once settled.
+	 */
+	private static class LegHeap {
+		private long[] _keys;
+		private int[] _legs;
+		private int _size = 0;
+
+		LegHeap(int capacity) {
+			this._keys = new long[capacity];
+			this._legs = new int[capacity];
+		}
+
+		boolean isEmpty() {
+			return this._size == 0;
+		}
+
+		void push(long key, int leg) {
+			if (this._size == this._keys.length) {
+				this._keys = Arrays.copyOf(this._keys, this._size * 2);
+				this._legs = Arrays.copyOf(this._legs, this._size * 2);
+			}
+			int i = this._size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (this._keys[parent] <= key) {
+					break;
+				}
+				this._keys[i] = this._keys[parent];
+				this._legs[i] = this._legs[parent];
+				i = parent;
+			}
+			this._keys[i] = key;
+			this._legs[i] = leg;
+		}
+
+		int pop() {
+			int top = this._legs[0];
+			long key = this._keys[--this._size];
+			int leg = this._legs[this._size];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= this._size) {
+					break;
+				}
+				if (child + 1 < this._size && this._keys[child + 1] < this._keys[child]) {
+					++child;
+				}
+				if (this._keys[child] >= key) {
+					break;
+				}
+				this._keys[i] = this._keys[child];
+				this._legs[i] = this._legs[child];
+				i = child;
+			}
+			this._keys[i] = key;
+			this._legs[i] = leg;
+			return top;
+		}
+	}//end LegHeap
+
+	/**
+	 * @return the number of legs
+	 */
+	public int size() {
+		return this._size;
+	}
+
+	/**
+	 * @return the port codes of every leg
+	 */
+	public String[] ports() {
+		return graph().ports.clone();
+	}
+}//end RoutePlanner
@@ -0,0 +1,434 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+
+/**
+ * In-memory count of available seats per cruise number.  Keys and values are
+ * stored in primitive int arrays with open addressing, so lookups neither
+ * allocate nor box.  The cache holds at most a fixed number of cruises and
+ * evicts with the CLOCK algorithm once it is full.
+ *
+ * The cache is warmed from Cruise, CruiseInfo and Ship at startup and kept
+ * current by the booking path, which writes back the seat count returned by
+ * its own UPDATE.  Writers take a {@link #stamp()} before they go to the
+ * database and put only succeeds when no other put or invalidation of the
+ * cruise came in between; otherwise the cruise is dropped, so a count read
+ * earlier never replaces a newer one.  {@link #verify(ConnectionPool...)}
+ * compares every entry with the database and repairs the ones that drifted,
+ * and {@link #startVerifier(int, ConnectionPool...)} runs it periodically.
+ *
+ */
+
+public class SeatCache {
+	//returned by get() for cruises that are not cached
+	public static final int MISSING = Integer.MIN_VALUE;
+	//cruises sharing the time of their last change; collisions only drop entries early
+	private static final int STRIPES = 1024;
+
+	static final String SQL_ALL_SEATS = "SELECT C.cnum, S.seats - C.num_sold FROM Cruise C "
+		+ "JOIN CruiseInfo CI ON CI.cruise_id = C.cnum JOIN Ship S ON S.id = CI.ship_id";
+
+	private final int _maxEntries;
+	private final int _mask;
+	private final int[] _keys;
+	private final int[] _values;
+	private final boolean[] _used;
+	//CLOCK reference bits, kept apart from _used so racing readers can only
+	//disturb eviction order and never the table itself
+	private final boolean[] _ref;
+	private int _size = 0;
+	private int _hand = 0;
+	//bumped by every put and invalidation; _changed holds its value at the last change of each stripe
+	private volatile long _clock = 0;
+	private final long[] _changed = new long[STRIPES];
+
+	private final StampedLock _lock = new StampedLock();
+	private final LongAdder _hits = new LongAdder();
+	private final LongAdder _misses = new LongAdder();
+	private final LongAdder _evictions = new LongAdder();
+	private final LongAdder _rejects = new LongAdder();
+	private final LongAdder _corrections = new LongAdder();
+
+	private Thread _verifier = null;
+	private volatile ConnectionPool[] _verifyPools = null;
+	private volatile boolean _closed = false;
+
+	/**
+	 * @param maxEntries the number of cruises kept before evicting
+	 */
+	public SeatCache(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("cache size has to be positive");
+		}
+		//keep the table at most half full so probe chains stay short
+		int capacity = Integer.highestOneBit(Math.max(2, maxEntries) * 2 - 1) << 1;
+		this._maxEntries = maxEntries;
+		this._mask = capacity - 1;
+		this._keys = new int[capacity];
+		this._values = new int[capacity];
+		this._used = new boolean[capacity];
+		this._ref = new boolean[capacity];
+	}
+
+	/**
+	 * @param cnum the cruise number
+	 * @return the available seats, or {@link #MISSING} when not cached
+	 */
+	public int get(int cnum) {
+		long stamp = this._lock.tryOptimisticRead();
+		int value = lookup(cnum);
+		if (!this._lock.validate(stamp)) {
+			stamp = this._lock.readLock();
+			try {
+				value = lookup(cnum);
+			}finally {
+				this._lock.unlockRead(stamp);
+			}
+		}
+		if (value == MISSING) {
+			this._misses.increment();
+		}
+		else {
+			this._hits.increment();
+		}
+		return value;
+	}//end get
+
+	/**
+	 * @return the time to pass to put() for a count read from the database afterwards
+	 */
+	public long stamp() {
+		return this._clock;
+	}
+
+	/**
+	 * Stores the available seats of a cruise, evicting another cruise when
+	 * the cache is full.  When the cruise was put or invalidated since the
+	 * stamp was taken, the count may be older than the one cached and the
+	 * cruise is dropped instead.
+	 *
+	 * @param since what stamp() returned before the count was read
+	 * @return whether the count was stored
+	 */
+	public boolean put(int cnum, int seats, long since) {
+		long stamp = this._lock.writeLock();
+		try {
+			return store(cnum, seats, this._changed[hash(cnum) & (STRIPES - 1)] > since, ++this._clock);
+		}finally {
+			this._lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Stores the available seats of several cruises read together, as put()
+	 * does for each.  Only changes made by others since the stamp drop a
+	 * cruise; the cruises stored here do not count against each other.
+	 *
+	 * @param seats the available seats by cruise number
+	 * @param since what stamp() returned before the counts were read
+	 * @return the number of cruises stored
+	 */
+	public int putAll(IntIntMap seats, final long since) {
+		final int[] stored = { 0 };
+		long stamp = this._lock.writeLock();
+		try {
+			//which stripes changed since the stamp, before this call changes any
+			final boolean[] stale = new boolean[STRIPES];
+			for (int i = 0; i < STRIPES; ++i) {
+				stale[i] = this._changed[i] > since;
+			}
+			final long now = ++this._clock;
+			seats.forEach((cnum, left) -> {
+				if (store(cnum, left, stale[hash(cnum) & (STRIPES - 1)], now)) {
+					++stored[0];
+				}
+			});
+		}finally {
+			this._lock.unlockWrite(stamp);
+		}
+		return stored[0];
+	}//end putAll
+
+	//stores a count, or drops the cruise when its stripe is stale; callers hold the write lock
+	private boolean store(int cnum, int seats, boolean stale, long now) {
+		this._changed[hash(cnum) & (STRIPES - 1)] = now;
+		int slot = find(cnum);
+		if (stale) {
+			if (this._used[slot]) {
+				remove(slot);
+			}
+			this._rejects.increment();
+			return false;
+		}
+		if (!this._used[slot]) {
+			if (this._size >= this._maxEntries) {
+				evictOne();
+				slot = find(cnum);
+			}
+			this._keys[slot] = cnum;
+			this._used[slot] = true;
+			++this._size;
+		}
+		this._values[slot] = seats;
+		this._ref[slot] = true;
+		return true;
+	}//end store
+
+	/**
+	 * Drops a cruise so the next lookup goes to the database.
+	 */
+	public void invalidate(int cnum) {
+		long stamp = this._lock.writeLock();
+		try {
+			this._changed[hash(cnum) & (STRIPES - 1)] = ++this._clock;
+			int slot = find(cnum);
+			if (this._used[slot]) {
+				remove(slot);
+			}
+		}finally {
+			this._lock.unlockWrite(stamp);
+		}
+	}
+
+	public void clear() {
+		long stamp = this._lock.writeLock();
+		try {
+			java.util.Arrays.fill(this._changed, ++this._clock);
+			java.util.Arrays.fill(this._used, false);
+			this._size = 0;
+		}finally {
+			this._lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Loads the available seats of every cruise, up to the cache size.
+	 *
+	 * @return the number of cruises loaded
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public int warm(ConnectionPool pool) throws SQLException {
+		IntIntMap seats = new IntIntMap(1024);
+		long since = stamp();
+		try (PooledConnection pc = pool.borrow()) {
+			//stream through a cursor instead of buffering the whole catalog
+			pc.connection().setAutoCommit(false);
+			PreparedStatement ps = pc.prepare(SQL_ALL_SEATS);
+			ps.setFetchSize(DBproject.DEFAULT_FETCH_SIZE);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (seats.size() < this._maxEntries && rs.next()) {
+					seats.put(rs.getInt(1), rs.getInt(2));
+				}
+			}finally {
+				ps.setFetchSize(0);
+			}
+		}
+		//stored together, so the cruises of one stripe do not reject each other
+		return putAll(seats, since);
+	}//end warm
+
+	/**
+	 * Compares every cached cruise with the database.  Entries that differ
+	 * are corrected and cruises that no longer exist are dropped.
+	 *
+	 * @param pools the pool of every shard, in shard order
+	 * @return the number of entries that were wrong
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public int verify(ConnectionPool... pools) throws SQLException {
+		int[] keys;
+		int n = 0;
+		long stamp = this._lock.readLock();
+		try {
+			keys = new int[this._size];
+			for (int slot = 0; slot <= this._mask; ++slot) {
+				if (this._used[slot]) {
+					keys[n++] = this._keys[slot];
+				}
+			}
+		}finally {
+			this._lock.unlockRead(stamp);
+		}
+
+		int wrong = 0;
+		for (int p = 0; p < pools.length; ++p) {
+			try (PooledConnection pc = pools[p].borrow()) {
+				PreparedStatement ps = pc.prepare(SQL_ALL_SEATS + " WHERE C.cnum = ?");
+				for (int i = 0; i < n; ++i) {
+					if (ShardSet.indexOf(keys[i], pools.length) != p) {
+						continue;
+					}
+					//what is cached now, and when; a booking after this wins over the count read below
+					long since = stamp();
+					int cached = peek(keys[i]);
+					if (cached == MISSING) {
+						continue;
+					}
+					ps.setInt(1, keys[i]);
+					try (ResultSet rs = ps.executeQuery()) {
+						if (!rs.next()) {
+							invalidate(keys[i]);
+							++wrong;
+						}
+						else if (rs.getInt(2) != cached) {
+							put(keys[i], rs.getInt(2), since);
+							++wrong;
+						}
+					}
+				}//end for
+			}
+		}//end for
+		this._corrections.add(wrong);
+		return wrong;
+	}//end verify
+
+	/**
+	 * Starts a daemon thread that verifies the cache every period.  Called
+	 * again, it only changes the pools, e.g. once the data is split.
+	 *
+	 * @param periodSeconds the seconds between two verifications
+	 * @param pools the pool of every shard, in shard order
+	 */
+	public synchronized void startVerifier(final int periodSeconds, ConnectionPool... pools) {
+		this._verifyPools = pools;
+		if (this._verifier != null) {
+			return;
+		}
+		this._verifier = new Thread(() -> {
+			while (!this._closed) {
+				try {
+					Thread.sleep(periodSeconds * 1000L);
+				}catch (InterruptedException e) {
+					return;
+				}
+				try {
+					int corrected = verify(this._verifyPools);
+					if (corrected > 0) {
+						System.err.println("Corrected " + corrected + " cached seat counts");
+					}
+				}catch (SQLException e) {
+					System.err.println("Unable to verify the seat cache: " + e.getMessage());
+				}
+			}
+		}, "seat-verifier");
+		this._verifier.setDaemon(true);
+		this._verifier.start();
+	}
+
+	/**
+	 * Stops the verifying thread.
+	 */
+	public synchronized void close() {
+		this._closed = true;
+		if (this._verifier != null) {
+			this._verifier.interrupt();
+		}
+	}
+
+	public long getHitCount() { return this._hits.sum(); }
+	public long getMissCount() { return this._misses.sum(); }
+	public long getEvictionCount() { return this._evictions.sum(); }
+	public long getRejectCount() { return this._rejects.sum(); }
+	public long getCorrectionCount() { return this._corrections.sum(); }
+
+	public int size() {
+		long stamp = this._lock.readLock();
+		try {
+			return this._size;
+		}finally {
+			this._lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return a one line summary of the cache counters
+	 */
+	public String getStats() {
+		long hits = getHitCount();
+		long total = hits + getMissCount();
+		return String.format("seat cache: size=%d max=%d hits=%d misses=%d hit ratio=%.3f evictions=%d rejects=%d corrections=%d",
+			size(), this._maxEntries, hits, getMissCount(), total == 0 ? 0.0 : (double) hits / total,
+			getEvictionCount(), getRejectCount(), getCorrectionCount());
+	}
+
+	//what get() would return, without counting a hit or a miss
+	private int peek(int cnum) {
+		long stamp = this._lock.readLock();
+		try {
+			return lookup(cnum);
+		}finally {
+			this._lock.unlockRead(stamp);
+		}
+	}
+
+	//reads without locking; callers validate or hold a lock
+	private int lookup(int cnum) {
+		int slot = hash(cnum) & this._mask;
+		for (int probes = 0; probes <= this._mask; ++probes) {
+			if (!this._used[slot]) {
+				return MISSING;
+			}
+			if (this._keys[slot] == cnum) {
+				this._ref[slot] = true;
+				return this._values[slot];
+			}
+			slot = (slot + 1) & this._mask;
+		}
+		return MISSING;
+	}
+
+	//slot holding cnum, or the empty slot where it would go
+	private int find(int cnum) {
+		int slot = hash(cnum) & this._mask;
+		while (this._used[slot] && this._keys[slot] != cnum) {
+			slot = (slot + 1) & this._mask;
+		}
+		return slot;
+	}
+
+	//CLOCK: clears reference bits until it meets an entry without one
+	private void evictOne() {
+		while (true) {
+			int slot = this._hand;
+			this._hand = (this._hand + 1) & this._mask;
+			if (!this._used[slot]) {
+				continue;
+			}
+			if (this._ref[slot]) {
+				this._ref[slot] = false;
+			}
+			else {
+				remove(slot);
+				this._evictions.increment();
+				return;
+			}
+		}
+	}
+
+	//backward-shift deletion keeps probe chains intact without tombstones
+	private void remove(int slot) {
+		int hole = slot;
+		int next = (slot + 1) & this._mask;
+		while (this._used[next]) {
+			int home = hash(this._keys[next]) & this._mask;
+			//move next into the hole unless its home lies cyclically in (hole, next]
+			if (((next - home) & this._mask) >= ((next - hole) & this._mask)) {
+				this._keys[hole] = this._keys[next];
+				this._values[hole] = this._values[next];
+				this._ref[hole] = this._ref[next];
+				hole = next;
+			}
+			next = (next + 1) & this._mask;
+		}
+		this._used[hole] = false;
+		--this._size;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}//end SeatCache
@@ -0,0 +1,309 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The databases the data is split across.  Cruise, CruiseInfo and Schedule
+ * rows live on the shard of their cruise number and Reservation rows on the
+ * shard of their cid, so a booking, a seat count or a waitlist change only
+ * ever touches one shard.  Repairs live on the shard of their ship, which
+ * keeps the repair count of every ship on a single shard.  Ship, Captain,
+ * Customer and Technician are small and copied to every shard, so the
+ * foreign keys of create.sql hold on each of them.
+ *
+ * Every shard has its own pool, booking and waitlist engine.  Reservation
+ * numbers come from the sequence of the shard, spread out by the allocator
+ * stride so the numbers of two shards never meet.  Fleet-wide questions are
+ * asked of every shard in parallel and the answers merged by the caller.
+ * The first shard is the database the program connected to; its pool
+ * belongs to the caller.
+ *
+ */
+
+public class ShardSet implements AutoCloseable {
+	/**
+	 * One database of the set.
+	 */
+	public static class Shard {
+		public final int index;
+		public final String url;
+		public final ConnectionPool pool;
+		public final BookingEngine booking;
+		public final WaitlistEngine waitlist;
+		public final ReservationIdAllocator rnums;
+		final LongAdder routed = new LongAdder();
+
+		Shard(int index, String url, ConnectionPool pool, BookingEngine booking, WaitlistEngine waitlist,
+				ReservationIdAllocator rnums) {
+			this.index = index;
+			this.url = url;
+			this.pool = pool;
+			this.booking = booking;
+			this.waitlist = waitlist;
+			this.rnums = rnums;
+		}
+	}
+
+	/**
+	 * A piece of work run on one shard.
+	 */
+	public interface Work<T> {
+		T run(Shard shard) throws SQLException;
+	}
+
+	private final Shard[] _shards;
+	private final ConnectionPool[] _pools;
+	//runs scatter work, null for a single shard
+	private final ExecutorService _executor;
+	private final LongAdder _scatters = new LongAdder();
+
+	/**
+	 * @param urls the JDBC url of every shard, for the reports
+	 * @param pools the pool of every shard, the first one owned by the caller
+	 * @param sequence the sequence backing reservation numbers on every shard
+	 * @param metrics where the booking engines record their timings, or null
+	 */
+	public ShardSet(List<String> urls, List<ConnectionPool> pools, String sequence, Metrics metrics) {
+		if (pools.isEmpty() || urls.size() != pools.size()) {
+			throw new IllegalArgumentException("every shard needs a url and a pool");
+		}
+		int n = pools.size();
+		this._shards = new Shard[n];
+		this._pools = pools.toArray(new ConnectionPool[n]);
+		for (int i = 0; i < n; ++i) {
+			ConnectionPool pool = this._pools[i];
+			BookingEngine booking = new BookingEngine(pool);
+			booking.setMetrics(metrics);
+			this._shards[i] = new Shard(i, urls.get(i), pool, booking, new WaitlistEngine(pool),
+				new ReservationIdAllocator(pool, sequence, n, i));
+		}
+		if (n == 1) {
+			this._executor = null;
+		}
+		else {
+			final AtomicInteger threads = new AtomicInteger();
+			this._executor = Executors.newFixedThreadPool(n, r -> {
+				Thread t = new Thread(r, "shard-" + threads.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	/**
+	 * @param key a cruise number, or a ship id for Repairs
+	 * @param shards the number of shards
+	 * @return the shard the rows of the key live on
+	 */
+	public static int indexOf(int key, int shards) {
+		//Fibonacci hashing, so runs of consecutive keys spread evenly
+		int h = key * 0x9E3779B9;
+		h ^= h >>> 16;
+		return Math.floorMod(h, shards);
+	}
+
+	/**
+	 * @param key a cruise number, or a ship id for Repairs
+	 * @return the shard the rows of the key live on
+	 */
+	public Shard of(int key) {
+		Shard shard = this._shards[indexOf(key, this._shards.length)];
+		shard.routed.increment();
+		return shard;
+	}
+
+	/**
+	 * @param i the position of the shard, below size()
+	 */
+	public Shard get(int i) {
+		return this._shards[i];
+	}
+
+	public int size() {
+		return this._shards.length;
+	}
+
+	/**
+	 * @return the pool of every shard, in shard order
+	 */
+	public ConnectionPool[] pools() {
+		return this._pools;
+	}
+
+	/**
+	 * @param keys cruise numbers or ship ids
+	 * @return the keys living on each shard, in shard order
+	 */
+	public int[][] split(int[] keys) {
+		int n = this._shards.length;
+		int[][] split = new int[n][];
+		int[] counts = new int[n];
+		int[] at = new int[keys.length];
+		for (int i = 0; i < keys.length; ++i) {
+			at[i] = indexOf(keys[i], n);
+			++counts[at[i]];
+		}
+		for (int s = 0; s < n; ++s) {
+			split[s] = new int[counts[s]];
+			counts[s] = 0;
+		}
+		for (int i = 0; i < keys.length; ++i) {
+			split[at[i]][counts[at[i]]++] = keys[i];
+		}
+		return split;
+	}
+
+	/**
+	 * Runs work on every shard in parallel and waits for all of it, also
+	 * when a shard fails.
+	 *
+	 * @return the result of every shard, in shard order
+	 * @throws java.sql.SQLException the first failure of a shard
+	 */
+	public <T> List<T> scatter(final Work<T> work) throws SQLException {
+		this._scatters.increment();
+		List<T> results = new ArrayList<T>(this._shards.length);
+		if (this._executor == null) {
+			results.add(work.run(this._shards[0]));
+			return results;
+		}
+		List<Future<T>> futures = new ArrayList<Future<T>>(this._shards.length);
+		for (final Shard shard : this._shards) {
+			futures.add(this._executor.submit(() -> work.run(shard)));
+		}
+		Throwable failure = null;
+		for (int i = 0; i < futures.size(); ++i) {
+			try {
+				results.add(futures.get(i).get());
+			}catch (ExecutionException e) {
+				results.add(null);
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			}catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("interrupted while waiting for shard " + i);
+			}
+		}//end for
+		if (failure instanceof SQLException) {
+			throw (SQLException) failure;
+		}
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		if (failure != null) {
+			throw new SQLException(failure);
+		}
+		return results;
+	}//end scatter
+
+	/**
+	 * Loads the data/*.csv files of a directory, every shard in parallel
+	 * with its own rows, and moves the reservation sequence of every shard
+	 * past the numbers loaded on any of them.
+	 *
+	 * @param dataDir the directory holding the CSV files
+	 * @param truncate empty the tables before loading them
+	 * @return the number of rows loaded on all shards
+	 * @throws java.sql.SQLException when a COPY failed
+	 * @throws java.io.IOException when a file could not be read
+	 */
+	public long load(final File dataDir, final boolean truncate) throws SQLException, IOException {
+		final IOException[] unreadable = { null };
+		List<Long> rows = scatter(shard -> {
+			BulkLoader loader = new BulkLoader(shard.pool, dataDir);
+			loader.setShard(shard.index, size());
+			try {
+				return loader.load(truncate);
+			}catch (IOException e) {
+				unreadable[0] = e;
+				return 0L;
+			}
+		});
+		if (unreadable[0] != null) {
+			throw unreadable[0];
+		}
+		if (size() > 1) {
+			long max = 0;
+			for (long m : scatter(shard -> maxReservationNumber(shard.pool))) {
+				max = Math.max(max, m);
+			}
+			//the allocators hand out value * size() + index
+			final long next = max / size() + 1;
+			scatter(shard -> {
+				try (PooledConnection pc = shard.pool.borrow();
+				     Statement stmt = pc.connection().createStatement()) {
+					stmt.executeQuery("SELECT setval('" + DBproject.RESERVATION_SEQUENCE + "', " + next + ", false)").close();
+				}
+				return null;
+			});
+		}
+		long total = 0;
+		for (long r : rows) {
+			total += r;
+		}
+		return total;
+	}//end load
+
+	private static long maxReservationNumber(ConnectionPool pool) throws SQLException {
+		try (PooledConnection pc = pool.borrow();
+		     Statement stmt = pc.connection().createStatement();
+		     ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(rnum), 0) FROM Reservation")) {
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+	}
+
+	/**
+	 * Stops the scatter threads and closes the pools of every shard but the
+	 * first.
+	 */
+	@Override
+	public void close() {
+		if (this._executor != null) {
+			this._executor.shutdownNow();
+		}
+		for (int i = 1; i < this._shards.length; ++i) {
+			this._shards[i].pool.close();
+		}
+	}
+
+	/**
+	 * @return the scatter-gather runs
+	 */
+	public long getScatterCount() { return this._scatters.sum(); }
+
+	/**
+	 * @return the operations routed to each shard, in shard order
+	 */
+	public long[] getRoutedCounts() {
+		long[] counts = new long[this._shards.length];
+		for (int i = 0; i < counts.length; ++i) {
+			counts[i] = this._shards[i].routed.sum();
+		}
+		return counts;
+	}
+
+	/**
+	 * @return a one line summary of the routing counters of every shard
+	 */
+	public String getStats() {
+		StringBuilder out = new StringBuilder(String.format("shards: count=%d scatters=%d routed=%s",
+			size(), getScatterCount(), Arrays.toString(getRoutedCounts())));
+		for (Shard shard : this._shards) {
+			out.append(String.format(" [%d %s active=%d]", shard.index, shard.url, shard.pool.getActiveCount()));
+		}
+		return out.toString();
+	}
+}//end ShardSet
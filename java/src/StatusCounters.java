@@ -0,0 +1,341 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Number of reservations per status, overall and per cruise, kept in memory
+ * so counting passengers does not scan Reservation.  The _STATUS domain only
+ * allows W, C and R, so the totals are three LongAdders that concurrent
+ * bookings update without contending; the per-cruise counts are three ints
+ * per cruise behind an int map.
+ *
+ * Both are seeded from one grouped scan and then updated by the booking and
+ * status-change paths of this process.  A background thread repeats the scan
+ * periodically and corrects whatever drifted, e.g. through writes from other
+ * clients.
+ *
+ */
+
+public class StatusCounters {
+	//the statuses allowed by the _STATUS domain, in counter order
+	public static final String[] STATUSES = { "W", "C", "R" };
+
+	static final String SQL_COUNT_BY_CRUISE = "SELECT cid, status, COUNT(*) FROM Reservation WHERE status IS NOT NULL GROUP BY cid, status";
+	static final String SQL_COUNT_CRUISES = "SELECT cid, status, COUNT(*) FROM Reservation WHERE cid = ANY(?) AND status IS NOT NULL "
+		+ "GROUP BY cid, status";
+
+	private final LongAdder[] _totals = { new LongAdder(), new LongAdder(), new LongAdder() };
+	//cruise number to the first of its three counts in _byCruise
+	private IntIntMap _cruises = new IntIntMap(1024);
+	private int[] _byCruise = new int[3 * 1024];
+	private final Object _cruiseLock = new Object();
+	private volatile boolean _loaded = false;
+	private final LongAdder _corrections = new LongAdder();
+
+	private Thread _reconciler = null;
+	private volatile ConnectionPool[] _reconcilePools = null;
+	private volatile boolean _closed = false;
+
+	/**
+	 * @param status W, C or R
+	 * @return the position of the status in STATUSES
+	 * @throws java.lang.IllegalArgumentException for any other status
+	 */
+	public static int index(String status) {
+		int i = indexOrNegative(status);
+		if (i < 0) {
+			throw new IllegalArgumentException("status can only be W, C, or R");
+		}
+		return i;
+	}
+
+	private static int indexOrNegative(String status) {
+		if (status == null || status.length() != 1) {
+			return -1;
+		}
+		switch (status.charAt(0)) {
+			case 'W': return 0;
+			case 'C': return 1;
+			case 'R': return 2;
+			default: return -1;
+		}
+	}
+
+	public boolean isLoaded() {
+		return this._loaded;
+	}
+
+	/**
+	 * @param status W, C or R
+	 * @return the number of reservations with that status
+	 */
+	public long count(String status) {
+		return this._totals[index(status)].sum();
+	}
+
+	/**
+	 * @param cid the cruise number
+	 * @return the number of W, C and R reservations on the cruise, in that order
+	 */
+	public int[] countByCruise(int cid) {
+		synchronized (this._cruiseLock) {
+			int base = this._cruises.get(cid, -1);
+			return base < 0 ? new int[3] : Arrays.copyOfRange(this._byCruise, base, base + 3);
+		}
+	}
+
+	/**
+	 * Counts a new reservation.
+	 */
+	public void added(int cid, String status) {
+		int i = indexOrNegative(status);
+		if (i >= 0) {
+			this._totals[i].increment();
+			synchronized (this._cruiseLock) {
+				//slot() may grow the array, so it runs before the array is read
+				int base = slot(cid);
+				++this._byCruise[base + i];
+			}
+		}
+	}
+
+	/**
+	 * Uncounts a cancelled reservation.
+	 */
+	public void removed(int cid, String status) {
+		changed(cid, status, null);
+	}
+
+	/**
+	 * Moves a reservation from one status to another.
+	 */
+	public void changed(int cid, String from, String to) {
+		int i = indexOrNegative(from);
+		int j = indexOrNegative(to);
+		if (i == j) {
+			return;
+		}
+		if (i >= 0) {
+			this._totals[i].decrement();
+		}
+		if (j >= 0) {
+			this._totals[j].increment();
+		}
+		synchronized (this._cruiseLock) {
+			int base = slot(cid);
+			if (i >= 0) {
+				--this._byCruise[base + i];
+			}
+			if (j >= 0) {
+				++this._byCruise[base + j];
+			}
+		}
+	}
+
+	//the first count of a cruise, adding the cruise when needed; callers hold _cruiseLock
+	private int slot(int cid) {
+		int base = this._cruises.get(cid, -1);
+		if (base < 0) {
+			base = this._cruises.size() * 3;
+			if (base + 3 > this._byCruise.length) {
+				this._byCruise = Arrays.copyOf(this._byCruise, this._byCruise.length * 2);
+			}
+			this._cruises.put(cid, base);
+		}
+		return base;
+	}
+
+	/**
+	 * Replaces every count with the counts in the database.
+	 *
+	 * @param pools the pool of every shard to run the scan through
+	 * @throws java.sql.SQLException when the scan failed
+	 */
+	public void load(ConnectionPool... pools) throws SQLException {
+		reconcile(pools);
+	}
+
+	/**
+	 * Compares every count with the database and corrects the ones that
+	 * differ.  Bookings racing with the scan may leave a difference of a few
+	 * reservations until the next run.
+	 *
+	 * @param pools the pool of every shard to run the scan through
+	 * @return the number of counts that were corrected
+	 * @throws java.sql.SQLException when the scan failed
+	 */
+	public int reconcile(ConnectionPool... pools) throws SQLException {
+		IntIntMap cruises = new IntIntMap(1024);
+		int[] byCruise = new int[3 * 1024];
+		long[] totals = new long[3];
+		for (ConnectionPool pool : pools) {
+			try (PooledConnection pc = pool.borrow()) {
+				//stream through a cursor, Reservation is the largest table
+				pc.connection().setAutoCommit(false);
+				PreparedStatement ps = pc.prepare(SQL_COUNT_BY_CRUISE);
+				ps.setFetchSize(DBproject.DEFAULT_FETCH_SIZE);
+				try (ResultSet rs = ps.executeQuery()) {
+					while (rs.next()) {
+						int i = indexOrNegative(rs.getString(2));
+						if (i < 0) {
+							continue;
+						}
+						int cid = rs.getInt(1);
+						int base = cruises.get(cid, -1);
+						if (base < 0) {
+							base = cruises.size() * 3;
+							if (base + 3 > byCruise.length) {
+								byCruise = Arrays.copyOf(byCruise, byCruise.length * 2);
+							}
+							cruises.put(cid, base);
+						}
+						int n = rs.getInt(3);
+						//a cruise lives on one shard, but summing keeps stray rows counted
+						byCruise[base + i] += n;
+						totals[i] += n;
+					}
+				}finally {
+					ps.setFetchSize(0);
+				}
+			}//end try
+		}
+
+		int corrected = 0;
+		for (int i = 0; i < 3; ++i) {
+			//adding the difference keeps increments made since sum() was read
+			long diff = totals[i] - this._totals[i].sum();
+			if (diff != 0) {
+				this._totals[i].add(diff);
+				++corrected;
+			}
+		}
+		synchronized (this._cruiseLock) {
+			final IntIntMap fresh = cruises;
+			final int[] freshCounts = byCruise;
+			final int[] wrong = { 0 };
+			//cruises counted so far, including those that lost all their reservations
+			this._cruises.forEach((cid, base) -> {
+				int f = fresh.get(cid, -1);
+				for (int i = 0; i < 3; ++i) {
+					if (this._byCruise[base + i] != (f < 0 ? 0 : freshCounts[f + i])) {
+						++wrong[0];
+					}
+				}
+			});
+			fresh.forEach((cid, base) -> {
+				if (!this._cruises.containsKey(cid)) {
+					for (int i = 0; i < 3; ++i) {
+						if (freshCounts[base + i] != 0) {
+							++wrong[0];
+						}
+					}
+				}
+			});
+			this._cruises = fresh;
+			this._byCruise = freshCounts;
+			corrected += wrong[0];
+		}
+		if (this._loaded) {
+			this._corrections.add(corrected);
+		}
+		this._loaded = true;
+		return corrected;
+	}//end reconcile
+
+	/**
+	 * Reads the counts of some cruises again, e.g. after other clients
+	 * changed their reservations, and moves the totals by the difference.
+	 * Bookings racing with the read may be off until the next reconciliation.
+	 *
+	 * @param pool the pool to run the query through
+	 * @param cids the cruise numbers
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public void refresh(ConnectionPool pool, int[] cids) throws SQLException {
+		IntIntMap at = new IntIntMap(cids.length);
+		for (int i = 0; i < cids.length; ++i) {
+			at.put(cids[i], i * 3);
+		}
+		int[] counts = new int[cids.length * 3];
+		try (PooledConnection pc = pool.borrow()) {
+			PreparedStatement ps = pc.prepare(SQL_COUNT_CRUISES);
+			ps.setArray(1, WaitlistEngine.intArray(pc.connection(), cids));
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					int i = indexOrNegative(rs.getString(2));
+					int base = at.get(rs.getInt(1), -1);
+					if (i >= 0 && base >= 0) {
+						counts[base + i] = rs.getInt(3);
+					}
+				}
+			}
+		}//end try
+
+		synchronized (this._cruiseLock) {
+			for (int c = 0; c < cids.length; ++c) {
+				int base = slot(cids[c]);
+				for (int i = 0; i < 3; ++i) {
+					int diff = counts[c * 3 + i] - this._byCruise[base + i];
+					if (diff != 0) {
+						this._byCruise[base + i] += diff;
+						this._totals[i].add(diff);
+					}
+				}
+			}
+		}
+	}//end refresh
+
+	/**
+	 * Starts a daemon thread reconciling the counts every period.  When it
+	 * runs already, its later scans go through the given pools instead.
+	 *
+	 * @param periodSeconds the seconds between two scans
+	 * @param pools the pool of every shard to run the scans through
+	 */
+	public synchronized void startReconciler(final int periodSeconds, ConnectionPool... pools) {
+		this._reconcilePools = pools;
+		if (this._reconciler != null) {
+			return;
+		}
+		this._reconciler = new Thread(() -> {
+			while (!this._closed) {
+				try {
+					Thread.sleep(periodSeconds * 1000L);
+				}catch (InterruptedException e) {
+					return;
+				}
+				try {
+					boolean wasLoaded = this._loaded;
+					int corrected = reconcile(this._reconcilePools);
+					if (wasLoaded && corrected > 0) {
+						System.err.println("Corrected " + corrected + " reservation status counts");
+					}
+				}catch (SQLException e) {
+					System.err.println("Unable to reconcile the reservation status counts: " + e.getMessage());
+				}
+			}
+		}, "status-reconciler");
+		this._reconciler.setDaemon(true);
+		this._reconciler.start();
+	}
+
+	/**
+	 * Stops the reconciling thread.
+	 */
+	public synchronized void close() {
+		this._closed = true;
+		if (this._reconciler != null) {
+			this._reconciler.interrupt();
+		}
+	}
+
+	/**
+	 * @return the number of counts corrected by reconciliation since loading
+	 */
+	public long getCorrectionCount() {
+		return this._corrections.sum();
+	}
+}//end StatusCounters
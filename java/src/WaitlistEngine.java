@@ -0,0 +1,255 @@
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Keeps the seats of a cruise in step with its reservations and promotes
+ * waitlisted reservations when seats free up.  Confirmed (C) and reserved
+ * (R) reservations hold a seat; waitlisted (W) ones wait for one, first come
+ * first served in the order of their reservation numbers.
+ *
+ * Cancelling a reservation, moving it off a seat or raising capacity runs
+ * the promotion in the same transaction, so a free seat is never left next
+ * to a waiting passenger.  Every change first locks the Cruise rows
+ * involved, in cnum order, which serializes it with bookings and other
+ * changes of the same cruises; the statements that follow see every change
+ * committed before the lock was granted.  Promotion is one set-based
+ * statement however many seats and cruises it covers.
+ *
+ */
+
+public class WaitlistEngine {
+	//locks the cruises and reads their free seats; cruises without a ship are not returned
+	static final String SQL_LOCK_CRUISES = "SELECT C.cnum, S.seats - C.num_sold FROM Cruise C "
+		+ "JOIN CruiseInfo CI ON CI.cruise_id = C.cnum JOIN Ship S ON S.id = CI.ship_id "
+		+ "WHERE C.cnum = ANY(?) ORDER BY C.cnum FOR UPDATE OF C";
+
+	//promotes the first free-seats waitlisted reservations of every cruise and takes their seats
+	static final String SQL_PROMOTE =
+		"WITH cap AS ("
+		+ " SELECT C.cnum, S.seats - C.num_sold AS free FROM Cruise C"
+		+ " JOIN CruiseInfo CI ON CI.cruise_id = C.cnum JOIN Ship S ON S.id = CI.ship_id"
+		+ " WHERE C.cnum = ANY(?) AND C.num_sold < S.seats),"
+		+ " queue AS ("
+		+ " SELECT R.rnum, R.cid, row_number() OVER (PARTITION BY R.cid ORDER BY R.rnum) AS pos"
+		+ " FROM Reservation R JOIN cap ON cap.cnum = R.cid WHERE R.status = 'W'),"
+		+ " promoted AS ("
+		+ " UPDATE Reservation R SET status = 'C' FROM queue Q JOIN cap ON cap.cnum = Q.cid"
+		+ " WHERE R.rnum = Q.rnum AND Q.pos <= cap.free AND R.status = 'W'"
+		+ " RETURNING R.rnum, R.ccid, R.cid),"
+		+ " sold AS ("
+		+ " UPDATE Cruise C SET num_sold = C.num_sold + P.n"
+		+ " FROM (SELECT cid, COUNT(*) AS n FROM promoted GROUP BY cid) P WHERE C.cnum = P.cid"
+		+ " RETURNING C.cnum)"
+		+ " SELECT P.rnum, P.ccid, P.cid, cap.free - COUNT(*) OVER (PARTITION BY P.cid)"
+		+ " FROM promoted P JOIN cap ON cap.cnum = P.cid";
+
+	//removes a customer's reservations on a cruise and gives back the seats they held
+	static final String SQL_CANCEL =
+		"WITH gone AS (DELETE FROM Reservation WHERE ccid = ? AND cid = ? RETURNING status),"
+		+ " freed AS (UPDATE Cruise SET num_sold = GREATEST(0, num_sold"
+		+ " - (SELECT COUNT(*) FROM gone WHERE status IN ('C', 'R'))) WHERE cnum = ? RETURNING cnum)"
+		+ " SELECT status FROM gone";
+
+	static final String SQL_ADD_SOLD = "UPDATE Cruise SET num_sold = num_sold + ? WHERE cnum = ?";
+
+	private final ConnectionPool _pool;
+
+	/**
+	 * A waitlisted reservation that received a seat.
+	 */
+	public static class Promotion {
+		public final int rnum;
+		public final int ccid;
+		public final int cid;
+
+		Promotion(int rnum, int ccid, int cid) {
+			this.rnum = rnum;
+			this.ccid = ccid;
+			this.cid = cid;
+		}
+	}
+
+	/**
+	 * The outcome of a cancellation, status change or promotion run.
+	 */
+	public static class Outcome {
+		//previous status of every reservation cancelled or changed
+		public final List<String> previous = new ArrayList<String>();
+		//reservations moved from W to C, in promotion order
+		public final List<Promotion> promoted = new ArrayList<Promotion>();
+		//free seats afterwards of every cruise whose seats were counted
+		public final IntIntMap seatsLeft = new IntIntMap(16);
+	}
+
+	public WaitlistEngine(ConnectionPool pool) {
+		this._pool = pool;
+	}
+
+	/**
+	 * Cancels a customer's reservation on a cruise and promotes waitlisted
+	 * reservations into the seat it held.
+	 *
+	 * @return the cancelled statuses (empty when there was no reservation) and the promotions
+	 * @throws java.sql.SQLException when the cancellation failed; nothing changed then
+	 */
+	public Outcome cancel(final int ccid, final int cid) throws SQLException {
+		return inTransaction(pc -> {
+			Outcome outcome = new Outcome();
+			IntIntMap free = lock(pc, new int[] { cid });
+			PreparedStatement ps = pc.prepare(SQL_CANCEL);
+			ps.setInt(1, ccid);
+			ps.setInt(2, cid);
+			ps.setInt(3, cid);
+			int freed = 0;
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					String status = rs.getString(1);
+					outcome.previous.add(status);
+					if (holdsSeat(status)) {
+						++freed;
+					}
+				}
+			}
+			if (free.containsKey(cid)) {
+				outcome.seatsLeft.put(cid, free.get(cid, 0) + freed);
+				if (freed > 0) {
+					promote(pc, new int[] { cid }, outcome);
+				}
+			}
+			return outcome;
+		});
+	}//end cancel
+
+	/**
+	 * Changes the status of a customer's reservation on a cruise.  Moving
+	 * off the waitlist takes a seat and fails when none is free; moving onto
+	 * it gives the seat to the first waitlisted reservation.
+	 *
+	 * @return the previous statuses (empty when there was no reservation) and the promotions
+	 * @throws java.sql.SQLException when the change failed or needs a seat that is not free; nothing changed then
+	 */
+	public Outcome changeStatus(final int ccid, final int cid, final String status) throws SQLException {
+		return inTransaction(pc -> {
+			Outcome outcome = new Outcome();
+			IntIntMap free = lock(pc, new int[] { cid });
+			PreparedStatement ps = pc.prepare(DBproject.SQL_SET_RESERVATION_STATUS);
+			ps.setString(1, status);
+			ps.setInt(2, ccid);
+			ps.setInt(3, cid);
+			int claimed = 0;
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					String old = rs.getString(1);
+					outcome.previous.add(old);
+					claimed += (holdsSeat(status) ? 1 : 0) - (holdsSeat(old) ? 1 : 0);
+				}
+			}
+			if (claimed == 0) {
+				return outcome;
+			}
+			if (!free.containsKey(cid)) {
+				throw new SQLException("no ship is assigned to cruise " + cid);
+			}
+			int seats = free.get(cid, 0);
+			if (claimed > seats) {
+				throw new SQLException("no seats left on cruise " + cid + "; the reservation stays waitlisted");
+			}
+			PreparedStatement sold = pc.prepare(SQL_ADD_SOLD);
+			sold.setInt(1, claimed);
+			sold.setInt(2, cid);
+			sold.executeUpdate();
+			outcome.seatsLeft.put(cid, seats - claimed);
+			if (claimed < 0) {
+				promote(pc, new int[] { cid }, outcome);
+			}
+			return outcome;
+		});
+	}//end changeStatus
+
+	/**
+	 * Promotes waitlisted reservations into the free seats of some cruises,
+	 * e.g. after their capacity was raised outside this engine.  Two
+	 * statements cover any number of cruises and seats.
+	 *
+	 * @param cids the cruise numbers
+	 * @return the promotions
+	 * @throws java.sql.SQLException when the promotion failed; nothing changed then
+	 */
+	public Outcome promote(final int... cids) throws SQLException {
+		return inTransaction(pc -> {
+			Outcome outcome = new Outcome();
+			IntIntMap free = lock(pc, cids);
+			free.forEach((cid, seats) -> outcome.seatsLeft.put(cid, seats));
+			promote(pc, cids, outcome);
+			return outcome;
+		});
+	}
+
+	//runs the promotion statement in the current transaction; the cruises are locked already
+	private static void promote(PooledConnection pc, int[] cids, Outcome outcome) throws SQLException {
+		PreparedStatement ps = pc.prepare(SQL_PROMOTE);
+		ps.setArray(1, intArray(pc.connection(), cids));
+		try (ResultSet rs = ps.executeQuery()) {
+			while (rs.next()) {
+				Promotion p = new Promotion(rs.getInt(1), rs.getInt(2), rs.getInt(3));
+				outcome.promoted.add(p);
+				outcome.seatsLeft.put(p.cid, rs.getInt(4));
+			}
+		}
+		//the window only orders the queue within a cruise
+		outcome.promoted.sort((a, b) -> a.cid != b.cid ? Integer.compare(a.cid, b.cid) : Integer.compare(a.rnum, b.rnum));
+	}
+
+	//locks the Cruise rows and returns the free seats of those that have a ship
+	private static IntIntMap lock(PooledConnection pc, int[] cids) throws SQLException {
+		IntIntMap free = new IntIntMap(cids.length);
+		PreparedStatement ps = pc.prepare(SQL_LOCK_CRUISES);
+		ps.setArray(1, intArray(pc.connection(), cids));
+		try (ResultSet rs = ps.executeQuery()) {
+			while (rs.next()) {
+				free.put(rs.getInt(1), rs.getInt(2));
+			}
+		}
+		return free;
+	}
+
+	static Array intArray(Connection conn, int[] values) throws SQLException {
+		Integer[] boxed = new Integer[values.length];
+		for (int i = 0; i < values.length; ++i) {
+			boxed[i] = values[i];
+		}
+		return conn.createArrayOf("integer", boxed);
+	}
+
+	static boolean holdsSeat(String status) {
+		return "C".equals(status) || "R".equals(status);
+	}
+
+	/**
+	 * Work done inside one transaction.
+	 */
+	interface Work {
+		Outcome run(PooledConnection pc) throws SQLException;
+	}
+
+	private Outcome inTransaction(Work work) throws SQLException {
+		try (PooledConnection pc = this._pool.borrow()) {
+			Connection conn = pc.connection();
+			conn.setAutoCommit(false);
+			try {
+				Outcome outcome = work.run(pc);
+				conn.commit();
+				return outcome;
+			}catch (SQLException | RuntimeException e) {
+				conn.rollback();
+				throw e;
+			}
+		}
+	}
+}//end WaitlistEngine
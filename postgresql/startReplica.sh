@@ -0,0 +1,24 @@
+#! /bin/bash
+#Starts a streaming replica of the database started by startPostgreSQL.sh
+#Use it with: java DBproject ... --replica localhost:$REPLICA_PORT
+folder=/tmp/$USER
+export REPLICA_DATA=$folder/myReplica/data
+export REPLICA_SOCKETS=$folder/myReplica/sockets
+export REPLICA_PORT=9998
+
+echo $folder
+
+#Clear folder
+rm -rf $folder/myReplica
+
+#Initialize folders
+mkdir $folder/myReplica
+mkdir $folder/myReplica/sockets
+sleep 1
+
+#Copy the primary; -R makes the copy follow the primary as a standby
+pg_basebackup -h localhost -p $PGPORT -D $REPLICA_DATA -R -X stream
+
+sleep 1
+#Start folder
+pg_ctl -o "-c unix_socket_directories=$REPLICA_SOCKETS -p $REPLICA_PORT" -D $REPLICA_DATA -l $folder/replica_logfile start
@@ -9,6 +9,12 @@ DROP TABLE IF EXISTS CruiseInfo CASCADE;--OK
 DROP TABLE IF EXISTS Repairs CASCADE;--OK
 DROP TABLE IF EXISTS Schedule CASCADE;--OK
 
+DROP SEQUENCE IF EXISTS reservation_rnum_seq;--OK
+
+DROP TABLE IF EXISTS ShipRepairCount;--OK
+DROP FUNCTION IF EXISTS ship_repair_count_row();--OK
+DROP FUNCTION IF EXISTS ship_repair_count_truncate();--OK
+
 -------------
 ---DOMAINS---
 -------------
@@ -190,6 +196,10 @@ COPY Reservation (
 FROM 'reservation.csv'
 WITH DELIMITER ',';
 
+-- Reservation numbers are leased in blocks of 32 per client process --
+CREATE SEQUENCE reservation_rnum_seq INCREMENT BY 32 OWNED BY Reservation.rnum;
+SELECT setval('reservation_rnum_seq', (SELECT COALESCE(MAX(rnum), 0) + 1 FROM Reservation), false);
+
 COPY CruiseInfo (
 	ciid,
 	cruise_id,
@@ -210,6 +220,43 @@ COPY Repairs (
 FROM 'repairs.csv'
 WITH DELIMITER ',';
 
+-- Repairs per ship, kept current by triggers so the leaderboard never aggregates Repairs --
+CREATE TABLE ShipRepairCount
+(
+	ship_id INTEGER NOT NULL,
+	repairs _PZEROINTEGER NOT NULL,
+	PRIMARY KEY (ship_id)
+);
+
+INSERT INTO ShipRepairCount (ship_id, repairs)
+SELECT ship_id, COUNT(*) FROM Repairs GROUP BY ship_id;
+
+CREATE FUNCTION ship_repair_count_row() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		UPDATE ShipRepairCount SET repairs = repairs - 1 WHERE ship_id = OLD.ship_id;
+	END IF;
+	IF TG_OP IN ('UPDATE', 'INSERT') THEN
+		INSERT INTO ShipRepairCount (ship_id, repairs) VALUES (NEW.ship_id, 1)
+		ON CONFLICT (ship_id) DO UPDATE SET repairs = ShipRepairCount.repairs + 1;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- TRUNCATE fires no row triggers, so it empties the summary itself --
+CREATE FUNCTION ship_repair_count_truncate() RETURNS trigger AS $$
+BEGIN
+	DELETE FROM ShipRepairCount;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER repairs_count_row AFTER INSERT OR DELETE OR UPDATE OF ship_id ON Repairs
+	FOR EACH ROW EXECUTE PROCEDURE ship_repair_count_row();
+CREATE TRIGGER repairs_count_truncate AFTER TRUNCATE ON Repairs
+	FOR EACH STATEMENT EXECUTE PROCEDURE ship_repair_count_truncate();
+
 COPY Schedule (
 	id,
 	cruiseNum,
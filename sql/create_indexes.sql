@@ -1,53 +1,57 @@
-/*Customer indexes*/
-CREATE INDEX index_cutomer_id ON Customer USING btree(id);
-CREATE INDEX index_customer_fname ON Customer USING btree(fname);
-CREATE INDEX index_customer_lname ON Customer USING btree(lname);
-CREATE INDEX index_customer_gtype ON Customer USING btree(gtype);
-CREATE INDEX index_customer_dob ON Customer USING btree(dob);
-CREATE INDEX index_customer_address ON Customer USING btree(address);
-CREATE INDEX index_customer_phone ON Customer USING btree(phone);
-CREATE INDEX index_customer_zipcode ON Customer USING btree(zipcode);
-/*Captain indexes*/
-CREATE INDEX index_captain_id ON Captain USING btree(id);
-CREATE INDEX index_captain_fullname ON Captain USING btree(fullname);
-CREATE INDEX index_captain_nationality ON Captain USING btree(nationality);
-/*Cruise indexes*/
-CREATE INDEX index_cruise_cnum ON Cruise USING btree(cnum);
-CREATE INDEX index_cruise_cost ON Cruise USING btree(cost);
-CREATE INDEX index_cruise_num_sold ON Cruise USING btree(num_sold);
-CREATE INDEX index_cruise_num_stops ON Cruise USING btree(num_stops);
-CREATE INDEX index_cruise_actual_departure_date ON Cruise USING btree(actual_departure);
-CREATE INDEX index_cruise_actual_arrival_time ON Cruise USING btree(actual_arrival_time);
-CREATE INDEX index_cruise_arrival_port ON Cruise USING btree(arrival_port);
-CREATE INDEX index_cruise_departure_port ON Cruise USING btree(departure_port);
-/*Ship indexes*/
-CREATE INDEX index_ship_id ON Ship USING btree(id);
-CREATE INDEX index_ship_make ON Ship USING btree(make);
-CREATE INDEX index_ship_model ON Ship USING btree(model);
-CREATE INDEX index_ship_age ON Ship USING btree(age);
-CREATE INDEX index_ship_seats ON Ship USING btree(seats);
-/*Technician indexes*/
-CREATE INDEX index_technician_id ON Technician USING btree(id);
-CREATE INDEX index_technician_full_name ON Technician USING btree(full_name);
+/*Indexes for the access paths of DBproject; run IndexAdvisor to check them*/
+/*Primary keys are already indexed, so no index repeats a key column alone*/
+/*Every index is created only if missing, so the script can be run again*/
+
+/*Earlier versions of this file indexed every column*/
+DROP INDEX IF EXISTS index_cutomer_id;
+DROP INDEX IF EXISTS index_customer_fname;
+DROP INDEX IF EXISTS index_customer_lname;
+DROP INDEX IF EXISTS index_customer_gtype;
+DROP INDEX IF EXISTS index_customer_dob;
+DROP INDEX IF EXISTS index_customer_address;
+DROP INDEX IF EXISTS index_customer_phone;
+DROP INDEX IF EXISTS index_customer_zipcode;
+DROP INDEX IF EXISTS index_captain_id;
+DROP INDEX IF EXISTS index_captain_fullname;
+DROP INDEX IF EXISTS index_captain_nationality;
+DROP INDEX IF EXISTS index_cruise_cnum;
+DROP INDEX IF EXISTS index_cruise_cost;
+DROP INDEX IF EXISTS index_cruise_num_sold;
+DROP INDEX IF EXISTS index_cruise_num_stops;
+DROP INDEX IF EXISTS index_cruise_arrival_port;
+DROP INDEX IF EXISTS index_cruise_departure_port;
+DROP INDEX IF EXISTS index_ship_id;
+DROP INDEX IF EXISTS index_ship_make;
+DROP INDEX IF EXISTS index_ship_model;
+DROP INDEX IF EXISTS index_ship_age;
+DROP INDEX IF EXISTS index_ship_seats;
+DROP INDEX IF EXISTS index_technician_id;
+DROP INDEX IF EXISTS index_technician_full_name;
+DROP INDEX IF EXISTS index_reservation_rnum;
+DROP INDEX IF EXISTS index_reservation_ccid;
+DROP INDEX IF EXISTS index_reservation_cid;
+DROP INDEX IF EXISTS index_reservation_status;
+DROP INDEX IF EXISTS index_cruiseinfo_ciid;
+DROP INDEX IF EXISTS index_cruiseinfor_cruise_id;
+DROP INDEX IF EXISTS index_cruiseinfo_captain_id;
+DROP INDEX IF EXISTS index_cruiseinfo_ship_id;
+
 /*Reservation indexes*/
-CREATE INDEX index_reservation_rnum ON Reservation USING btree(rnum);
-CREATE INDEX index_reservation_ccid ON Reservation USING btree(ccid);
-CREATE INDEX index_reservation_cid ON Reservation USING btree(cid);
-CREATE INDEX index_reservation_status ON Reservation USING btree(status);
+-- reservation lookup and status change by customer and cruise --
+CREATE INDEX IF NOT EXISTS index_reservation_ccid_cid ON Reservation USING btree(ccid, cid);
+-- passenger counts by status --
+CREATE INDEX IF NOT EXISTS index_reservation_status ON Reservation USING btree(status);
+-- waitlist queues in promotion order; only waitlisted rows are indexed --
+CREATE INDEX IF NOT EXISTS index_reservation_waitlist ON Reservation USING btree(cid, rnum) WHERE status = 'W';
 /*CruiseInfo indexes*/
-CREATE INDEX index_cruiseinfo_ciid ON CruiseInfo USING btree(ciid);
-CREATE INDEX index_cruiseinfor_cruise_id ON CruiseInfo USING btree(cruise_id);
-CREATE INDEX index_cruiseinfo_captain_id ON CruiseInfo USING btree(captain_id);
-CREATE INDEX index_cruiseinfo_ship_id ON CruiseInfo USING btree(ship_id);
+-- seat availability and booking join Cruise to Ship through CruiseInfo --
+CREATE INDEX IF NOT EXISTS index_cruiseinfo_cruise_id ON CruiseInfo USING btree(cruise_id, ship_id);
+CREATE INDEX IF NOT EXISTS index_cruiseinfo_ship_id ON CruiseInfo USING btree(ship_id);
 /*Repairs indexes*/
-CREATE INDEX index_repairs_rid ON USING Repairs btree(rid);
-CREATE INDEX index_repairs_rapair_date ON USING Repairs btree(repair_date);
-CREATE INDEX index_repairs_repair_code ON USING Repairs btree(repair_code);
-CREATE INDEX index_repairs_captain_id ON USING Repairs btree(captain_id);
-CREATE INDEX index_repairs_ship_id ON USING Repairs btree(ship_id);
-CREATE INDEX index_repairs_technician_id ON USING Repairs btree(technician_id);
-/*Schedule indexes*/
-CREATE INDEX index_schedule_id ON USING Schedule btree(id);
-CREATE INDEX index_schedule_cruisenum ON USING Schedule btree(cruisenum);
-CREATE INDEX index_schedule_departure_time ON USING Schedule btree(departure_time);
-CREATE INDEX index_schedule_arrival_time ON USING Schedule btree(arrival_time);
+-- repairs per ship; repair_date serves the date-windowed ranking --
+CREATE INDEX IF NOT EXISTS index_repairs_ship_id ON Repairs USING btree(ship_id);
+CREATE INDEX IF NOT EXISTS index_repairs_repair_date ON Repairs USING btree(repair_date, ship_id);
+
+ANALYZE Reservation;
+ANALYZE CruiseInfo;
+ANALYZE Repairs;
@@ -0,0 +1,114 @@
+/*Change notifications for the caches of DBproject processes sharing this database, see ChangeListener*/
+/*Run after create.sql; the script can be run again and replaces what it created before*/
+
+/*
+ * Every write to the nine tables of create.sql sends a NOTIFY on dbproject_changes.
+ * The payload is "<table> <op> <key>": op is I, U or D, or S for a Cruise update that
+ * changed num_sold only, and key is the column named by the trigger.  "<table> *" means
+ * any row may have changed: the table was truncated, or a transaction changed more rows
+ * than are worth naming one by one.
+ *
+ * Postgres drops a payload repeated within a transaction, and delivers the rest once the
+ * transaction commits, so a rolled back write sends nothing.
+ */
+CREATE OR REPLACE FUNCTION notify_change() RETURNS trigger AS $$
+DECLARE
+	-- rows named per table and transaction before the table is reported as a whole
+	max_rows CONSTANT INTEGER := 256;
+	counter TEXT := 'dbproject_notify.' || TG_TABLE_NAME;
+	sent INTEGER := COALESCE(NULLIF(current_setting(counter, true), ''), '0')::INTEGER;
+	op TEXT := COALESCE(TG_ARGV[1], left(TG_OP, 1));
+BEGIN
+	IF sent > max_rows THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'TRUNCATE' OR sent = max_rows THEN
+		PERFORM pg_notify('dbproject_changes', TG_TABLE_NAME || ' *');
+		PERFORM set_config(counter, (max_rows + 1)::TEXT, true);
+		RETURN NULL;
+	END IF;
+	PERFORM set_config(counter, (sent + 1)::TEXT, true);
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		PERFORM pg_notify('dbproject_changes', TG_TABLE_NAME || ' ' || op || ' ' || (to_jsonb(OLD) ->> TG_ARGV[0]));
+	END IF;
+	IF TG_OP IN ('UPDATE', 'INSERT') THEN
+		PERFORM pg_notify('dbproject_changes', TG_TABLE_NAME || ' ' || op || ' ' || (to_jsonb(NEW) ->> TG_ARGV[0]));
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+/*Each table names the key its cached data is looked up by*/
+DROP TRIGGER IF EXISTS customer_notify ON Customer;
+DROP TRIGGER IF EXISTS customer_notify_truncate ON Customer;
+CREATE TRIGGER customer_notify AFTER INSERT OR DELETE OR UPDATE ON Customer
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('id');
+CREATE TRIGGER customer_notify_truncate AFTER TRUNCATE ON Customer
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_change('id');
+
+DROP TRIGGER IF EXISTS captain_notify ON Captain;
+DROP TRIGGER IF EXISTS captain_notify_truncate ON Captain;
+CREATE TRIGGER captain_notify AFTER INSERT OR DELETE OR UPDATE ON Captain
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('id');
+CREATE TRIGGER captain_notify_truncate AFTER TRUNCATE ON Captain
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_change('id');
+
+/*Bookings only move num_sold, which matters to seat counts but not to departures or routes*/
+DROP TRIGGER IF EXISTS cruise_notify ON Cruise;
+DROP TRIGGER IF EXISTS cruise_notify_update ON Cruise;
+DROP TRIGGER IF EXISTS cruise_notify_seats ON Cruise;
+DROP TRIGGER IF EXISTS cruise_notify_truncate ON Cruise;
+CREATE TRIGGER cruise_notify AFTER INSERT OR DELETE ON Cruise
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('cnum');
+CREATE TRIGGER cruise_notify_update AFTER UPDATE ON Cruise
+	FOR EACH ROW WHEN ((OLD.cnum, OLD.cost, OLD.num_stops, OLD.actual_departure_date, OLD.actual_arrival_date,
+		OLD.arrival_port, OLD.departure_port) IS DISTINCT FROM (NEW.cnum, NEW.cost, NEW.num_stops,
+		NEW.actual_departure_date, NEW.actual_arrival_date, NEW.arrival_port, NEW.departure_port))
+	EXECUTE PROCEDURE notify_change('cnum');
+CREATE TRIGGER cruise_notify_seats AFTER UPDATE ON Cruise
+	FOR EACH ROW WHEN (OLD.num_sold IS DISTINCT FROM NEW.num_sold) EXECUTE PROCEDURE notify_change('cnum', 'S');
+CREATE TRIGGER cruise_notify_truncate AFTER TRUNCATE ON Cruise
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_change('cnum');
+
+DROP TRIGGER IF EXISTS ship_notify ON Ship;
+DROP TRIGGER IF EXISTS ship_notify_truncate ON Ship;
+CREATE TRIGGER ship_notify AFTER INSERT OR DELETE OR UPDATE ON Ship
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('id');
+CREATE TRIGGER ship_notify_truncate AFTER TRUNCATE ON Ship
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_change('id');
+
+DROP TRIGGER IF EXISTS technician_notify ON Technician;
+DROP TRIGGER IF EXISTS technician_notify_truncate ON Technician;
+CREATE TRIGGER technician_notify AFTER INSERT OR DELETE OR UPDATE ON Technician
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('id');
+CREATE TRIGGER technician_notify_truncate AFTER TRUNCATE ON Technician
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_change('id');
+
+/*Reservations are keyed by cruise, which is what the per-cruise counts and seats are kept by*/
+DROP TRIGGER IF EXISTS reservation_notify ON Reservation;
+DROP TRIGGER IF EXISTS reservation_notify_truncate ON Reservation;
+CREATE TRIGGER reservation_notify AFTER INSERT OR DELETE OR UPDATE ON Reservation
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('cid');
+CREATE TRIGGER reservation_notify_truncate AFTER TRUNCATE ON Reservation
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_change('cid');
+
+DROP TRIGGER IF EXISTS cruiseinfo_notify ON CruiseInfo;
+DROP TRIGGER IF EXISTS cruiseinfo_notify_truncate ON CruiseInfo;
+CREATE TRIGGER cruiseinfo_notify AFTER INSERT OR DELETE OR UPDATE ON CruiseInfo
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('cruise_id');
+CREATE TRIGGER cruiseinfo_notify_truncate AFTER TRUNCATE ON CruiseInfo
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_change('cruise_id');
+
+DROP TRIGGER IF EXISTS repairs_notify ON Repairs;
+DROP TRIGGER IF EXISTS repairs_notify_truncate ON Repairs;
+CREATE TRIGGER repairs_notify AFTER INSERT OR DELETE OR UPDATE ON Repairs
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('ship_id');
+CREATE TRIGGER repairs_notify_truncate AFTER TRUNCATE ON Repairs
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_change('ship_id');
+
+DROP TRIGGER IF EXISTS schedule_notify ON Schedule;
+DROP TRIGGER IF EXISTS schedule_notify_truncate ON Schedule;
+CREATE TRIGGER schedule_notify AFTER INSERT OR DELETE OR UPDATE ON Schedule
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('cruisenum');
+CREATE TRIGGER schedule_notify_truncate AFTER TRUNCATE ON Schedule
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_change('cruisenum');